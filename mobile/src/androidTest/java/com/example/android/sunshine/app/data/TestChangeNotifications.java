@@ -0,0 +1,147 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Writes to the weather of one location notify that location's URIs, so the list and detail
+    cursors of another location, or of another day, are not requeried.  Observers are
+    registered for descendants, the way a cursor observes its query URI.
+ */
+public class TestChangeNotifications extends AndroidTestCase {
+
+    private static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    private static final int DAYS = 14;
+    private static final String LOCATION_A = "94043";
+    private static final String LOCATION_B = "99705";
+    private static final long NOTIFICATION_WAIT_MILLIS = 500;
+
+    private long mLocationIdA;
+    private long mLocationIdB;
+
+    private TestUtilities.TestContentObserver mAll;
+    private TestUtilities.TestContentObserver mListA;
+    private TestUtilities.TestContentObserver mFirstDayA;
+    private TestUtilities.TestContentObserver mSecondDayA;
+    private TestUtilities.TestContentObserver mListB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationIdA = insertLocation(LOCATION_A);
+        mLocationIdB = insertLocation(LOCATION_B);
+        insertBatch(createBatch(mLocationIdA, DAYS, 21.5));
+        insertBatch(createBatch(mLocationIdB, DAYS, 21.5));
+
+        mAll = observe(WeatherEntry.CONTENT_URI);
+        mListA = observe(WeatherEntry.buildWeatherLocation(LOCATION_A));
+        mFirstDayA = observe(WeatherEntry.buildWeatherLocationWithDate(LOCATION_A, FIRST_DAY));
+        mSecondDayA = observe(WeatherEntry.buildWeatherLocationWithDate(LOCATION_A,
+                FIRST_DAY + DateUtils.DAY_IN_MILLIS));
+        mListB = observe(WeatherEntry.buildWeatherLocation(LOCATION_B));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestUtilities.TestContentObserver observer
+                : new TestUtilities.TestContentObserver[]{mAll, mListA, mFirstDayA, mSecondDayA,
+                mListB}) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+    }
+
+    private static WeatherBatch createBatch(long locationId, int days, double high) {
+        return TestUtilities.createWeatherBatch(locationId, FIRST_DAY, days, high);
+    }
+
+    private void insertBatch(WeatherBatch batch) {
+        Bundle extras = new Bundle();
+        extras.putByteArray(WeatherContract.EXTRA_BATCH, batch.toBytes());
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INSERT_WEATHER_BATCH, null, extras);
+    }
+
+    private TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    public void testOneDayNotifiesItsDayOnly() {
+        insertBatch(createBatch(mLocationIdA, 1, 30));
+
+        assertEquals(1, mFirstDayA.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        assertEquals(1, mListA.countNotifications(0));
+        assertEquals(1, mAll.countNotifications(0));
+        assertEquals("Error: the detail of another day was notified",
+                0, mSecondDayA.countNotifications(0));
+        assertEquals("Error: another location was notified", 0, mListB.countNotifications(0));
+    }
+
+    public void testSelectedUpdateNotifiesItsDayOnly() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 30);
+        int updated = mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationIdA), Long.toString(FIRST_DAY)});
+        assertEquals(1, updated);
+
+        assertEquals(1, mFirstDayA.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        assertEquals(0, mSecondDayA.countNotifications(0));
+        assertEquals(0, mListB.countNotifications(0));
+    }
+
+    public void testBatchNotifiesItsLocationOnce() {
+        insertBatch(createBatch(mLocationIdA, DAYS, 30));
+
+        assertEquals(1, mListA.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        assertEquals(1, mFirstDayA.countNotifications(0));
+        assertEquals(1, mSecondDayA.countNotifications(0));
+        assertEquals("Error: another location was notified", 0, mListB.countNotifications(0));
+    }
+
+    public void testUnchangedBatchNotifiesNothing() {
+        insertBatch(createBatch(mLocationIdA, DAYS, 21.5));
+
+        assertEquals(0, mAll.countNotifications(NOTIFICATION_WAIT_MILLIS));
+    }
+
+    public void testDeleteOfOneLocation() {
+        int deleted = mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(mLocationIdA)});
+        assertEquals(DAYS, deleted);
+
+        assertEquals(1, mListA.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        assertEquals("Error: another location was notified", 0, mListB.countNotifications(0));
+    }
+
+    public void testDeleteAllNotifiesEveryLocation() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        assertEquals(1, mListA.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        assertEquals(1, mListB.countNotifications(0));
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/*
+    Size and speed of the hourly table at 100 locations of 40 periods each, what a sync of
+    the 3-hour forecast for every location writes.  Rows go in through the provider the way
+    the sync adapter writes them, one bulkInsert per location.  The same rows are also stored
+    in a scratch table laid out like the weather table (REAL columns, a description string,
+    millisecond dates) to show what the compact columns save.  Results are logged; the
+    assertions only guard against the compact layout losing its edge.
+ */
+public class TestHourlyBenchmark extends AndroidTestCase {
+    public static final String LOG_TAG = TestHourlyBenchmark.class.getSimpleName();
+
+    private static final int LOCATIONS = 100;
+    private static final int PERIODS = 40;
+    private static final String WIDE_DATABASE_NAME = "hourly_benchmark.db";
+    private static final String WIDE_TABLE_NAME = "hourly_wide";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mContext.deleteDatabase(WIDE_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testHourlyAtHundredLocations() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        long sizeBefore = getUsedBytes(db);
+
+        long[] locationIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+            Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+            locationIds[i] = ContentUris.parseId(uri);
+        }
+
+        long start = System.nanoTime();
+        for (long locationId : locationIds) {
+            int inserted = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                    TestProvider.createBulkInsertHourlyValues(locationId, PERIODS));
+            assertEquals(PERIODS, inserted);
+        }
+        long insertMillis = (System.nanoTime() - start) / 1000000;
+        long compactBytes = getUsedBytes(db) - sizeBefore;
+        db.close();
+
+        // what the detail view asks for: the next day of one location
+        long rangeStart = TestUtilities.TEST_DATE + 8 * TestProvider.HOURLY_PERIOD_SECONDS;
+        long rangeEnd = rangeStart + 8 * TestProvider.HOURLY_PERIOD_SECONDS;
+        int rows = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOCATIONS; i++) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    HourlyEntry.buildHourlyLocationWithRange(getLocationSetting(i),
+                            rangeStart, rangeEnd),
+                    new String[]{HourlyEntry.COLUMN_TIME, HourlyEntry.COLUMN_TEMP},
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            cursor.close();
+        }
+        long queryMicros = (System.nanoTime() - start) / 1000 / LOCATIONS;
+        assertEquals(8 * LOCATIONS, rows);
+
+        long[] wide = storeWide(locationIds);
+
+        Log.i(LOG_TAG, String.format("%d locations x %d periods: compact %d bytes (%d per row), "
+                        + "%d ms to insert, %d us per range query; weather table layout "
+                        + "%d bytes (%d per row), %d ms to insert",
+                LOCATIONS, PERIODS, compactBytes, compactBytes / (LOCATIONS * PERIODS),
+                insertMillis, queryMicros, wide[0], wide[0] / (LOCATIONS * PERIODS), wide[1]));
+
+        assertTrue("Error: compact rows take " + compactBytes + " bytes, the weather table layout "
+                + wide[0], compactBytes < wide[0]);
+    }
+
+    /**
+     * Stores the same rows, one insert per row, in a table laid out like the weather table.
+     *
+     * @return the bytes used by the table and the milliseconds it took to fill it
+     */
+    private long[] storeWide(long[] locationIds) {
+        mContext.deleteDatabase(WIDE_DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WIDE_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE " + WIDE_TABLE_NAME + " (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, " +
+                    "short_desc TEXT NOT NULL, " +
+                    "weather_id INTEGER NOT NULL, " +
+                    "temp REAL NOT NULL, " +
+                    "humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, " +
+                    "wind REAL NOT NULL, " +
+                    "degrees REAL NOT NULL, " +
+                    "UNIQUE (date, location_id) ON CONFLICT REPLACE);");
+            long sizeBefore = getUsedBytes(db);
+
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (long locationId : locationIds) {
+                    for (ContentValues compact :
+                            TestProvider.createBulkInsertHourlyValues(locationId, PERIODS)) {
+                        ContentValues values = new ContentValues();
+                        values.put("location_id", locationId);
+                        values.put("date", compact.getAsLong(HourlyEntry.COLUMN_TIME) * 1000);
+                        values.put("short_desc", "Rain");
+                        values.put("weather_id", compact.getAsInteger(HourlyEntry.COLUMN_WEATHER_ID));
+                        values.put("temp", HourlyEntry.dequantize(
+                                compact.getAsLong(HourlyEntry.COLUMN_TEMP)));
+                        values.put("humidity", compact.getAsDouble(HourlyEntry.COLUMN_HUMIDITY));
+                        values.put("pressure", HourlyEntry.dequantize(
+                                compact.getAsLong(HourlyEntry.COLUMN_PRESSURE)));
+                        values.put("wind", HourlyEntry.dequantize(
+                                compact.getAsLong(HourlyEntry.COLUMN_WIND_SPEED)));
+                        values.put("degrees", compact.getAsDouble(HourlyEntry.COLUMN_DEGREES));
+                        db.insert(WIDE_TABLE_NAME, null, values);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            return new long[]{getUsedBytes(db) - sizeBefore, millis};
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String getLocationSetting(int index) {
+        return "benchmark " + index;
+    }
+
+    // Pages in use, leaving out the free list that deleted rows leave behind
+    private static long getUsedBytes(SQLiteDatabase db) {
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        return (pageCount - freePages) * pageSize;
+    }
+}
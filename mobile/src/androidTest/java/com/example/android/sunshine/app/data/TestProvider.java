@@ -16,20 +16,27 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +63,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -155,6 +167,12 @@ public class TestProvider extends AndroidTestCase {
         assertEquals("Error: the WeatherEntry CONTENT_URI with location and date should return WeatherEntry.CONTENT_ITEM_TYPE",
                 WeatherEntry.CONTENT_ITEM_TYPE, type);
 
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(
+                HourlyEntry.buildHourlyLocation(testLocation));
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
+
         // content://com.example.android.sunshine.app/location/
         type = mContext.getContentResolver().getType(LocationEntry.CONTENT_URI);
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
@@ -512,4 +530,215 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Writing the same rows a second time must neither touch them nor notify anyone, and a
+        changed row must be updated in place, keeping its id.
+     */
+    public void testUpsertWeather() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        Bundle counts = upsert(createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, counts.getInt(WeatherContract.RESULT_INSERTED));
+
+        long[] ids = queryWeatherIds();
+
+        // the same forecast again: nothing to write, nothing to tell the observers
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        counts = upsert(createBulkInsertWeatherValues(locationRowId));
+        weatherObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(0, counts.getInt(WeatherContract.RESULT_INSERTED));
+        assertEquals(0, counts.getInt(WeatherContract.RESULT_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, counts.getInt(WeatherContract.RESULT_UNCHANGED));
+
+        // one day's high changes
+        ContentValues[] changed = createBulkInsertWeatherValues(locationRowId);
+        changed[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        counts = upsert(changed);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(0, counts.getInt(WeatherContract.RESULT_INSERTED));
+        assertEquals(1, counts.getInt(WeatherContract.RESULT_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, counts.getInt(WeatherContract.RESULT_UNCHANGED));
+        assertTrue("Error: row ids changed on update", Arrays.equals(ids, queryWeatherIds()));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        cursor.moveToPosition(3);
+        TestUtilities.validateCurrentRecord("testUpsertWeather. Error validating updated row",
+                cursor, changed[3]);
+        cursor.close();
+    }
+
+    static final long HOURLY_PERIOD_SECONDS = 3 * 60 * 60;
+
+    /*
+        Periods of a 3-hour forecast starting at TestUtilities.TEST_DATE, as the sync adapter
+        stores them.
+     */
+    static ContentValues[] createBulkInsertHourlyValues(long locationRowId, int count) {
+        ContentValues[] returnContentValues = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues hourlyValues = new ContentValues();
+            hourlyValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            hourlyValues.put(HourlyEntry.COLUMN_TIME,
+                    TestUtilities.TEST_DATE + i * HOURLY_PERIOD_SECONDS);
+            hourlyValues.put(HourlyEntry.COLUMN_WEATHER_ID, 500 + i % 3);
+            hourlyValues.put(HourlyEntry.COLUMN_TEMP, HourlyEntry.quantize(-12.3 + 0.5 * i));
+            hourlyValues.put(HourlyEntry.COLUMN_HUMIDITY, 60 + i % 30);
+            hourlyValues.put(HourlyEntry.COLUMN_PRESSURE, HourlyEntry.quantize(1012.4 + 0.1 * i));
+            hourlyValues.put(HourlyEntry.COLUMN_WIND_SPEED, HourlyEntry.quantize(3.5 + 0.1 * i));
+            hourlyValues.put(HourlyEntry.COLUMN_DEGREES, (180 + i) % 360);
+            returnContentValues[i] = hourlyValues;
+        }
+        return returnContentValues;
+    }
+
+    /*
+        Hourly rows go in through the compiled statement path, a second sync of the same
+        periods replaces rather than duplicates them, and a range query for a location returns
+        just the periods in the range, in time order.
+     */
+    public void testHourlyBulkInsertAndRange() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] hourlyValues = createBulkInsertHourlyValues(locationRowId, 40);
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, hourlyValues);
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+        assertEquals(40, insertCount);
+
+        mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, hourlyValues);
+        Cursor cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a second sync duplicated the periods", 40, cursor.getCount());
+        cursor.close();
+
+        // the second day: periods 8 to 15
+        long start = TestUtilities.TEST_DATE + 8 * HOURLY_PERIOD_SECONDS;
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithRange(TestUtilities.TEST_LOCATION,
+                        start, start + 8 * HOURLY_PERIOD_SECONDS),
+                null, null, null, null);
+        assertEquals(8, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 8; i < 16; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testHourlyBulkInsertAndRange. Error validating period " + i,
+                    cursor, hourlyValues[i]);
+        }
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("not a location"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        The location upsert keeps the row a setting has, refreshing only its city id.
+     */
+    public void testLocationUpsert() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        long locationId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.UPSERT_URI, values));
+
+        values.put(LocationEntry.COLUMN_CITY_ID, 5880054L);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Not the North Pole");
+        assertEquals(locationId, ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.UPSERT_URI, values)));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(5880054L, cursor.getLong(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_ID)));
+        assertEquals("North Pole",
+                cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_NAME)));
+        cursor.close();
+    }
+
+    /*
+        A batch of writes to the weather table commits once and tells its observers once.
+     */
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues value : values) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(value).build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{values[0].getAsString(WeatherEntry.COLUMN_DATE)})
+                .build());
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        int notifications = observer.countNotifications(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertEquals("Error: the batch did not notify exactly once", 1, notifications);
+        assertEquals(values.length - 1, queryWeatherIds().length);
+    }
+
+    public void testFailedApplyBatchWritesNothing() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValues(TestUtilities.createWeatherValues(locationRowId)).build());
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withExpectedCount(2).build());
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: a failing assertion was applied");
+        } catch (OperationApplicationException e) {
+            // expected
+        } catch (Exception e) {
+            fail("Error: " + e);
+        }
+        observer.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        assertEquals("Error: the weather row outlived its failed batch",
+                0, queryWeatherIds().length);
+    }
+
+    private Bundle upsert(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+    }
+
+    private long[] queryWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
 }
@@ -0,0 +1,250 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Runs EXPLAIN QUERY PLAN on every query shape the provider and the sync issue, against
+    the schema WeatherDbHelper creates filled with 1000 locations of 365 days each, and fails
+    on any full table or index scan.  Timings of the reads are logged, and compared with the
+    (location_id, date) index dropped to show what it saves; they are not asserted on.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "query_plans.db";
+
+    private static final int LOCATIONS = 1000;
+    private static final int DAYS = 365;
+    private static final int PERIODS = 8;
+    private static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    private static final int TIMED_QUERIES = 100;
+
+    // The columns of the forecast list
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private static class Shape {
+        final String name;
+        final String sql;
+        final String[] args;
+        final boolean timed;
+
+        Shape(String name, String sql, boolean timed, String... args) {
+            this.name = name;
+            this.sql = sql;
+            this.args = args;
+            this.timed = timed;
+        }
+    }
+
+    private SQLiteDatabase mDb;
+    private final Random mRandom = new Random(42);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        new WeatherDbHelper(mContext).onCreate(mDb);
+        fill();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void fill() {
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        SQLiteStatement weather = mDb.compileStatement("INSERT INTO " + WeatherEntry.TABLE_NAME
+                + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_SHORT_DESC + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", " + WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, 'Rain', 500, 12.5, 21.5, 60, 1012.5, 3.5, 180)");
+        SQLiteStatement hourly = mDb.compileStatement("INSERT INTO " + HourlyEntry.TABLE_NAME
+                + " (" + HourlyEntry.COLUMN_LOC_KEY + ", " + HourlyEntry.COLUMN_TIME + ", "
+                + HourlyEntry.COLUMN_WEATHER_ID + ", " + HourlyEntry.COLUMN_TEMP + ", "
+                + HourlyEntry.COLUMN_HUMIDITY + ", " + HourlyEntry.COLUMN_PRESSURE + ", "
+                + HourlyEntry.COLUMN_WIND_SPEED + ", " + HourlyEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, 500, 185, 60, 10125, 35, 180)");
+        try {
+            for (int i = 0; i < LOCATIONS; i++) {
+                ContentValues location = TestUtilities.createNorthPoleLocationValues();
+                location.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+                long locationId = mDb.insert(LocationEntry.TABLE_NAME, null, location);
+                for (int day = 0; day < DAYS; day++) {
+                    weather.bindLong(1, locationId);
+                    weather.bindLong(2, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS);
+                    weather.executeInsert();
+                }
+                for (int period = 0; period < PERIODS; period++) {
+                    hourly.bindLong(1, locationId);
+                    hourly.bindLong(2, FIRST_DAY / 1000 + period * 3 * 60 * 60);
+                    hourly.executeInsert();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            weather.close();
+            hourly.close();
+            mDb.endTransaction();
+        }
+        Log.i(LOG_TAG, String.format("%d locations x %d days stored in %d ms",
+                LOCATIONS, DAYS, (System.nanoTime() - start) / 1000000));
+    }
+
+    private static String getLocationSetting(int index) {
+        return "plan " + index;
+    }
+
+    private static String day(int index) {
+        return Long.toString(FIRST_DAY + index * DateUtils.DAY_IN_MILLIS);
+    }
+
+    /*
+        Every read and write the app makes against these tables, with the SQL the provider
+        builds for it.
+     */
+    private List<Shape> getShapes(String locationSetting) {
+        List<Shape> shapes = new ArrayList<>();
+        SQLiteQueryBuilder weather = WeatherProvider.sWeatherByLocationSettingQueryBuilder;
+        shapes.add(new Shape("forecast list", weather.buildQuery(FORECAST_COLUMNS,
+                WeatherProvider.sLocationSettingWithStartDateSelection, null, null, DATE_ORDER,
+                null), true, locationSetting, day(DAYS / 2)));
+        shapes.add(new Shape("forecast of a location", weather.buildQuery(null,
+                WeatherProvider.sLocationSettingSelection, null, null, DATE_ORDER, null),
+                true, locationSetting));
+        shapes.add(new Shape("detail of a day", weather.buildQuery(null,
+                WeatherProvider.sLocationSettingAndDaySelection, null, null, null, null),
+                true, locationSetting, day(DAYS / 2)));
+        shapes.add(new Shape("upsert lookup", SQLiteQueryBuilder.buildQueryString(false,
+                WeatherEntry.TABLE_NAME, null, WeatherProvider.sDateAndLocationIdSelection,
+                null, null, null, null), true, day(DAYS / 2), "1"));
+        shapes.add(new Shape("stored weather ids", "SELECT " + WeatherEntry.COLUMN_WEATHER_ID
+                + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_DATE
+                + " >= ?", false, day(DAYS - 1)));
+        shapes.add(new Shape("retention delete", "DELETE FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " <= ?", false, day(1)));
+        shapes.add(new Shape("hourly range",
+                WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(null,
+                        WeatherProvider.sLocationSettingWithTimeRangeSelection, null, null,
+                        WeatherProvider.sHourlyTimeOrder, null),
+                true, locationSetting, Long.toString(FIRST_DAY / 1000),
+                Long.toString(FIRST_DAY / 1000 + 24 * 60 * 60)));
+        shapes.add(new Shape("hourly prune", "DELETE FROM " + HourlyEntry.TABLE_NAME + " WHERE "
+                + HourlyEntry.COLUMN_TIME + " < ?", false, Long.toString(FIRST_DAY / 1000)));
+        shapes.add(new Shape("location by setting", "SELECT " + LocationEntry._ID + " FROM "
+                + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING
+                + " = ?", true, locationSetting));
+        return shapes;
+    }
+
+    private List<String> explain(Shape shape) {
+        List<String> details = new ArrayList<>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + shape.sql, shape.args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return details;
+    }
+
+    public void testNoShapeScansATable() {
+        for (Shape shape : getShapes(getLocationSetting(LOCATIONS / 2))) {
+            List<String> plan = explain(shape);
+            Log.i(LOG_TAG, shape.name + ": " + plan);
+            assertFalse("Error: no plan for " + shape.name, plan.isEmpty());
+            for (String step : plan) {
+                assertFalse("Error: " + shape.name + " scans: " + step, step.startsWith("SCAN"));
+            }
+        }
+    }
+
+    public void testForecastListNeedsNoSort() {
+        Shape list = getShapes(getLocationSetting(0)).get(0);
+        for (String step : explain(list)) {
+            assertFalse("Error: the forecast list is sorted: " + step,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+
+    public void testTimings() {
+        long[] indexed = time();
+        mDb.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        long[] unindexed = time();
+
+        List<Shape> shapes = getShapes(getLocationSetting(0));
+        for (int i = 0; i < shapes.size(); i++) {
+            if (shapes.get(i).timed) {
+                Log.i(LOG_TAG, String.format("%s: %d us, %d us without the location index",
+                        shapes.get(i).name, indexed[i], unindexed[i]));
+            }
+        }
+    }
+
+    /*
+        Runs each timed shape for random locations, and reads every row.
+
+        @return mean microseconds per query, by shape
+     */
+    private long[] time() {
+        int shapeCount = getShapes(getLocationSetting(0)).size();
+        long[] micros = new long[shapeCount];
+        for (int q = 0; q < TIMED_QUERIES; q++) {
+            List<Shape> shapes = getShapes(getLocationSetting(mRandom.nextInt(LOCATIONS)));
+            for (int i = 0; i < shapeCount; i++) {
+                Shape shape = shapes.get(i);
+                if (!shape.timed) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                Cursor cursor = mDb.rawQuery(shape.sql, shape.args);
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                }
+                cursor.close();
+                micros[i] += (System.nanoTime() - start) / 1000;
+            }
+        }
+        for (int i = 0; i < shapeCount; i++) {
+            micros[i] /= TIMED_QUERIES;
+        }
+        return micros;
+    }
+}
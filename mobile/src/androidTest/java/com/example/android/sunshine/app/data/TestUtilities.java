@@ -24,11 +24,13 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -77,6 +79,20 @@ public class TestUtilities extends AndroidTestCase {
         return weatherValues;
     }
 
+    /*
+        A forecast of consecutive days for one location, its high rising a degree a day.  Pass
+        a different high to change every row.
+     */
+    public static WeatherBatch createWeatherBatch(long locationId, long firstDay, int days,
+                                                  double high) {
+        WeatherBatch batch = new WeatherBatch(days);
+        for (int i = 0; i < days; i++) {
+            batch.add(locationId, firstDay + i * DateUtils.DAY_IN_MILLIS, 500, "Rain", 12.25,
+                    high + i, 60, 1012.5, 3.5, 180);
+        }
+        return batch;
+    }
+
     /*
         Students: You can uncomment this helper function once you have finished creating the
         LocationEntry part of the WeatherContract.
@@ -119,9 +135,11 @@ public class TestUtilities extends AndroidTestCase {
         Note that this only tests that the onChange function is called; it does not test that the
         correct Uri is returned.
      */
-    static class TestContentObserver extends ContentObserver {
+    public static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        // read from the test thread, counted on the observer's
+        final AtomicInteger mChangeCount = new AtomicInteger();
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -143,6 +161,7 @@ public class TestUtilities extends AndroidTestCase {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             mContentChanged = true;
+            mChangeCount.incrementAndGet();
         }
 
         public void waitForNotificationOrFail() {
@@ -158,9 +177,32 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        public void assertNoNotification(long waitMillis) {
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mHT.quit();
+            assertFalse("Error: unexpected change notification", mContentChanged);
+        }
+
+        /**
+         * @return how many notifications came in within the given time
+         */
+        public int countNotifications(long waitMillis) {
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mHT.quit();
+            return mChangeCount.get();
+        }
     }
 
-    static TestContentObserver getTestContentObserver() {
+    public static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
 }
@@ -0,0 +1,198 @@
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Readers query the forecast list the way the list loader, the widget, Muzei and the wear
+    sync do, from threads of their own, while a writer keeps storing the forecasts of every
+    location in batches the size of a sync.  Query latencies are logged as p50/p99 with the
+    database in rollback journal mode and in WAL mode; the assertion only guards against WAL
+    losing its edge on the tail.  That shows readers are not held up by the writer, not how
+    they share the platform's connection pool.
+ */
+public class TestWalConcurrency extends AndroidTestCase {
+    public static final String LOG_TAG = TestWalConcurrency.class.getSimpleName();
+
+    private static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 14;
+    private static final int READERS = 4;
+    private static final long RUN_MILLIS = 5000;
+
+    private final Random mRandom = new Random(42);
+    private WeatherDbHelper mHelper;
+    private ContentProviderClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClient = mContext.getContentResolver().acquireContentProviderClient(
+                WeatherContract.CONTENT_AUTHORITY);
+        mHelper = ((WeatherProvider) mClient.getLocalContentProvider()).getOpenHelper();
+        deleteAll();
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+            mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mHelper.setWriteAheadLoggingEnabled(true);
+        }
+        deleteAll();
+        mClient.release();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static String getLocationSetting(int index) {
+        return "wal " + index;
+    }
+
+    public void testWalIsOn() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+        assertEquals(WeatherDbHelper.WAL_AUTOCHECKPOINT_PAGES,
+                DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testReadersDuringSyncWrites() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        mHelper.setWriteAheadLoggingEnabled(false);
+        long[] journal = stress();
+        mHelper.setWriteAheadLoggingEnabled(true);
+        long[] wal = stress();
+
+        Log.i(LOG_TAG, String.format("%d readers: rollback journal p50 %d us, p99 %d us, "
+                        + "%d writes; WAL p50 %d us, p99 %d us, %d writes",
+                READERS, journal[0], journal[1], journal[2], wal[0], wal[1], wal[2]));
+        assertTrue("Error: readers waited as long with WAL", wal[1] < journal[1]);
+    }
+
+    /*
+        Runs the readers against the writer for RUN_MILLIS.
+
+        @return p50 and p99 of the query latencies in microseconds, and the batches written
+     */
+    private long[] stress() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(READERS + 1);
+        final long[] writes = new long[1];
+        final Throwable[] failure = new Throwable[1];
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int pass = 0; running.get(); pass++) {
+                        write(pass);
+                        writes[0]++;
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        writer.start();
+        for (int r = 0; r < READERS; r++) {
+            final int seed = mRandom.nextInt();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (running.get()) {
+                            latencies.add(query(random.nextInt(LOCATIONS)));
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        done.await();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        assertFalse("Error: no query ran", sorted.isEmpty());
+        return new long[]{
+                sorted.get(sorted.size() / 2),
+                sorted.get(Math.min(sorted.size() - 1, sorted.size() * 99 / 100)),
+                writes[0]
+        };
+    }
+
+    // What a sync of every location stores, with highs that change every pass
+    private void write(int pass) {
+        for (int i = 0; i < LOCATIONS; i++) {
+            Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                    new String[]{LocationEntry._ID},
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{getLocationSetting(i)}, null);
+            assertTrue(cursor.moveToFirst());
+            long locationId = cursor.getLong(0);
+            cursor.close();
+
+            WeatherBatch batch =
+                    TestUtilities.createWeatherBatch(locationId, FIRST_DAY, DAYS, 21.5 + pass % 10);
+            Bundle extras = new Bundle();
+            extras.putByteArray(WeatherContract.EXTRA_BATCH, batch.toBytes());
+            mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_INSERT_WEATHER_BATCH, null, extras);
+        }
+    }
+
+    // @return microseconds to query one location's forecast list and read every row
+    private long query(int location) {
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(getLocationSetting(location),
+                FIRST_DAY);
+        long start = System.nanoTime();
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        while (cursor.moveToNext()) {
+            cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP));
+        }
+        cursor.close();
+        return (System.nanoTime() - start) / 1000;
+    }
+}
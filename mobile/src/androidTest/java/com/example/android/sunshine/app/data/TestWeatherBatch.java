@@ -0,0 +1,211 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Writes weather rows through the compiled statement batch, checks it counts and notifies
+    like the ContentValues upsert, and compares the rows per second of both at a sync of one
+    location, a sync of every saved location, and a bulk restore.  Rates are logged; the
+    assertion only guards against the batch losing its edge on the largest size.
+ */
+public class TestWeatherBatch extends AndroidTestCase {
+    public static final String LOG_TAG = TestWeatherBatch.class.getSimpleName();
+
+    private static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    private static final int DAYS_PER_LOCATION = 500;
+    private static final int[] BENCHMARK_SIZES = {14, 500, 50000};
+
+    private long[] mLocationIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        int locations = BENCHMARK_SIZES[BENCHMARK_SIZES.length - 1] / DAYS_PER_LOCATION;
+        mLocationIds = new long[locations];
+        for (int i = 0; i < locations; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "batch " + i);
+            Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+            mLocationIds[i] = ContentUris.parseId(uri);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        Row i of a benchmark: locations take DAYS_PER_LOCATION consecutive days each, the rows
+        TestUtilities.createWeatherBatch makes.  The high moves with the pass, so a second pass
+        over the same rows updates every one of them.
+     */
+    private long getLocationId(int i) {
+        return mLocationIds[i / DAYS_PER_LOCATION];
+    }
+
+    private static long getDate(int i) {
+        return FIRST_DAY + (i % DAYS_PER_LOCATION) * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private WeatherBatch createBatch(int count, double high) {
+        WeatherBatch batch = new WeatherBatch(count);
+        for (int i = 0; i < count; i += DAYS_PER_LOCATION) {
+            batch.addAll(TestUtilities.createWeatherBatch(getLocationId(i), FIRST_DAY,
+                    Math.min(DAYS_PER_LOCATION, count - i), high));
+        }
+        return batch;
+    }
+
+    private ContentValues[] createValues(int count, double high) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues row = new ContentValues();
+            row.put(WeatherEntry.COLUMN_LOC_KEY, getLocationId(i));
+            row.put(WeatherEntry.COLUMN_DATE, getDate(i));
+            row.put(WeatherEntry.COLUMN_WEATHER_ID, 500);
+            row.put(WeatherEntry.COLUMN_SHORT_DESC, "Rain");
+            row.put(WeatherEntry.COLUMN_MIN_TEMP, 12.25);
+            row.put(WeatherEntry.COLUMN_MAX_TEMP, high + i % DAYS_PER_LOCATION);
+            row.put(WeatherEntry.COLUMN_HUMIDITY, 60.0);
+            row.put(WeatherEntry.COLUMN_PRESSURE, 1012.5);
+            row.put(WeatherEntry.COLUMN_WIND_SPEED, 3.5);
+            row.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+            values[i] = row;
+        }
+        return values;
+    }
+
+    private Bundle writeBatch(WeatherBatch batch) {
+        Bundle extras = new Bundle();
+        extras.putByteArray(WeatherContract.EXTRA_BATCH, batch.toBytes());
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INSERT_WEATHER_BATCH, null, extras);
+    }
+
+    private Bundle upsert(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+    }
+
+    private static void assertCounts(Bundle counts, int inserted, int updated, int unchanged) {
+        assertEquals(inserted, counts.getInt(WeatherContract.RESULT_INSERTED));
+        assertEquals(updated, counts.getInt(WeatherContract.RESULT_UPDATED));
+        assertEquals(unchanged, counts.getInt(WeatherContract.RESULT_UNCHANGED));
+    }
+
+    public void testBytesRoundTrip() {
+        WeatherBatch batch = createBatch(20, 21.5);
+        batch.setLocationId(mLocationIds[1]);
+        WeatherBatch copy = WeatherBatch.fromBytes(batch.toBytes());
+        assertEquals(batch.size(), copy.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(mLocationIds[1], copy.locationIds[i]);
+            assertEquals(batch.dates[i], copy.dates[i]);
+            assertEquals(batch.weatherIds[i], copy.weatherIds[i]);
+            assertEquals(batch.shortDescs[i], copy.shortDescs[i]);
+            assertEquals(batch.maxTemps[i], copy.maxTemps[i]);
+        }
+
+        try {
+            WeatherBatch.fromBytes(new byte[]{1, 0, 0, 0, 5});
+            fail("Error: a truncated batch was read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBatchWritesOnlyWhatDiffers() {
+        assertCounts(writeBatch(createBatch(14, 21.5)), 14, 0, 0);
+
+        // the same forecast again: nothing to write, nothing to tell the observers
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        assertCounts(writeBatch(createBatch(14, 21.5)), 0, 0, 14);
+        observer.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        // one day's high changes, and a day is added
+        WeatherBatch changed = createBatch(15, 21.5);
+        changed.maxTemps[3] = 30.5;
+        observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        assertCounts(writeBatch(changed), 1, 1, 13);
+        observer.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        // what the batch wrote reads back as the ContentValues upsert would have written it
+        ContentValues[] values = createValues(15, 21.5);
+        values[3].put(WeatherEntry.COLUMN_MAX_TEMP, 30.5);
+        assertCounts(upsert(values), 0, 0, 15);
+    }
+
+    public void testBulkInsertTakesTheBatch() {
+        assertEquals(14, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createValues(14, 21.5)));
+        assertEquals(0, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createValues(14, 21.5)));
+        assertCounts(writeBatch(createBatch(14, 21.5)), 0, 0, 14);
+    }
+
+    /*
+        Rows per second of the ContentValues upsert and of the batch, each building its rows
+        the way the sync does, for a first write of every row and a second pass that updates
+        every one.
+     */
+    public void testBenchmark() {
+        for (int size : BENCHMARK_SIZES) {
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+            long start = System.nanoTime();
+            assertCounts(upsert(createValues(size, 21.5)), size, 0, 0);
+            long upsertInsertNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            assertCounts(upsert(createValues(size, 22.5)), 0, size, 0);
+            long upsertUpdateNanos = System.nanoTime() - start;
+
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+            start = System.nanoTime();
+            assertCounts(writeBatch(createBatch(size, 21.5)), size, 0, 0);
+            long batchInsertNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            assertCounts(writeBatch(createBatch(size, 22.5)), 0, size, 0);
+            long batchUpdateNanos = System.nanoTime() - start;
+
+            Log.i(LOG_TAG, String.format("%d rows: insert %d rows/s upsert, %d rows/s batch; "
+                            + "update %d rows/s upsert, %d rows/s batch",
+                    size, rate(size, upsertInsertNanos), rate(size, batchInsertNanos),
+                    rate(size, upsertUpdateNanos), rate(size, batchUpdateNanos)));
+
+            if (size == BENCHMARK_SIZES[BENCHMARK_SIZES.length - 1]) {
+                assertTrue("Error: the batch inserts slower than the upsert",
+                        batchInsertNanos < upsertInsertNanos);
+                assertTrue("Error: the batch updates slower than the upsert",
+                        batchUpdateNanos < upsertUpdateNanos);
+            }
+        }
+    }
+
+    private static long rate(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(nanos, 1);
+    }
+}
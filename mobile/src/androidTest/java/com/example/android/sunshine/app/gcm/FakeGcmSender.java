@@ -0,0 +1,94 @@
+package com.example.android.sunshine.app.gcm;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.R;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Stands in for our server and GCM: builds data messages the way GCM hands them to the
+    listener, every value a string, and delivers them straight to it.
+ */
+class FakeGcmSender {
+
+    private final Context mContext;
+    private final Map<String, JSONArray> mDays = new LinkedHashMap<>();
+
+    FakeGcmSender(Context context) {
+        mContext = context;
+    }
+
+    static int getJulianToday() {
+        Time time = new Time();
+        time.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), time.gmtoff);
+    }
+
+    /**
+     * Adds a day to the next delta.
+     *
+     * @param fields payload key and value pairs, e.g. "max", 21.5
+     */
+    FakeGcmSender day(String locationSetting, int julianDay, Object... fields)
+            throws JSONException {
+        JSONObject day = new JSONObject();
+        day.put("day", julianDay);
+        for (int i = 0; i < fields.length; i += 2) {
+            day.put((String) fields[i], fields[i + 1]);
+        }
+        JSONArray days = mDays.get(locationSetting);
+        if (days == null) {
+            days = new JSONArray();
+            mDays.put(locationSetting, days);
+        }
+        days.put(day);
+        return this;
+    }
+
+    /**
+     * Adds a day with every field, as a day the device has not stored yet needs.
+     */
+    FakeGcmSender fullDay(String locationSetting, int julianDay, double high, double low)
+            throws JSONException {
+        return day(locationSetting, julianDay, "max", high, "min", low, "humidity", 80,
+                "pressure", 1012.5, "speed", 3.5, "deg", 270, "main", "Rain", "id", 500);
+    }
+
+    String buildDelta() throws JSONException {
+        JSONArray locations = new JSONArray();
+        for (Map.Entry<String, JSONArray> entry : mDays.entrySet()) {
+            JSONObject location = new JSONObject();
+            location.put("location", entry.getKey());
+            location.put("days", entry.getValue());
+            locations.put(location);
+        }
+        mDays.clear();
+        return new JSONObject().put("locations", locations).toString();
+    }
+
+    /**
+     * Sends the days added so far as one forecast delta message.
+     */
+    void sendDelta() throws JSONException {
+        sendDelta(buildDelta());
+    }
+
+    void sendDelta(String delta) {
+        Bundle data = new Bundle();
+        data.putString(MyGcmListenerService.EXTRA_TYPE, MyGcmListenerService.TYPE_FORECAST_DELTA);
+        data.putString(MyGcmListenerService.EXTRA_DELTA, delta);
+        send(mContext.getString(R.string.gcm_defaultSenderId), data);
+    }
+
+    void send(String from, Bundle data) {
+        MyGcmListenerService.handleMessage(mContext, from, data);
+    }
+}
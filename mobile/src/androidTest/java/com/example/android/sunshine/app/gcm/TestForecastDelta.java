@@ -0,0 +1,138 @@
+package com.example.android.sunshine.app.gcm;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONObject;
+
+/*
+    Pushes forecast deltas through the listener with a fake sender and checks what reaches
+    the database.
+ */
+public class TestForecastDelta extends AndroidTestCase {
+
+    private static final String UNSUBSCRIBED_LOCATION = "delta nowhere";
+
+    private String mLocation;
+    private FakeGcmSender mSender;
+    private int mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocation = Utility.getPreferredLocation(mContext);
+        mSender = new FakeGcmSender(mContext);
+        mToday = FakeGcmSender.getJulianToday();
+
+        // deltas only apply to locations the device has synced before
+        insertLocation(mLocation);
+        insertLocation(UNSUBSCRIBED_LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void insertLocation(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 37.3861);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -122.0839);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
+    }
+
+    private Cursor queryDays(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    private int countDays(String locationSetting) {
+        Cursor cursor = queryDays(locationSetting);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testNewDaysAreInserted() throws Exception {
+        mSender.fullDay(mLocation, mToday, 21.5, 10.0)
+                .fullDay(mLocation, mToday + 1, 19.0, 9.5)
+                .fullDay(mLocation, mToday + 2, 18.0, 8.0)
+                .sendDelta();
+
+        assertEquals(3, countDays(mLocation));
+    }
+
+    public void testPartialDeltaUpdatesOnlyItsFields() throws Exception {
+        mSender.fullDay(mLocation, mToday, 21.5, 10.0)
+                .fullDay(mLocation, mToday + 1, 19.0, 9.5)
+                .sendDelta();
+
+        mSender.day(mLocation, mToday + 1, "max", 25.0, "main", "Clear").sendDelta();
+
+        Cursor cursor = queryDays(mLocation);
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: a day the delta left out was touched", 21.5, cursor.getDouble(0));
+        cursor.moveToNext();
+        assertEquals(25.0, cursor.getDouble(0));
+        assertEquals("Error: a field the delta left out was touched", 9.5, cursor.getDouble(1));
+        assertEquals("Clear", cursor.getString(2));
+        cursor.close();
+    }
+
+    public void testPartialDayThatIsNotStoredIsDropped() throws Exception {
+        mSender.day(mLocation, mToday, "max", 25.0).sendDelta();
+        assertEquals(0, countDays(mLocation));
+    }
+
+    public void testOnlySubscribedLocationsAreApplied() throws Exception {
+        mSender.fullDay(mLocation, mToday, 21.5, 10.0)
+                .fullDay(UNSUBSCRIBED_LOCATION, mToday, 21.5, 10.0)
+                .sendDelta();
+
+        assertEquals(1, countDays(mLocation));
+        assertEquals(0, countDays(UNSUBSCRIBED_LOCATION));
+    }
+
+    public void testMalformedDeltaChangesNothing() throws Exception {
+        mSender.fullDay(mLocation, mToday, 21.5, 10.0).sendDelta();
+        // the second day has no date, so the whole message is rejected
+        mSender.sendDelta("{\"locations\":[{\"location\":" + JSONObject.quote(mLocation)
+                + ",\"days\":[{\"day\":" + mToday + ",\"max\":30},{\"max\":31}]}]}");
+
+        Cursor cursor = queryDays(mLocation);
+        cursor.moveToFirst();
+        assertEquals(21.5, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    public void testOtherSendersAreIgnored() throws Exception {
+        Bundle data = new Bundle();
+        data.putString(MyGcmListenerService.EXTRA_TYPE, MyGcmListenerService.TYPE_FORECAST_DELTA);
+        data.putString(MyGcmListenerService.EXTRA_DELTA,
+                mSender.fullDay(mLocation, mToday, 21.5, 10.0).buildDelta());
+        mSender.send("not our server", data);
+
+        assertEquals(0, countDays(mLocation));
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.sunshine.app.sync;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Reference stand-in for the forecast aggregator.  Keeps a forecast per location in which
+    every day remembers the version it last changed in, and answers DeltaProtocol requests
+    with the days changed since the version the client holds.
+ */
+public class FakeAggregatorServer {
+
+    private static class Location {
+        long cityId;
+        String cityName;
+        double lat;
+        double lon;
+        long version;
+        final TreeMap<Integer, ForecastJsonParser.Day> days = new TreeMap<>();
+        final Map<Integer, Long> changedIn = new HashMap<>();
+    }
+
+    private final Map<String, Location> mLocations = new LinkedHashMap<>();
+    private final LocalHttpServer mServer;
+
+    public FakeAggregatorServer() throws IOException {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws IOException {
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                if (!"POST".equals(request.method)) {
+                    response.status = HttpURLConnection.HTTP_BAD_METHOD;
+                    return response;
+                }
+                response.header("Content-Type", DeltaProtocol.CONTENT_TYPE);
+                response.body = answer(request.body);
+                return response;
+            }
+        });
+    }
+
+    public String getUrl() {
+        return mServer.getUrl("/delta");
+    }
+
+    public LocalHttpServer getServer() {
+        return mServer;
+    }
+
+    public void shutdown() {
+        mServer.shutdown();
+    }
+
+    public synchronized void addLocation(String locationSetting, long cityId, String cityName,
+            double lat, double lon) {
+        Location location = new Location();
+        location.cityId = cityId;
+        location.cityName = cityName;
+        location.lat = lat;
+        location.lon = lon;
+        mLocations.put(locationSetting, location);
+    }
+
+    /*
+        Sets a day of a location's forecast, which makes a new version of it.
+     */
+    public synchronized long setDay(String locationSetting, int julianDay, double high,
+            double low, int weatherId) {
+        Location location = mLocations.get(locationSetting);
+        ForecastJsonParser.Day day = new ForecastJsonParser.Day();
+        day.high = high;
+        day.low = low;
+        day.weatherId = weatherId;
+        day.humidity = 60;
+        day.pressure = 1012.5;
+        day.windSpeed = 3.5;
+        day.windDirection = 180;
+        location.version++;
+        location.days.put(julianDay, day);
+        location.changedIn.put(julianDay, location.version);
+        return location.version;
+    }
+
+    public synchronized long getVersion(String locationSetting) {
+        return mLocations.get(locationSetting).version;
+    }
+
+    /*
+        Encodes the answer to one request.
+     */
+    synchronized byte[] answer(byte[] requestBody) throws IOException {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        int days = DeltaProtocol.decodeRequest(new ByteArrayInputStream(requestBody), versions);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeltaProtocol.Encoder encoder = new DeltaProtocol.Encoder(bytes);
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            Location location = mLocations.get(entry.getKey());
+            if (location == null) {
+                encoder.unknown(entry.getKey());
+                continue;
+            }
+            long held = entry.getValue();
+            if (held == location.version) {
+                encoder.unchanged(entry.getKey(), held);
+                continue;
+            }
+            Map<Integer, ForecastJsonParser.Day> changed = new TreeMap<>();
+            int firstDay = location.days.isEmpty() ? 0 : location.days.firstKey();
+            for (Map.Entry<Integer, ForecastJsonParser.Day> day : location.days.entrySet()) {
+                if (day.getKey() < firstDay + days && location.changedIn.get(day.getKey()) > held) {
+                    changed.put(day.getKey(), day.getValue());
+                }
+            }
+            encoder.changed(entry.getKey(), location.version, location.cityId,
+                    location.cityName, location.lat, location.lon, changed.size());
+            for (Map.Entry<Integer, ForecastJsonParser.Day> day : changed.entrySet()) {
+                encoder.day(day.getKey(), day.getValue());
+            }
+        }
+        encoder.finish();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+    Replays a recorded week of forecast releases and app usage against a SyncPolicy, the way
+    SyncScheduler would drive it on a device, and reports what it cost and how stale the
+    forecast was whenever somebody looked at it.
+
+    A release is a new forecast becoming available from the server: its time, what it costs to
+    download, and the share of the stored rows it changes.  A sync after which nothing new was
+    released costs only a 304 thanks to the conditional requests.
+ */
+public class SyncPolicySimulator {
+
+    static final long HOUR_IN_MILLIS = SyncPolicy.HOUR_IN_MILLIS;
+    static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // Typical wire size of a compressed 14 day response, and of a 304
+    static final long FORECAST_BYTES = 2100;
+    static final long NOT_MODIFIED_BYTES = 250;
+
+    static class Release {
+        final long availableAtMillis;
+        final long bytes;
+        final double changeRatio;
+
+        Release(long availableAtMillis, long bytes, double changeRatio) {
+            this.availableAtMillis = availableAtMillis;
+            this.bytes = bytes;
+            this.changeRatio = changeRatio;
+        }
+    }
+
+    static class Week {
+        long startMillis;
+        long endMillis;
+        long utcOffsetMillis;
+        boolean hasPassiveViewer;
+        final List<Release> releases = new ArrayList<>();
+        final List<Long> views = new ArrayList<>();
+    }
+
+    static class Report {
+        final String policy;
+        int syncs;
+        int notModified;
+        long bytes;
+        int views;
+        long totalStaleMillis;
+        long maxStaleMillis;
+
+        Report(String policy) {
+            this.policy = policy;
+        }
+
+        long getMeanStaleMinutes() {
+            return views == 0 ? 0 : totalStaleMillis / views / 60000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d syncs (%d not modified), %d bytes, " +
+                            "staleness at %d views mean %d min / max %d min",
+                    policy, syncs, notModified, bytes, views, getMeanStaleMinutes(),
+                    maxStaleMillis / 60000);
+        }
+    }
+
+    /*
+        A week in Mountain View (UTC-7): a release after every six-hourly model run, mostly
+        small revisions with a couple of fronts coming through, and someone opening the app
+        around breakfast, lunch and in the evening.
+     */
+    static Week createRecordedWeek(long startMillis) {
+        Week week = new Week();
+        week.startMillis = startMillis;
+        week.endMillis = startMillis + 7 * DAY_IN_MILLIS;
+        week.utcOffsetMillis = -7 * HOUR_IN_MILLIS;
+
+        Random random = new Random(5375480);
+        long release = AdaptiveSyncPolicy.getNextModelRunMillis(startMillis);
+        for (; release < week.endMillis; release += AdaptiveSyncPolicy.MODEL_RUN_PERIOD_MILLIS) {
+            // releases trickle out over the half hour after the nominal time
+            long jitter = (long) (random.nextDouble() * 30 * 60 * 1000);
+            boolean front = random.nextDouble() < 0.1;
+            double changeRatio = front ? 0.8 + 0.2 * random.nextDouble()
+                    : 0.05 + 0.25 * random.nextDouble();
+            week.releases.add(new Release(release + jitter,
+                    FORECAST_BYTES + random.nextInt(200), changeRatio));
+        }
+
+        // someone looks some time in the two hours from 7:00, 12:00 and 18:00 local time
+        long firstLocalMidnight = startMillis - week.utcOffsetMillis;
+        for (long day = firstLocalMidnight; day < week.endMillis; day += DAY_IN_MILLIS) {
+            for (long localHour : new long[]{7, 12, 18}) {
+                long view = day + localHour * HOUR_IN_MILLIS
+                        + (long) (random.nextDouble() * 2 * HOUR_IN_MILLIS);
+                if (view >= startMillis && view < week.endMillis) {
+                    week.views.add(view);
+                }
+            }
+        }
+        return week;
+    }
+
+    static Report run(String name, SyncPolicy policy, Week week) {
+        Report report = new Report(name);
+        SyncPolicy.Signals signals = new SyncPolicy.Signals();
+        signals.utcOffsetMillis = week.utcOffsetMillis;
+        signals.hasPassiveViewer = week.hasPassiveViewer;
+
+        int fetched = -1;
+        int nextView = 0;
+        long interval = 0;
+        long nextSync = week.startMillis;
+        while (true) {
+            long view = nextView < week.views.size() ? week.views.get(nextView) : Long.MAX_VALUE;
+            long now = Math.min(view, nextSync);
+            if (now >= week.endMillis) {
+                break;
+            }
+            signals.nowMillis = now;
+            int latest = getLatestRelease(week, now);
+
+            if (now == view) {
+                nextView++;
+                report.views++;
+                if (latest > fetched) {
+                    long stale = now - week.releases.get(fetched + 1).availableAtMillis;
+                    report.totalStaleMillis += stale;
+                    report.maxStaleMillis = Math.max(report.maxStaleMillis, stale);
+                }
+                // SyncScheduler.recordUsage syncs or reschedules when coming back after a while
+                boolean returning = now - signals.lastUsedMillis
+                        >= AdaptiveSyncPolicy.ACTIVE_WINDOW_MILLIS;
+                signals.lastUsedMillis = now;
+                if (returning) {
+                    long delay = policy.getNextSyncDelaySeconds(signals);
+                    if (delay == 0) {
+                        nextSync = now;
+                    } else if (Math.max(delay, AdaptiveSyncPolicy.MIN_INTERVAL_SECONDS) != interval) {
+                        interval = Math.max(delay, AdaptiveSyncPolicy.MIN_INTERVAL_SECONDS);
+                        nextSync = now + interval * 1000;
+                    }
+                }
+                continue;
+            }
+
+            report.syncs++;
+            double changeRatio = 0;
+            if (latest > fetched) {
+                double unchanged = 1;
+                for (int i = fetched + 1; i <= latest; i++) {
+                    unchanged *= 1 - week.releases.get(i).changeRatio;
+                }
+                changeRatio = 1 - unchanged;
+                report.bytes += week.releases.get(latest).bytes;
+                fetched = latest;
+            } else {
+                report.notModified++;
+                report.bytes += NOT_MODIFIED_BYTES;
+            }
+            signals.changeRatio += SyncScheduler.CHANGE_RATIO_WEIGHT
+                    * (changeRatio - signals.changeRatio);
+            signals.lastSyncMillis = now;
+            interval = Math.max(AdaptiveSyncPolicy.MIN_INTERVAL_SECONDS,
+                    policy.getNextSyncDelaySeconds(signals));
+            nextSync = now + interval * 1000;
+        }
+        return report;
+    }
+
+    private static int getLatestRelease(Week week, long now) {
+        int latest = -1;
+        while (latest + 1 < week.releases.size()
+                && week.releases.get(latest + 1).availableAtMillis <= now) {
+            latest++;
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+
+/*
+    Fixtures shared by the sync tests.  The forecast payloads mirror the shape of the
+    OpenWeatherMap forecast/daily response, including the fields we never read, so that
+    parse timings are representative of the real thing.
+ */
+public class SyncTestUtilities {
+    static final long TEST_CITY_ID = 5375480;
+    static final String TEST_CITY = "Mountain View";
+    static final double TEST_LAT = 37.3861;
+    static final double TEST_LON = -122.0839;
+
+    static String createForecastJson(int numDays) {
+        return createForecastJson(TEST_CITY_ID, TEST_CITY, numDays);
+    }
+
+    static String createForecastJson(long cityId, String cityName, int numDays) {
+        StringBuilder sb = new StringBuilder(600 * numDays);
+        sb.append("{\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"").append(cityName).append("\",")
+                .append("\"coord\":{\"lon\":").append(TEST_LON)
+                .append(",\"lat\":").append(TEST_LAT).append("},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,\"night\":%.2f," +
+                            "\"eve\":%.2f,\"morn\":%.2f},\"pressure\":%.2f,\"humidity\":%d," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\"," +
+                            "\"icon\":\"10d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":%d," +
+                            "\"rain\":%.2f}",
+                    1419120000L + i * 86400L, 18.5 + i, 12.25 + i, 21.75 + i, 13.0 + i,
+                    17.0 + i, 12.5 + i, 1012.5 + i, 60 + i,
+                    500 + i % 3, "Rain", "light rain",
+                    3.5 + 0.1 * i, 180 + i, 40 + i, 0.25 * i));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /*
+        A batch response: one complete forecast document per city, wrapped in a "list".
+     */
+    static String createGroupForecastJson(long[] cityIds, int numDays) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"cnt\":").append(cityIds.length).append(",\"list\":[");
+        for (int i = 0; i < cityIds.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(createForecastJson(cityIds[i], "City " + cityIds[i], numDays));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /*
+        A 3-hour forecast/ response: the list comes first and the city block last, as OWM
+        sends it.
+     */
+    static String createHourlyForecastJson(int numPeriods) {
+        StringBuilder sb = new StringBuilder(450 * numPeriods);
+        sb.append("{\"cod\":\"200\",\"message\":0.0036,\"cnt\":").append(numPeriods)
+                .append(",\"list\":[");
+        for (int i = 0; i < numPeriods; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"temp_min\":%.2f,\"temp_max\":%.2f," +
+                            "\"pressure\":%.2f,\"sea_level\":%.2f,\"grnd_level\":%.2f," +
+                            "\"humidity\":%d,\"temp_kf\":0}," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"%s\",\"description\":\"%s\"," +
+                            "\"icon\":\"10d\"}],\"clouds\":{\"all\":%d}," +
+                            "\"wind\":{\"speed\":%.2f,\"deg\":%.3f},\"rain\":{\"3h\":%.3f}," +
+                            "\"sys\":{\"pod\":\"d\"},\"dt_txt\":\"2014-12-21 00:00:00\"}",
+                    1419120000L + i * 10800L, 14.37 + 0.5 * i, 13.0 + i, 15.0 + i,
+                    1012.46 + 0.1 * i, 1030.0, 1012.46, 60 + i % 30,
+                    500 + i % 3, "Rain", "light rain",
+                    40 + i % 50, 3.56 + 0.1 * i, 180.5 + i, 0.125 * i));
+        }
+        sb.append("],\"city\":{\"id\":").append(TEST_CITY_ID)
+                .append(",\"name\":\"").append(TEST_CITY).append("\",")
+                .append("\"coord\":{\"lat\":").append(TEST_LAT)
+                .append(",\"lon\":").append(TEST_LON).append("},")
+                .append("\"country\":\"US\"}}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Fetches from the stand-in aggregator, and compares what the delta protocol costs in bytes
+    and decode time against the OWM JSON path.
+ */
+public class TestAggregatorFetch extends AndroidTestCase {
+    public static final String LOG_TAG = TestAggregatorFetch.class.getSimpleName();
+
+    private static final int NUM_DAYS = 14;
+    private static final int START_DAY = 2457650;
+    private static final String LOCATION = "94043";
+    private static final String OTHER_LOCATION = "Mountain View";
+
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    private FakeAggregatorServer mServer;
+
+    /*
+        Collects the days of every changed location, keyed by day index.
+     */
+    static class CollectingCallback implements DeltaProtocol.Callback {
+        final Map<String, Long> versions = new HashMap<>();
+        final Map<String, TreeMap<Integer, Double>> highs = new HashMap<>();
+        final Map<String, String> cityNames = new HashMap<>();
+        final Map<String, String> descriptions = new HashMap<>();
+        final Map<String, Boolean> unknown = new HashMap<>();
+
+        @Override
+        public ForecastJsonParser.Callback onChanged(final String locationSetting, long version) {
+            versions.put(locationSetting, version);
+            final TreeMap<Integer, Double> days = new TreeMap<>();
+            highs.put(locationSetting, days);
+            return new ForecastJsonParser.Callback() {
+                @Override
+                public void onLocation(long cityId, String cityName, double lat, double lon) {
+                    cityNames.put(locationSetting, cityName);
+                }
+
+                @Override
+                public void onDay(int index, ForecastJsonParser.Day day) {
+                    days.put(index, day.high);
+                    descriptions.put(locationSetting, day.description);
+                }
+            };
+        }
+
+        @Override
+        public void onUnchanged(String locationSetting, long version) {
+            versions.put(locationSetting, version);
+        }
+
+        @Override
+        public void onUnknown(String locationSetting) {
+            unknown.put(locationSetting, true);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAggregatorServer();
+        mServer.addLocation(LOCATION, SyncTestUtilities.TEST_CITY_ID, SyncTestUtilities.TEST_CITY,
+                SyncTestUtilities.TEST_LAT, SyncTestUtilities.TEST_LON);
+        mServer.addLocation(OTHER_LOCATION, SyncTestUtilities.TEST_CITY_ID,
+                SyncTestUtilities.TEST_CITY, SyncTestUtilities.TEST_LAT, SyncTestUtilities.TEST_LON);
+        for (int i = 0; i < NUM_DAYS; i++) {
+            mServer.setDay(LOCATION, START_DAY + i, 21.75 + i, 12.25 + i, 500 + i % 3);
+            mServer.setDay(OTHER_LOCATION, START_DAY + i, 21.75 + i, 12.25 + i, 500 + i % 3);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private CollectingCallback fetch(Map<String, Long> versions, int startDay) throws IOException {
+        CollectingCallback callback = new CollectingCallback();
+        AggregatorFetcher.Result result = AggregatorFetcher.fetch(new URL(mServer.getUrl()),
+                versions, NUM_DAYS, startDay, callback);
+        assertEquals(HttpURLConnection.HTTP_OK, result.messageCode);
+        return callback;
+    }
+
+    public void testFirstFetchIsWhole() throws Exception {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(LOCATION, 0L);
+        CollectingCallback callback = fetch(versions, START_DAY);
+
+        assertEquals(mServer.getVersion(LOCATION), (long) callback.versions.get(LOCATION));
+        assertEquals(SyncTestUtilities.TEST_CITY, callback.cityNames.get(LOCATION));
+        TreeMap<Integer, Double> days = callback.highs.get(LOCATION);
+        assertEquals(NUM_DAYS, days.size());
+        assertEquals(0, (int) days.firstKey());
+        assertEquals(21.75, days.get(0), 0.005);
+        assertEquals(21.75 + NUM_DAYS - 1, days.get(NUM_DAYS - 1), 0.005);
+    }
+
+    public void testOnlyChangedDaysComeBack() throws Exception {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(LOCATION, mServer.getVersion(LOCATION));
+        versions.put(OTHER_LOCATION, mServer.getVersion(OTHER_LOCATION));
+        mServer.setDay(LOCATION, START_DAY + 3, 30.5, 20.0, 800);
+
+        CollectingCallback callback = fetch(versions, START_DAY);
+
+        TreeMap<Integer, Double> days = callback.highs.get(LOCATION);
+        assertEquals(1, days.size());
+        assertEquals(30.5, days.get(3), 0.005);
+        assertEquals("Clear", callback.descriptions.get(LOCATION));
+        assertNull("Error: an unchanged location sent days", callback.highs.get(OTHER_LOCATION));
+        assertEquals(mServer.getVersion(OTHER_LOCATION),
+                (long) callback.versions.get(OTHER_LOCATION));
+    }
+
+    public void testPastDaysAreSkipped() throws Exception {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(LOCATION, 0L);
+        CollectingCallback callback = fetch(versions, START_DAY + 2);
+
+        TreeMap<Integer, Double> days = callback.highs.get(LOCATION);
+        assertEquals(NUM_DAYS - 2, days.size());
+        assertEquals(23.75, days.get(0), 0.005);
+    }
+
+    public void testUnknownLocation() throws Exception {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put("nowhere", 0L);
+        CollectingCallback callback = fetch(versions, START_DAY);
+        assertTrue(callback.unknown.containsKey("nowhere"));
+    }
+
+    public void testNotADeltaIsRejected() throws Exception {
+        byte[] json = SyncTestUtilities.createForecastJson(NUM_DAYS).getBytes("UTF-8");
+        try {
+            DeltaProtocol.decodeResponse(new ByteArrayInputStream(json), START_DAY,
+                    new CollectingCallback());
+            fail("Error: a JSON forecast was decoded as a delta");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    public void testTruncatedResponseIsRejected() throws Exception {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(LOCATION, 0L);
+        byte[] response = mServer.answer(DeltaProtocol.encodeRequest(versions, NUM_DAYS));
+        byte[] truncated = new byte[response.length - 1];
+        System.arraycopy(response, 0, truncated, 0, truncated.length);
+        try {
+            DeltaProtocol.decodeResponse(new ByteArrayInputStream(truncated), START_DAY,
+                    new CollectingCallback());
+            fail("Error: a truncated delta was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /*
+        Bytes and decode time of one location's forecast: the OWM JSON document against a
+        whole delta, as on the first sync, and a delta of one changed day, as on most syncs
+        after it.  Sizes are compared gzipped too, since both go over the wire compressed.
+        Results are logged; the assertions only guard against the delta losing its edge.
+     */
+    public void testBenchmarkAgainstJson() throws Exception {
+        byte[] json = SyncTestUtilities.createForecastJson(NUM_DAYS).getBytes("UTF-8");
+
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(LOCATION, 0L);
+        byte[] whole = mServer.answer(DeltaProtocol.encodeRequest(versions, NUM_DAYS));
+        versions.put(LOCATION, mServer.getVersion(LOCATION));
+        mServer.setDay(LOCATION, START_DAY + 5, 25.0, 15.0, 501);
+        byte[] oneDay = mServer.answer(DeltaProtocol.encodeRequest(versions, NUM_DAYS));
+
+        // warm up both paths so the JIT does not skew the first measurement
+        for (int i = 0; i < 20; i++) {
+            decodeJson(json);
+            decodeDelta(whole);
+        }
+        long jsonNanos = measure(json, false);
+        long wholeNanos = measure(whole, true);
+        long oneDayNanos = measure(oneDay, true);
+
+        Log.i(LOG_TAG, String.format("%d days: JSON %d bytes (%d gzipped) in %d us, " +
+                        "whole delta %d bytes (%d gzipped) in %d us, " +
+                        "one day delta %d bytes in %d us",
+                NUM_DAYS, json.length, gzippedSize(json), jsonNanos / 1000,
+                whole.length, gzippedSize(whole), wholeNanos / 1000,
+                oneDay.length, oneDayNanos / 1000));
+
+        assertEquals(NUM_DAYS, decodeDelta(whole));
+        assertEquals(1, decodeDelta(oneDay));
+        assertTrue("Error: a whole delta is not smaller than the JSON",
+                gzippedSize(whole) < gzippedSize(json));
+        assertTrue("Error: decoding a delta is slower than parsing the JSON",
+                wholeNanos < jsonNanos);
+    }
+
+    private static long measure(byte[] payload, boolean delta) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (delta) {
+                decodeDelta(payload);
+            } else {
+                decodeJson(payload);
+            }
+        }
+        return (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+    }
+
+    private static int decodeJson(byte[] payload) throws Exception {
+        TestForecastJsonParser.CountingCallback callback =
+                new TestForecastJsonParser.CountingCallback();
+        ForecastJsonParser.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(payload))), callback);
+        return callback.days;
+    }
+
+    private static int decodeDelta(byte[] payload) throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        DeltaProtocol.decodeResponse(new ByteArrayInputStream(payload), START_DAY, callback);
+        return callback.highs.get(LOCATION).size();
+    }
+
+    private static int gzippedSize(byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(payload);
+        gzip.close();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+public class TestCircuitBreaker extends AndroidTestCase {
+
+    private static final String HOST = "api.openweathermap.org";
+    private static final long BASE_BACKOFF_MILLIS = 400;
+
+    private CircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getSharedPreferences("circuit_breaker", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mBreaker = new CircuitBreaker(mContext, BASE_BACKOFF_MILLIS, 60 * 1000);
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        assertTrue(mBreaker.allowRequest(HOST));
+        mBreaker.recordFailure(HOST);
+        assertTrue("Error: one failure should not open the circuit", mBreaker.allowRequest(HOST));
+
+        mBreaker.recordFailure(HOST);
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState(HOST));
+        assertFalse(mBreaker.allowRequest(HOST));
+        assertTrue(mBreaker.getRetryAfterMillis(HOST) > 0);
+
+        // other endpoints are not affected
+        assertTrue(mBreaker.allowRequest("example.com"));
+    }
+
+    public void testSuccessResetsFailures() {
+        mBreaker.recordFailure(HOST);
+        mBreaker.recordSuccess(HOST);
+        mBreaker.recordFailure(HOST);
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(HOST));
+    }
+
+    public void testHalfOpenProbe() throws Exception {
+        mBreaker.recordFailure(HOST);
+        mBreaker.recordFailure(HOST);
+        Thread.sleep(BASE_BACKOFF_MILLIS + 50);
+
+        // exactly one probe once the backoff is over
+        assertTrue(mBreaker.allowRequest(HOST));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, mBreaker.getState(HOST));
+        assertFalse("Error: a second probe went out", mBreaker.allowRequest(HOST));
+
+        // a failed probe opens the circuit again, for longer
+        mBreaker.recordFailure(HOST);
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState(HOST));
+        assertTrue(mBreaker.getRetryAfterMillis(HOST) >= BASE_BACKOFF_MILLIS - 50);
+
+        Thread.sleep(2 * BASE_BACKOFF_MILLIS + 50);
+        assertTrue(mBreaker.allowRequest(HOST));
+        mBreaker.recordSuccess(HOST);
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(HOST));
+        assertTrue(mBreaker.allowRequest(HOST));
+    }
+
+    public void testStatePersists() {
+        mBreaker.recordFailure(HOST);
+        mBreaker.recordFailure(HOST);
+        CircuitBreaker restarted = new CircuitBreaker(mContext, BASE_BACKOFF_MILLIS, 60 * 1000);
+        assertFalse(restarted.allowRequest(HOST));
+    }
+
+    public void testBackoffIsJitteredAndCapped() {
+        for (int opens = 1; opens <= 30; opens++) {
+            long expected = Math.min(60 * 1000, BASE_BACKOFF_MILLIS << Math.min(opens - 1, 20));
+            long backoff = mBreaker.getBackoffMillis(opens);
+            assertTrue("Error: backoff " + backoff + " below half of " + expected,
+                    backoff >= expected / 2);
+            assertTrue("Error: backoff " + backoff + " above " + expected, backoff <= expected);
+        }
+    }
+}
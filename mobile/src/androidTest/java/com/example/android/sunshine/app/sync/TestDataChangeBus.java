@@ -0,0 +1,132 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestDataChangeBus extends AndroidTestCase {
+
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 400;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    static class CountingConsumer implements DataChangeBus.Consumer {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile int changes;
+        private final long mWorkMillis;
+
+        CountingConsumer(long workMillis) {
+            mWorkMillis = workMillis;
+        }
+
+        @Override
+        public void onDataChanged(int changes) {
+            SystemClock.sleep(mWorkMillis);
+            this.changes = changes;
+            calls.incrementAndGet();
+        }
+    }
+
+    static class LatchListener implements DataChangeBus.DispatchListener {
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        final AtomicLong millis = new AtomicLong();
+        final AtomicLong at = new AtomicLong();
+
+        @Override
+        public void onDispatched(int changes, int consumers, long dispatchMillis) {
+            // the first dispatch is the one the tests look at
+            if (at.compareAndSet(0, SystemClock.elapsedRealtime())) {
+                millis.set(dispatchMillis);
+            }
+            dispatched.countDown();
+        }
+    }
+
+    /*
+        A location change syncs new rows, and the units change right after: every consumer
+        should run once, seeing both changes, and only the consumers that care.
+     */
+    public void testBurstDispatchesEachConsumerOnce() throws InterruptedException {
+        DataChangeBus bus = new DataChangeBus(DEBOUNCE_MILLIS, MAX_DELAY_MILLIS);
+        CountingConsumer widgets = new CountingConsumer(0);
+        CountingConsumer wear = new CountingConsumer(0);
+        CountingConsumer muzei = new CountingConsumer(0);
+        CountingConsumer alert = new CountingConsumer(0);
+        bus.register("widgets", DataChangeBus.CHANGE_FORECAST | DataChangeBus.CHANGE_UNITS,
+                widgets);
+        bus.register("wear", DataChangeBus.CHANGE_FORECAST | DataChangeBus.CHANGE_UNITS, wear);
+        bus.register("muzei", DataChangeBus.CHANGE_FORECAST, muzei);
+        bus.register("alert", DataChangeBus.CHANGE_ALERT, alert);
+        LatchListener listener = new LatchListener();
+        bus.setDispatchListener(listener);
+
+        bus.post(DataChangeBus.CHANGE_FORECAST);
+        SystemClock.sleep(DEBOUNCE_MILLIS / 2);
+        bus.post(DataChangeBus.CHANGE_UNITS);
+        bus.post(DataChangeBus.CHANGE_FORECAST);
+
+        assertTrue(listener.dispatched.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        SystemClock.sleep(2 * DEBOUNCE_MILLIS);
+
+        assertEquals("Error: widgets rendered more than once", 1, widgets.calls.get());
+        assertEquals("Error: more than one push to Wear", 1, wear.calls.get());
+        assertEquals(1, muzei.calls.get());
+        assertEquals(0, alert.calls.get());
+        assertEquals(DataChangeBus.CHANGE_FORECAST | DataChangeBus.CHANGE_UNITS, widgets.changes);
+    }
+
+    public void testConsumersRunInParallelOffThePostingThread() throws InterruptedException {
+        DataChangeBus bus = new DataChangeBus(DEBOUNCE_MILLIS, MAX_DELAY_MILLIS);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final long workMillis = 300;
+        for (int i = 0; i < DataChangeBus.DISPATCH_THREADS; i++) {
+            bus.register("slow " + i, DataChangeBus.CHANGE_FORECAST, new DataChangeBus.Consumer() {
+                @Override
+                public void onDataChanged(int changes) {
+                    threads.add(Thread.currentThread());
+                    SystemClock.sleep(workMillis);
+                }
+            });
+        }
+        LatchListener listener = new LatchListener();
+        bus.setDispatchListener(listener);
+
+        long start = SystemClock.elapsedRealtime();
+        bus.post(DataChangeBus.CHANGE_FORECAST);
+        assertTrue("Error: post waited for the consumers",
+                SystemClock.elapsedRealtime() - start < DEBOUNCE_MILLIS);
+
+        assertTrue(listener.dispatched.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(DataChangeBus.DISPATCH_THREADS, threads.size());
+        assertFalse(threads.contains(Thread.currentThread()));
+        assertTrue("Error: consumers ran one after the other, took " + listener.millis.get()
+                + "ms", listener.millis.get() < 2 * workMillis);
+    }
+
+    public void testSteadyStreamStillDispatches() throws InterruptedException {
+        DataChangeBus bus = new DataChangeBus(DEBOUNCE_MILLIS, MAX_DELAY_MILLIS);
+        CountingConsumer widgets = new CountingConsumer(0);
+        bus.register("widgets", DataChangeBus.CHANGE_FORECAST, widgets);
+        LatchListener listener = new LatchListener();
+        bus.setDispatchListener(listener);
+
+        // events closer together than the debounce window, for longer than the cap
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 3 * MAX_DELAY_MILLIS / (DEBOUNCE_MILLIS / 2); i++) {
+            bus.post(DataChangeBus.CHANGE_FORECAST);
+            SystemClock.sleep(DEBOUNCE_MILLIS / 2);
+        }
+
+        assertTrue(listener.dispatched.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        long firstDispatch = listener.at.get() - start;
+        assertTrue("Error: first dispatch only after " + firstDispatch + "ms",
+                firstDispatch < MAX_DELAY_MILLIS + DEBOUNCE_MILLIS);
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherDbHelper;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestForecastArchive extends AndroidTestCase {
+
+    private static final int DAYS = 14;
+    private static final String OTHER_LOCATION = "archive London";
+
+    private String mLocation;
+    private ForecastArchive mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the database is rebuilt for the locations the app syncs
+        mLocation = Utility.getPreferredLocation(mContext);
+        mArchive = new ForecastArchive(mContext);
+        WeatherDbHelper.setRestorePending(mContext, false);
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mArchive.retain(Collections.<String>emptySet());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // Parses a response through a recorder, the way the sync does
+    private void archive(String locationSetting, boolean commit) throws Exception {
+        Reader in = new StringReader(SyncTestUtilities.createForecastJson(DAYS));
+        ForecastArchive.Recorder recorder = mArchive.record(locationSetting, in);
+        try {
+            ForecastJsonParser.parse(recorder, new ForecastPrefetcher.Prefetched(locationSetting));
+            if (commit) {
+                recorder.commit();
+            }
+        } finally {
+            recorder.abort();
+        }
+    }
+
+    // Upgrades the database the way a new version of the app would, then lets the sync
+    // layer refill it
+    private int upgradeAndCount() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            helper.onUpgrade(db, 1, 2);
+        } finally {
+            db.close();
+        }
+        assertTrue("Error: the upgrade did not ask for a restore",
+                WeatherDbHelper.isRestorePending(mContext));
+        mArchive.restoreIfPending();
+        assertFalse(WeatherDbHelper.isRestorePending(mContext));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(mLocation),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testOnlyCommittedResponsesAreKept() throws Exception {
+        archive(OTHER_LOCATION, false);
+        assertFalse(mArchive.getFile(OTHER_LOCATION).exists());
+
+        archive(OTHER_LOCATION, true);
+        File file = mArchive.getFile(OTHER_LOCATION);
+        assertTrue(file.exists());
+        assertTrue("Error: the archive is not compressed, " + file.length() + " bytes",
+                file.length() < SyncTestUtilities.createForecastJson(DAYS).length());
+
+        // no temporary files left behind
+        assertEquals(1, file.getParentFile().listFiles().length);
+    }
+
+    public void testUpgradeRestoresWithoutNetwork() throws Exception {
+        archive(mLocation, true);
+        assertEquals("Error: the archived forecast did not survive the upgrade",
+                DAYS, upgradeAndCount());
+    }
+
+    public void testRestoreLeavesOutPastDays() throws Exception {
+        archive(mLocation, true);
+        File file = mArchive.getFile(mLocation);
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 3 * DateUtils.DAY_IN_MILLIS));
+
+        assertEquals(DAYS - 3, upgradeAndCount());
+    }
+
+    public void testNothingRestoredUnlessPending() throws Exception {
+        archive(mLocation, true);
+        assertEquals(0, mArchive.restoreIfPending());
+    }
+
+    public void testRetainDropsOtherLocations() throws Exception {
+        archive(mLocation, true);
+        archive(OTHER_LOCATION, true);
+
+        Set<String> kept = new HashSet<>();
+        kept.add(mLocation);
+        mArchive.retain(kept);
+
+        assertTrue(mArchive.getFile(mLocation).exists());
+        assertFalse(mArchive.getFile(OTHER_LOCATION).exists());
+    }
+
+    /*
+        A sync that timed out may leave a worker still recording; its response must survive
+        the sync after it.  Temporary files from a process that died are cleaned up.
+     */
+    public void testRetainSkipsResponsesBeingRecorded() throws Exception {
+        ForecastArchive.Recorder recorder = mArchive.record(OTHER_LOCATION,
+                new StringReader(SyncTestUtilities.createForecastJson(DAYS)));
+        File directory = mArchive.getFile(OTHER_LOCATION).getParentFile();
+        File stale = File.createTempFile("response", ".tmp", directory);
+        assertTrue(stale.setLastModified(
+                System.currentTimeMillis() - 2 * ForecastArchive.STALE_TEMP_MILLIS));
+        try {
+            mArchive.retain(Collections.<String>emptySet());
+            assertFalse("Error: a stale temporary file was kept", stale.exists());
+
+            ForecastJsonParser.parse(recorder, new ForecastPrefetcher.Prefetched(OTHER_LOCATION));
+            recorder.commit();
+        } finally {
+            recorder.abort();
+        }
+        assertTrue(mArchive.getFile(OTHER_LOCATION).exists());
+    }
+}
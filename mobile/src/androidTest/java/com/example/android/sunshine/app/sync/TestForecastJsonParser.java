@@ -0,0 +1,259 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+
+public class TestForecastJsonParser extends AndroidTestCase {
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    static class CountingCallback implements ForecastJsonParser.Callback {
+        long cityId;
+        String cityName;
+        double lat;
+        double lon;
+        int days;
+        double lastHigh;
+        boolean dayBeforeLocation;
+
+        @Override
+        public void onLocation(long cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.Day day) {
+            if (cityName == null) dayBeforeLocation = true;
+            assertEquals("Error: days delivered out of order", days, index);
+            lastHigh = day.high;
+            days++;
+        }
+    }
+
+    public void testParseForecast() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        int code = ForecastJsonParser.parse(
+                new StringReader(SyncTestUtilities.createForecastJson(14)), callback);
+
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(SyncTestUtilities.TEST_CITY_ID, callback.cityId);
+        assertEquals(SyncTestUtilities.TEST_CITY, callback.cityName);
+        assertEquals(SyncTestUtilities.TEST_LAT, callback.lat, 0.0001);
+        assertEquals(SyncTestUtilities.TEST_LON, callback.lon, 0.0001);
+        assertEquals(14, callback.days);
+        assertEquals(21.75 + 13, callback.lastHigh, 0.001);
+    }
+
+    public void testListBeforeCity() throws Exception {
+        String json = "{\"list\":[{\"temp\":{\"min\":1,\"max\":2},\"pressure\":1000," +
+                "\"humidity\":50,\"weather\":[{\"id\":800,\"main\":\"Clear\"}]," +
+                "\"speed\":1,\"deg\":90}]," +
+                "\"city\":{\"name\":\"North Pole\",\"coord\":{\"lat\":64.7,\"lon\":-147.3}}}";
+        CountingCallback callback = new CountingCallback();
+        ForecastJsonParser.parse(new StringReader(json), callback);
+
+        assertFalse("Error: day delivered before the location", callback.dayBeforeLocation);
+        assertEquals(1, callback.days);
+    }
+
+    /*
+        A day missing any measurement is rejected rather than stored as zeros.
+     */
+    public void testMissingDayField() throws Exception {
+        String[] fields = {"\"pressure\":1000,", "\"humidity\":50,", "\"speed\":1,",
+                "\"deg\":90,", "\"min\":1,", "\"max\":2,"};
+        for (String field : fields) {
+            String day = "{\"temp\":{\"min\":1,\"max\":2,\"day\":1},\"pressure\":1000," +
+                    "\"humidity\":50,\"speed\":1,\"deg\":90," +
+                    "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}";
+            String json = "{\"city\":{\"name\":\"North Pole\"," +
+                    "\"coord\":{\"lat\":64.7,\"lon\":-147.3}},\"list\":[" +
+                    day.replace(field, "") + "]}";
+            try {
+                ForecastJsonParser.parse(new StringReader(json), new CountingCallback());
+                fail("Error: a day without " + field + " was parsed");
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    /*
+        Likewise a 3-hour period missing any measurement.
+     */
+    public void testMissingHourField() throws Exception {
+        String[] fields = {"\"temp\":14.37,", "\"pressure\":1012.46,", "\"humidity\":60,",
+                "\"speed\":3.56,", "\"deg\":180.5,"};
+        for (String field : fields) {
+            String hour = "{\"dt\":1419120000,\"main\":{\"temp\":14.37," +
+                    "\"pressure\":1012.46,\"humidity\":60,\"temp_kf\":0}," +
+                    "\"weather\":[{\"id\":500,\"main\":\"Rain\"}]," +
+                    "\"wind\":{\"speed\":3.56,\"deg\":180.5,\"gust\":5}}";
+            String json = "{\"list\":[" + hour.replace(field, "") + "]," +
+                    "\"city\":{\"name\":\"North Pole\"," +
+                    "\"coord\":{\"lat\":64.7,\"lon\":-147.3}}}";
+            try {
+                ForecastJsonParser.parseHourly(new StringReader(json),
+                        new ForecastJsonParser.HourlyCallback() {
+                            @Override
+                            public void onLocation(long cityId, String cityName, double lat,
+                                                   double lon) {
+                            }
+
+                            @Override
+                            public void onHour(int index, ForecastJsonParser.Hour hour) {
+                            }
+                        });
+                fail("Error: a period without " + field + " was parsed");
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    public void testParseHourlyForecast() throws Exception {
+        final long[] times = new long[40];
+        final double[] temperatures = new double[40];
+        final int[] weatherIds = new int[40];
+        final long[] cityId = new long[1];
+        int code = ForecastJsonParser.parseHourly(
+                new StringReader(SyncTestUtilities.createHourlyForecastJson(40)),
+                new ForecastJsonParser.HourlyCallback() {
+                    @Override
+                    public void onLocation(long id, String cityName, double lat, double lon) {
+                        cityId[0] = id;
+                    }
+
+                    @Override
+                    public void onHour(int index, ForecastJsonParser.Hour hour) {
+                        times[index] = hour.time;
+                        temperatures[index] = hour.temperature;
+                        weatherIds[index] = hour.weatherId;
+                    }
+                });
+
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(SyncTestUtilities.TEST_CITY_ID, cityId[0]);
+        assertEquals(1419120000L, times[0]);
+        assertEquals(1419120000L + 39 * 10800L, times[39]);
+        assertEquals(14.37 + 0.5 * 39, temperatures[39], 0.001);
+        assertEquals(500, weatherIds[0]);
+    }
+
+    public void testErrorCode() throws Exception {
+        String json = "{\"cod\":\"404\",\"message\":\"city not found\"}";
+        int code = ForecastJsonParser.parse(new StringReader(json), new CountingCallback());
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, code);
+    }
+
+    public void testMalformed() throws Exception {
+        try {
+            ForecastJsonParser.parse(new StringReader("{\"city\":{\"name\":"),
+                    new CountingCallback());
+            fail("Error: truncated response should not parse");
+        } catch (JSONException | IOException expected) {
+        }
+    }
+
+    /*
+        Compares the old path (read the body into a StringBuffer, build a JSONObject tree,
+        then copy fields out) against the streaming parser on 14 and 16 day payloads.  This
+        runs on the device rather than the JVM because android.util.JsonReader only exists in
+        the framework.  Results are logged; the assertion only guards against the streaming
+        path regressing to more allocation than the DOM path.
+     */
+    public void testBenchmarkAgainstDom() throws Exception {
+        for (int numDays : new int[]{14, 16}) {
+            byte[] payload = SyncTestUtilities.createForecastJson(numDays).getBytes("UTF-8");
+
+            // warm up both paths so the JIT does not skew the first measurement
+            for (int i = 0; i < 20; i++) {
+                parseDom(payload);
+                parseStreaming(payload);
+            }
+
+            long[] dom = measure(payload, false);
+            long[] streaming = measure(payload, true);
+
+            Log.i(LOG_TAG, String.format("%d days: DOM %d us / %d bytes per parse, " +
+                            "streaming %d us / %d bytes per parse",
+                    numDays, dom[0] / 1000, dom[1], streaming[0] / 1000, streaming[1]));
+
+            assertTrue("Error: streaming parser allocated more than the DOM path",
+                    streaming[1] <= dom[1]);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private long[] measure(byte[] payload, boolean streaming) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (streaming) {
+                parseStreaming(payload);
+            } else {
+                parseDom(payload);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return new long[]{elapsed / BENCHMARK_ITERATIONS, allocated / BENCHMARK_ITERATIONS};
+    }
+
+    private static int parseStreaming(byte[] payload) throws Exception {
+        CountingCallback callback = new CountingCallback();
+        ForecastJsonParser.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(payload))), callback);
+        return callback.days;
+    }
+
+    private static int parseDom(byte[] payload) throws Exception {
+        InputStream inputStream = new ByteArrayInputStream(payload);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        cityJson.getJSONObject("coord").getDouble("lat");
+
+        int days = 0;
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            dayForecast.getDouble("pressure");
+            dayForecast.getInt("humidity");
+            dayForecast.getDouble("speed");
+            dayForecast.getDouble("deg");
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            weatherObject.getString("main");
+            weatherObject.getInt("id");
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            temperatureObject.getDouble("max");
+            temperatureObject.getDouble("min");
+            days++;
+        }
+        return days;
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    The writes of one location's forecast go to the provider as one batch: the location row,
+    the weather rows tied to it by a back reference, and the pruning.  Observers of either
+    table hear of it once, however many of the writes touch it, and not at all when nothing
+    changed.
+ */
+public class TestForecastOperations extends AndroidTestCase {
+
+    private static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    private static final int DAYS = 14;
+    private static final String LOCATION = "94043";
+    private static final long NOTIFICATION_WAIT_MILLIS = 500;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // the location is filled in by the back reference
+    private static WeatherBatch createBatch(double high) {
+        return TestUtilities.createWeatherBatch(0, FIRST_DAY, DAYS, high);
+    }
+
+    private static ContentValues createLocationValues() {
+        return SunshineSyncAdapter.buildLocationValues(LOCATION, SyncTestUtilities.TEST_CITY_ID,
+                SyncTestUtilities.TEST_CITY, SyncTestUtilities.TEST_LAT,
+                SyncTestUtilities.TEST_LON);
+    }
+
+    /*
+        Applies one forecast of the location, pruning the day before FIRST_DAY.
+
+        @return the notifications of the weather and of the location table
+     */
+    private int[] store(WeatherBatch batch) throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                SunshineSyncAdapter.buildForecastOperations(createLocationValues(), batch,
+                        FIRST_DAY - DateUtils.DAY_IN_MILLIS);
+        TestUtilities.TestContentObserver weather = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver location = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weather);
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                location);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            return new int[]{weather.countNotifications(NOTIFICATION_WAIT_MILLIS),
+                    location.countNotifications(0)};
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(weather);
+            mContext.getContentResolver().unregisterContentObserver(location);
+        }
+    }
+
+    // the location is filled in by the back reference
+    private static List<ContentValues> createPeriods(long firstTime, int count) {
+        List<ContentValues> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(HourlyEntry.COLUMN_TIME, firstTime + i * 3 * 60 * 60);
+            values.put(HourlyEntry.COLUMN_WEATHER_ID, 800);
+            values.put(HourlyEntry.COLUMN_TEMP, HourlyEntry.quantize(21.5));
+            values.put(HourlyEntry.COLUMN_HUMIDITY, 50);
+            values.put(HourlyEntry.COLUMN_PRESSURE, HourlyEntry.quantize(1010));
+            values.put(HourlyEntry.COLUMN_WIND_SPEED, HourlyEntry.quantize(2));
+            values.put(HourlyEntry.COLUMN_DEGREES, 90);
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    private int countPeriods() {
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(LOCATION), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private int countDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testFirstSyncNotifiesEachTableOnce() throws Exception {
+        int[] notifications = store(createBatch(21.5));
+        assertEquals("Error: weather observers notified " + notifications[0] + " times",
+                1, notifications[0]);
+        assertEquals("Error: location observers notified " + notifications[1] + " times",
+                1, notifications[1]);
+        assertEquals("Error: the rows were not tied to the new location", DAYS, countDays());
+    }
+
+    public void testUnchangedSyncNotifiesNothing() throws Exception {
+        store(createBatch(21.5));
+        int[] notifications = store(createBatch(21.5));
+        assertEquals(0, notifications[0]);
+        assertEquals(0, notifications[1]);
+    }
+
+    public void testChangeAndPruneNotifyOnce() throws Exception {
+        store(createBatch(21.5));
+        // a day that is over by the next sync
+        long locationId = SunshineSyncAdapter.addLocation(mContext, LOCATION,
+                SyncTestUtilities.TEST_CITY_ID, SyncTestUtilities.TEST_CITY,
+                SyncTestUtilities.TEST_LAT, SyncTestUtilities.TEST_LON);
+        WeatherBatch stale = new WeatherBatch(1);
+        stale.add(locationId, FIRST_DAY - 2 * DateUtils.DAY_IN_MILLIS, 800, "Clear", 10, 20, 50,
+                1010, 2, 90);
+        Bundle extras = new Bundle();
+        extras.putByteArray(WeatherContract.EXTRA_BATCH, stale.toBytes());
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_INSERT_WEATHER_BATCH, null, extras);
+        assertEquals(DAYS + 1, countDays());
+
+        int[] notifications = store(createBatch(22.5));
+        assertEquals(1, notifications[0]);
+        assertEquals(0, notifications[1]);
+        assertEquals("Error: the day that is over was not pruned", DAYS, countDays());
+    }
+
+    /*
+        The 3-hour periods go the same way: one notification of the hourly table for the
+        location, every period and the pruning of the ones that are over.
+     */
+    public void testHourlyForecastNotifiesOnce() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        long pruneBefore = now - 3 * 60 * 60;
+        List<ContentValues> over = createPeriods(pruneBefore - 6 * 60 * 60, 2);
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                SunshineSyncAdapter.buildHourlyOperations(createLocationValues(), over, 0));
+        assertEquals(2, countPeriods());
+
+        TestUtilities.TestContentObserver hourly = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HourlyEntry.CONTENT_URI, true,
+                hourly);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    SunshineSyncAdapter.buildHourlyOperations(createLocationValues(),
+                            createPeriods(now, 8), pruneBefore));
+            assertEquals(1, hourly.countNotifications(NOTIFICATION_WAIT_MILLIS));
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(hourly);
+        }
+        assertEquals("Error: the periods that are over were not pruned", 8, countPeriods());
+    }
+}
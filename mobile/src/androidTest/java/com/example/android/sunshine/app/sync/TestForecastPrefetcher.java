@@ -0,0 +1,150 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Drives the prefetcher with a loader that answers from memory, so the debounce, the side
+    cache and the promotion into the database can be checked without a network.
+ */
+public class TestForecastPrefetcher extends AndroidTestCase {
+
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final String LOCATION = "prefetch 94043";
+    private static final String OTHER_LOCATION = "prefetch London";
+    private static final int DAYS = 7;
+
+    private final List<String> mLoaded = new ArrayList<>();
+    private final ForecastPrefetcher.Loader mLoader = new ForecastPrefetcher.Loader() {
+        @Override
+        public ForecastPrefetcher.Prefetched load(String locationSetting) {
+            synchronized (mLoaded) {
+                mLoaded.add(locationSetting);
+            }
+            ForecastPrefetcher.Prefetched prefetched =
+                    new ForecastPrefetcher.Prefetched(locationSetting);
+            prefetched.onLocation(0, locationSetting, 37.4, -122.1);
+            ForecastJsonParser.Day day = new ForecastJsonParser.Day();
+            for (int i = 0; i < DAYS; i++) {
+                day.high = 20 + i;
+                day.low = 10 + i;
+                day.description = "Clear";
+                day.weatherId = 800;
+                prefetched.onDay(i, day);
+            }
+            return prefetched;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private List<String> getLoaded() {
+        synchronized (mLoaded) {
+            return new ArrayList<>(mLoaded);
+        }
+    }
+
+    // Waits out the debounce and whatever load it started
+    private void settle(ForecastPrefetcher prefetcher) throws Exception {
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        prefetcher.size();
+    }
+
+    private int countRows(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testTypingFetchesOnlyWhereItPauses() throws Exception {
+        ForecastPrefetcher prefetcher = new ForecastPrefetcher(mContext, mLoader, DEBOUNCE_MILLIS);
+        for (int i = 2; i <= LOCATION.length(); i++) {
+            prefetcher.onCandidate(LOCATION.substring(0, i));
+        }
+        settle(prefetcher);
+
+        assertEquals(1, getLoaded().size());
+        assertEquals(LOCATION, getLoaded().get(0));
+        assertEquals(1, prefetcher.size());
+
+        // pausing again on the same text does not fetch it twice
+        prefetcher.onCandidate(LOCATION);
+        settle(prefetcher);
+        assertEquals(1, getLoaded().size());
+    }
+
+    public void testCommittedCandidateIsPromoted() throws Exception {
+        SyncStats stats = new SyncStats(mContext);
+        long hits = stats.get(SyncStats.PREFETCH_HITS);
+        ForecastPrefetcher prefetcher = new ForecastPrefetcher(mContext, mLoader, DEBOUNCE_MILLIS);
+        prefetcher.onCandidate(OTHER_LOCATION);
+        settle(prefetcher);
+        prefetcher.onCandidate(LOCATION);
+        settle(prefetcher);
+        assertEquals(2, prefetcher.size());
+
+        assertTrue(prefetcher.promote(LOCATION).get(5, TimeUnit.SECONDS));
+
+        assertEquals(DAYS, countRows(LOCATION));
+        assertEquals("Error: an abandoned candidate reached the database",
+                0, countRows(OTHER_LOCATION));
+        assertEquals("Error: the abandoned candidate was kept", 0, prefetcher.size());
+        assertEquals(hits + 1, stats.get(SyncStats.PREFETCH_HITS));
+    }
+
+    public void testCommitBeforePauseIsAMiss() throws Exception {
+        SyncStats stats = new SyncStats(mContext);
+        long misses = stats.get(SyncStats.PREFETCH_MISSES);
+        ForecastPrefetcher prefetcher = new ForecastPrefetcher(mContext, mLoader, DEBOUNCE_MILLIS);
+        prefetcher.onCandidate(LOCATION);
+
+        assertFalse(prefetcher.promote(LOCATION).get(5, TimeUnit.SECONDS));
+        settle(prefetcher);
+
+        assertTrue("Error: the candidate was fetched after the commit", getLoaded().isEmpty());
+        assertEquals(0, countRows(LOCATION));
+        assertEquals(misses + 1, stats.get(SyncStats.PREFETCH_MISSES));
+    }
+
+    public void testSideCacheIsBounded() throws Exception {
+        SyncStats stats = new SyncStats(mContext);
+        long discarded = stats.get(SyncStats.PREFETCH_DISCARDED);
+        ForecastPrefetcher prefetcher = new ForecastPrefetcher(mContext, mLoader, DEBOUNCE_MILLIS);
+        int candidates = ForecastPrefetcher.MAX_ENTRIES + 2;
+        for (int i = 0; i < candidates; i++) {
+            prefetcher.onCandidate(LOCATION + i);
+            settle(prefetcher);
+        }
+        assertEquals(candidates, getLoaded().size());
+        assertEquals(ForecastPrefetcher.MAX_ENTRIES, prefetcher.size());
+
+        prefetcher.discard();
+        assertEquals(0, prefetcher.size());
+        assertEquals(discarded + candidates, stats.get(SyncStats.PREFETCH_DISCARDED));
+    }
+}
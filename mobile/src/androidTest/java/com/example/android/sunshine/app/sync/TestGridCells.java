@@ -0,0 +1,73 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestGridCells extends AndroidTestCase {
+
+    // Mountain View, a postal code resolved to the same city, a point 1 km away and
+    // San Francisco
+    private static final double[] MOUNTAIN_VIEW = {37.3861, -122.0839};
+    private static final double[] MOUNTAIN_VIEW_94043 = {37.3861, -122.0839};
+    private static final double[] NEARBY = {37.3950, -122.0839};
+    private static final double[] SAN_FRANCISCO = {37.7749, -122.4194};
+
+    public void testSameCitySharesCell() {
+        assertEquals(GridCells.cellOf(MOUNTAIN_VIEW[0], MOUNTAIN_VIEW[1]),
+                GridCells.cellOf(MOUNTAIN_VIEW_94043[0], MOUNTAIN_VIEW_94043[1]));
+        assertFalse(GridCells.cellOf(MOUNTAIN_VIEW[0], MOUNTAIN_VIEW[1]).equals(
+                GridCells.cellOf(SAN_FRANCISCO[0], SAN_FRANCISCO[1])));
+    }
+
+    /*
+        Cells are about as wide as they are high at any latitude: far north a degree of
+        longitude is short, so more of them fit in a cell.
+     */
+    public void testCellsWidenTowardsThePoles() {
+        double lon = 10.4;
+        double step = 0.2;
+        assertFalse("Error: cells near the equator are too wide",
+                GridCells.cellOf(0.01, lon).equals(GridCells.cellOf(0.01, lon + step)));
+        assertEquals("Error: cells near the pole are too narrow",
+                GridCells.cellOf(80.01, lon), GridCells.cellOf(80.01, lon + step));
+    }
+
+    public void testNegativeCoordinates() {
+        assertFalse(GridCells.cellOf(-0.01, -0.01).equals(GridCells.cellOf(0.01, 0.01)));
+        assertEquals(GridCells.cellOf(-33.8688, 151.2093), GridCells.cellOf(-33.8690, 151.2090));
+    }
+
+    public void testBucketKeepsSyncOrder() {
+        Map<String, double[]> coordinates = new LinkedHashMap<>();
+        coordinates.put("94043", MOUNTAIN_VIEW_94043);
+        coordinates.put("San Francisco", SAN_FRANCISCO);
+        coordinates.put("Mountain View", MOUNTAIN_VIEW);
+        coordinates.put("Nearby", NEARBY);
+
+        Map<String, List<String>> cells = GridCells.bucket(coordinates);
+
+        List<String> first = cells.values().iterator().next();
+        assertEquals("94043", first.get(0));
+        assertTrue(first.contains("Mountain View"));
+        assertTrue(first.contains("Nearby"));
+        int locations = 0;
+        for (List<String> members : cells.values()) {
+            locations += members.size();
+        }
+        assertEquals(coordinates.size(), locations);
+        assertEquals(2, cells.size());
+    }
+
+    public void testCacheExpires() throws InterruptedException {
+        GridCells.Cache<String> cache = new GridCells.Cache<>(100);
+        cache.put("a", "forecast");
+        assertEquals("forecast", cache.get("a"));
+        assertNull(cache.get("b"));
+
+        Thread.sleep(150);
+        assertNull("Error: an expired cell stood in for a fetch", cache.get("a"));
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Compares one sync cycle done as N single-city requests against the same cycle done through
+    the group endpoint, both served by a local stand-in, and checks that the batch response is
+    split back into the right per-city forecasts.
+ */
+public class TestGroupForecastFetch extends AndroidTestCase {
+    public static final String LOG_TAG = TestGroupForecastFetch.class.getSimpleName();
+
+    private static final int NUM_CITIES = 25;
+    private static final int NUM_DAYS = 14;
+
+    private LocalHttpServer mServer;
+    private long[] mCityIds;
+
+    /*
+        Collects the days of every city in a group response, keyed by the city id reported
+        inside each forecast.
+     */
+    static class DemuxCallback implements ForecastJsonParser.GroupCallback {
+        final Map<Long, TestForecastJsonParser.CountingCallback> cities = new HashMap<>();
+        final List<Integer> codes = new ArrayList<>();
+        private TestForecastJsonParser.CountingCallback mCurrent;
+
+        @Override
+        public ForecastJsonParser.Callback onForecastStart(int index) {
+            mCurrent = new TestForecastJsonParser.CountingCallback();
+            return mCurrent;
+        }
+
+        @Override
+        public void onForecastEnd(int index, int messageCode) {
+            codes.add(messageCode);
+            cities.put(mCurrent.cityId, mCurrent);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCityIds = new long[NUM_CITIES];
+        for (int i = 0; i < NUM_CITIES; i++) {
+            mCityIds[i] = SyncTestUtilities.TEST_CITY_ID + i;
+        }
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws IOException {
+                Uri uri = Uri.parse(request.path);
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                response.header("Content-Type", "application/json; charset=utf-8");
+                String ids = uri.getQueryParameter("id");
+                String json;
+                if (uri.getPath().startsWith("/group")) {
+                    String[] split = ids.split(",");
+                    long[] cityIds = new long[split.length];
+                    for (int i = 0; i < split.length; i++) {
+                        cityIds[i] = Long.parseLong(split[i]);
+                    }
+                    json = SyncTestUtilities.createGroupForecastJson(cityIds, NUM_DAYS);
+                } else {
+                    long cityId = Long.parseLong(ids);
+                    json = SyncTestUtilities.createForecastJson(cityId, "City " + cityId, NUM_DAYS);
+                }
+                response.body = json.getBytes("UTF-8");
+                return response;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testChunk() {
+        List<Long> ids = new ArrayList<>();
+        for (long id : mCityIds) ids.add(id);
+
+        List<List<Long>> chunks = GroupForecastFetcher.chunk(ids);
+        assertEquals(2, chunks.size());
+        assertEquals(GroupForecastFetcher.MAX_IDS_PER_REQUEST, chunks.get(0).size());
+        assertEquals(NUM_CITIES - GroupForecastFetcher.MAX_IDS_PER_REQUEST, chunks.get(1).size());
+        assertEquals(ids.get(GroupForecastFetcher.MAX_IDS_PER_REQUEST), chunks.get(1).get(0));
+    }
+
+    public void testParseGroup() throws Exception {
+        DemuxCallback callback = new DemuxCallback();
+        int code = ForecastJsonParser.parseGroup(new StringReader(
+                SyncTestUtilities.createGroupForecastJson(new long[]{1, 2, 3}, NUM_DAYS)), callback);
+
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(3, callback.cities.size());
+        for (long id = 1; id <= 3; id++) {
+            TestForecastJsonParser.CountingCallback city = callback.cities.get(id);
+            assertNotNull("Error: no forecast for city " + id, city);
+            assertEquals("City " + id, city.cityName);
+            assertEquals(NUM_DAYS, city.days);
+        }
+    }
+
+    public void testGroupAgainstSingleRequests() throws Exception {
+        // one request per city, the way the adapter fetched before
+        int requestsBefore = mServer.getRequestCount();
+        long bytesBefore = mServer.getBodyBytes();
+        for (long cityId : mCityIds) {
+            URL url = new URL(mServer.getUrl("/daily?id=" + cityId));
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            HttpResponseBody body = HttpResponseBody.open(conn);
+            try {
+                TestForecastJsonParser.CountingCallback callback =
+                        new TestForecastJsonParser.CountingCallback();
+                ForecastJsonParser.parse(body.getReader(), callback);
+                assertEquals(cityId, callback.cityId);
+            } finally {
+                body.close();
+                conn.disconnect();
+            }
+        }
+        int singleRequests = mServer.getRequestCount() - requestsBefore;
+        long singleBytes = mServer.getBodyBytes() - bytesBefore;
+
+        // the same cycle through the group endpoint
+        requestsBefore = mServer.getRequestCount();
+        bytesBefore = mServer.getBodyBytes();
+        List<Long> ids = new ArrayList<>();
+        for (long id : mCityIds) ids.add(id);
+        DemuxCallback callback = new DemuxCallback();
+        for (List<Long> chunk : GroupForecastFetcher.chunk(ids)) {
+            Uri uri = GroupForecastFetcher.buildUri(mServer.getUrl("/group"), chunk,
+                    "metric", NUM_DAYS, "test");
+            GroupForecastFetcher.Result result =
+                    GroupForecastFetcher.fetch(new URL(uri.toString()), callback);
+            assertEquals(HttpURLConnection.HTTP_OK, result.messageCode);
+            assertTrue(result.wireBytes > 0);
+        }
+        int groupRequests = mServer.getRequestCount() - requestsBefore;
+        long groupBytes = mServer.getBodyBytes() - bytesBefore;
+
+        Log.i(LOG_TAG, String.format("%d cities: %d single requests / %d bytes, " +
+                        "%d group requests / %d bytes",
+                NUM_CITIES, singleRequests, singleBytes, groupRequests, groupBytes));
+
+        assertEquals(NUM_CITIES, singleRequests);
+        int expectedGroups = (NUM_CITIES + GroupForecastFetcher.MAX_IDS_PER_REQUEST - 1)
+                / GroupForecastFetcher.MAX_IDS_PER_REQUEST;
+        assertEquals(expectedGroups, groupRequests);
+
+        // every city came back exactly once with all of its days
+        assertEquals(NUM_CITIES, callback.cities.size());
+        for (long cityId : mCityIds) {
+            assertEquals(NUM_DAYS, callback.cities.get(cityId).days);
+        }
+    }
+}
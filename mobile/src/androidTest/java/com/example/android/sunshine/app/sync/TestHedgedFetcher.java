@@ -0,0 +1,216 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Three local stand-ins for the forecast endpoint, each with a delay and a status the test
+    sets, and a fetcher hedging across them.
+ */
+public class TestHedgedFetcher extends AndroidTestCase {
+    public static final String LOG_TAG = TestHedgedFetcher.class.getSimpleName();
+
+    private static final long HEDGE_DELAY_MILLIS = 200;
+    private static final long SLOW_MILLIS = 3000;
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private final List<StandIn> mStandIns = new ArrayList<>();
+
+    static class StandIn implements LocalHttpServer.Handler {
+        final LocalHttpServer server;
+        final byte[] body;
+        volatile long delayMillis;
+        volatile int status = HttpURLConnection.HTTP_OK;
+
+        StandIn(String name) throws IOException {
+            body = name.getBytes("UTF-8");
+            server = new LocalHttpServer(this);
+        }
+
+        @Override
+        public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+            LocalHttpServer.Response response = new LocalHttpServer.Response();
+            response.status = status;
+            response.body = body;
+            response.delayMillis = delayMillis;
+            return response;
+        }
+
+        String getUrl() {
+            return server.getUrl("/forecast");
+        }
+    }
+
+    /*
+        Reads the whole body through the shared client, which is what counts as a complete
+        response here.
+     */
+    static class BodyAttempt implements HedgedFetcher.Attempt<String> {
+        private final String mEndpoint;
+        private volatile SunshineHttpClient.Call mCall;
+
+        BodyAttempt(String endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public String execute() throws IOException {
+            SunshineHttpClient.Call call = SunshineHttpClient.getInstance()
+                    .newCall(new URL(mEndpoint));
+            mCall = call;
+            try {
+                int code = call.execute();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code);
+                }
+                InputStream in = call.getConnection().getInputStream();
+                StringBuilder body = new StringBuilder();
+                int b;
+                while ((b = in.read()) != -1) {
+                    body.append((char) b);
+                }
+                in.close();
+                return body.toString();
+            } finally {
+                call.close();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            SunshineHttpClient.Call call = mCall;
+            if (call != null) {
+                call.getConnection().disconnect();
+            }
+        }
+    }
+
+    private static final HedgedFetcher.AttemptFactory<String> sFactory =
+            new HedgedFetcher.AttemptFactory<String>() {
+                @Override
+                public HedgedFetcher.Attempt<String> newAttempt(String endpoint) {
+                    return new BodyAttempt(endpoint);
+                }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (String name : new String[]{"primary", "mirror", "proxy"}) {
+            mStandIns.add(new StandIn(name));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (StandIn standIn : mStandIns) {
+            standIn.server.shutdown();
+        }
+        super.tearDown();
+    }
+
+    private HedgedFetcher newFetcher() {
+        List<String> endpoints = new ArrayList<>();
+        for (StandIn standIn : mStandIns) {
+            endpoints.add(standIn.getUrl());
+        }
+        return new HedgedFetcher(endpoints, HEDGE_DELAY_MILLIS);
+    }
+
+    public void testFastPrimaryIsNotHedged() throws InterruptedException {
+        HedgedFetcher fetcher = newFetcher();
+        HedgedFetcher.Result<String> result = fetcher.fetch(sFactory, TIMEOUT_MILLIS);
+
+        assertEquals("primary", result.value);
+        assertEquals(1, result.attempts);
+        assertEquals(0, fetcher.getHedgeCount());
+        assertEquals(0, mStandIns.get(1).server.getRequestCount());
+    }
+
+    public void testSlowPrimaryIsHedged() throws InterruptedException {
+        mStandIns.get(0).delayMillis = SLOW_MILLIS;
+        HedgedFetcher fetcher = newFetcher();
+
+        HedgedFetcher.Result<String> result = fetcher.fetch(sFactory, TIMEOUT_MILLIS);
+
+        assertEquals("Error: the slow endpoint was waited for", "mirror", result.value);
+        assertEquals(2, result.attempts);
+        assertEquals(1, fetcher.getHedgeCount());
+        assertTrue("Error: took " + result.millis + "ms", result.millis < SLOW_MILLIS / 2);
+        assertEquals(0, mStandIns.get(2).server.getRequestCount());
+    }
+
+    public void testFailureHandsOverWithoutWaiting() throws InterruptedException {
+        mStandIns.get(0).status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+        mStandIns.get(1).status = HttpURLConnection.HTTP_UNAVAILABLE;
+        HedgedFetcher fetcher = newFetcher();
+
+        HedgedFetcher.Result<String> result = fetcher.fetch(sFactory, TIMEOUT_MILLIS);
+
+        assertEquals("proxy", result.value);
+        assertEquals(3, result.attempts);
+        assertTrue("Error: waited for the hedge delay after a failure, took "
+                + result.millis + "ms", result.millis < 2 * HEDGE_DELAY_MILLIS);
+    }
+
+    public void testEveryEndpointFailing() throws InterruptedException {
+        for (StandIn standIn : mStandIns) {
+            standIn.status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        HedgedFetcher.Result<String> result = newFetcher().fetch(sFactory, TIMEOUT_MILLIS);
+
+        assertNull(result.value);
+        assertEquals(3, result.attempts);
+        assertTrue(result.error instanceof IOException);
+    }
+
+    /*
+        Once the primary has been slow for a while, the mirror goes first and the primary
+        is only a hedge.
+     */
+    public void testOrderFollowsLatency() throws InterruptedException {
+        mStandIns.get(0).delayMillis = 600;
+        mStandIns.get(1).delayMillis = 50;
+        HedgedFetcher fetcher = newFetcher();
+
+        for (int i = 0; i < HedgedFetcher.MIN_SAMPLES; i++) {
+            fetcher.fetch(sFactory, TIMEOUT_MILLIS);
+        }
+        Log.i(LOG_TAG, fetcher.toString());
+
+        List<String> order = fetcher.getEndpointOrder();
+        assertEquals(mStandIns.get(1).getUrl(), order.get(0));
+
+        int primaryRequests = mStandIns.get(0).server.getRequestCount();
+        long start = SystemClock.elapsedRealtime();
+        HedgedFetcher.Result<String> result = fetcher.fetch(sFactory, TIMEOUT_MILLIS);
+        assertEquals("mirror", result.value);
+        assertEquals(1, result.attempts);
+        assertEquals("Error: the slow primary was still asked first",
+                primaryRequests, mStandIns.get(0).server.getRequestCount());
+        assertTrue(SystemClock.elapsedRealtime() - start < 600);
+    }
+
+    public void testHedgeDelayTracksPercentile() {
+        HedgedFetcher fetcher = new HedgedFetcher(Arrays.asList("a"), HEDGE_DELAY_MILLIS);
+        assertEquals(HEDGE_DELAY_MILLIS, fetcher.getHedgeDelayMillis("a"));
+
+        HedgedFetcher.EndpointStats stats = fetcher.getStats("a");
+        for (int i = 1; i <= 10; i++) {
+            stats.recordSuccess(100 * i);
+        }
+        assertEquals(900, fetcher.getHedgeDelayMillis("a"));
+        assertEquals(500, stats.getPercentile(50));
+    }
+}
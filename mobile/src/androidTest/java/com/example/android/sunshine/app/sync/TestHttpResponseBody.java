@@ -0,0 +1,128 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Fetches compressed forecast fixtures from a local stand-in server and checks that they are
+    negotiated, inflated on the fly into the parser, and that the byte counters add up.
+ */
+public class TestHttpResponseBody extends AndroidTestCase {
+
+    private LocalHttpServer mServer;
+    private byte[] mPlain;
+    private volatile String mLastAcceptEncoding;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPlain = SyncTestUtilities.createForecastJson(14).getBytes("UTF-8");
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws IOException {
+                mLastAcceptEncoding = request.header("Accept-Encoding");
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                response.header("Content-Type", "application/json; charset=utf-8");
+                if (request.path.startsWith("/gzip")) {
+                    response.header("Content-Encoding", "gzip");
+                    response.body = gzip(mPlain);
+                } else if (request.path.startsWith("/zlib")) {
+                    response.header("Content-Encoding", "deflate");
+                    response.body = deflate(mPlain, false);
+                } else if (request.path.startsWith("/rawdeflate")) {
+                    response.header("Content-Encoding", "deflate");
+                    response.body = deflate(mPlain, true);
+                } else {
+                    response.body = mPlain;
+                }
+                return response;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testGzip() throws Exception {
+        HttpResponseBody body = fetchAndParse("/gzip");
+        assertEquals("gzip", body.getContentEncoding());
+        assertTrue("Error: gzip body was not smaller on the wire",
+                body.getWireBytes() < body.getDecodedBytes());
+        assertEquals(mPlain.length, body.getDecodedBytes());
+        assertEquals(HttpResponseBody.ACCEPT_ENCODING, mLastAcceptEncoding);
+    }
+
+    public void testZlibDeflate() throws Exception {
+        HttpResponseBody body = fetchAndParse("/zlib");
+        assertEquals(mPlain.length, body.getDecodedBytes());
+    }
+
+    public void testRawDeflate() throws Exception {
+        HttpResponseBody body = fetchAndParse("/rawdeflate");
+        assertEquals(mPlain.length, body.getDecodedBytes());
+    }
+
+    public void testIdentity() throws Exception {
+        HttpResponseBody body = fetchAndParse("/plain");
+        assertNull(body.getContentEncoding());
+        assertEquals(mPlain.length, body.getWireBytes());
+        assertEquals(mPlain.length, body.getDecodedBytes());
+    }
+
+    public void testCharsetOf() {
+        assertEquals("UTF-8", HttpResponseBody.charsetOf(null).name());
+        assertEquals("ISO-8859-1",
+                HttpResponseBody.charsetOf("application/json; charset=\"ISO-8859-1\"").name());
+        assertEquals("UTF-8", HttpResponseBody.charsetOf("application/json; charset=bogus!").name());
+    }
+
+    private HttpResponseBody fetchAndParse(String path) throws Exception {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getUrl(path)).openConnection();
+        HttpResponseBody.requestCompression(connection);
+        connection.connect();
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+
+        HttpResponseBody body = HttpResponseBody.open(connection);
+        TestForecastJsonParser.CountingCallback callback =
+                new TestForecastJsonParser.CountingCallback();
+        try {
+            ForecastJsonParser.parse(body.getReader(), callback);
+        } finally {
+            body.close();
+            connection.disconnect();
+        }
+        assertEquals(14, callback.days);
+        return body;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        deflate.write(data);
+        deflate.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestMultiLocationSyncEngine extends AndroidTestCase {
+
+    private static final List<String> LOCATIONS = Arrays.asList("94043", "10001", "60601", "98101");
+    private static final long[] LATENCIES = {300, 500, 800, 200};
+
+    static class SleepingSyncer implements MultiLocationSyncEngine.LocationSyncer {
+        final Map<String, Long> mLatency = new HashMap<>();
+
+        SleepingSyncer() {
+            for (int i = 0; i < LOCATIONS.size(); i++) {
+                mLatency.put(LOCATIONS.get(i), LATENCIES[i]);
+            }
+        }
+
+        @Override
+        public String getHost(String locationSetting) {
+            return "api.openweathermap.org";
+        }
+
+        @Override
+        public int syncLocation(String locationSetting) throws InterruptedException {
+            Thread.sleep(mLatency.get(locationSetting));
+            return SunshineSyncAdapter.LOCATION_STATUS_OK;
+        }
+    }
+
+    /*
+        With enough workers and connection slots, N locations should finish in roughly the
+        time of the slowest one rather than the sum of all of them.
+     */
+    public void testWallTimeIsMaxNotSum() throws Exception {
+        MultiLocationSyncEngine.Result result = new MultiLocationSyncEngine(4, 4)
+                .syncAll(LOCATIONS, new SleepingSyncer(), 10000);
+
+        long sum = 0, max = 0;
+        for (long latency : LATENCIES) {
+            sum += latency;
+            max = Math.max(max, latency);
+        }
+        assertEquals(LOCATIONS.size(), result.statuses.size());
+        assertEquals(LOCATIONS.size(), result.latencyMillis.size());
+        assertTrue("Error: wall time " + result.wallTimeMillis + "ms is not close to max " + max,
+                result.wallTimeMillis < max + 300);
+        assertTrue("Error: wall time " + result.wallTimeMillis + "ms looks like sum " + sum,
+                result.wallTimeMillis < sum);
+    }
+
+    public void testPerHostLimitSerializes() throws Exception {
+        MultiLocationSyncEngine.Result result = new MultiLocationSyncEngine(4, 1)
+                .syncAll(LOCATIONS, new SleepingSyncer(), 10000);
+
+        long sum = 0;
+        for (long latency : LATENCIES) sum += latency;
+        assertTrue("Error: one connection per host should serialize the fetches",
+                result.wallTimeMillis >= sum);
+    }
+
+    public void testDeadline() throws Exception {
+        SleepingSyncer syncer = new SleepingSyncer();
+        syncer.mLatency.put("60601", 5000L);
+
+        MultiLocationSyncEngine.Result result = new MultiLocationSyncEngine(4, 4)
+                .syncAll(LOCATIONS, syncer, 1000);
+
+        assertTrue(result.timedOut.contains("60601"));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, result.getStatus("60601"));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.getStatus("94043"));
+        assertTrue("Error: deadline was not honoured", result.wallTimeMillis < 2000);
+    }
+
+    /*
+        A worker that takes a while to notice it was abandoned has returned by the time the
+        run does, so it cannot write into whatever the caller sets up next.
+     */
+    public void testAbandonedWorkersReturnFirst() throws Exception {
+        final AtomicBoolean returned = new AtomicBoolean();
+        MultiLocationSyncEngine.LocationSyncer syncer = new SleepingSyncer() {
+            @Override
+            public int syncLocation(String locationSetting) throws InterruptedException {
+                if (!locationSetting.equals("60601")) {
+                    return super.syncLocation(locationSetting);
+                }
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    // like a socket read, which does not see the interrupt
+                    SystemClock.sleep(500);
+                    returned.set(true);
+                }
+                return SunshineSyncAdapter.LOCATION_STATUS_OK;
+            }
+        };
+
+        MultiLocationSyncEngine.Result result = new MultiLocationSyncEngine(4, 4)
+                .syncAll(LOCATIONS, syncer, 1000);
+
+        assertTrue(result.timedOut.contains("60601"));
+        assertTrue("Error: the run returned before its worker", returned.get());
+    }
+}
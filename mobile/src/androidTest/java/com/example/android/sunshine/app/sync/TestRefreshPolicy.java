@@ -0,0 +1,90 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestRefreshPolicy extends AndroidTestCase {
+
+    private static RefreshPolicy.Conditions conditions(boolean connected, boolean metered,
+            boolean charging, boolean idle) {
+        RefreshPolicy.Conditions conditions = new RefreshPolicy.Conditions();
+        conditions.connected = connected;
+        conditions.metered = metered;
+        conditions.charging = charging;
+        conditions.idle = idle;
+        return conditions;
+    }
+
+    private static final RefreshPolicy.Conditions OFFLINE = conditions(false, false, true, true);
+    private static final RefreshPolicy.Conditions METERED = conditions(true, true, true, true);
+    private static final RefreshPolicy.Conditions WIFI = conditions(true, false, false, false);
+    private static final RefreshPolicy.Conditions WIFI_CHARGING =
+            conditions(true, false, true, false);
+    private static final RefreshPolicy.Conditions WIFI_CHARGING_IDLE =
+            conditions(true, false, true, true);
+
+    private static final int ALL_KINDS = RefreshPolicy.KINDS_SYNC | RefreshPolicy.KIND_ART
+            | RefreshPolicy.KIND_BACKFILL;
+
+    public void testOnlyTheForegroundRefreshUsesMeteredData() {
+        assertEquals(RefreshPolicy.KIND_FOREGROUND,
+                RefreshPolicy.filter(ALL_KINDS, METERED, false));
+    }
+
+    public void testExtrasWaitForTheCharger() {
+        assertEquals(RefreshPolicy.KINDS_SYNC, RefreshPolicy.filter(ALL_KINDS, WIFI, false));
+        assertEquals(RefreshPolicy.KINDS_SYNC | RefreshPolicy.KIND_ART,
+                RefreshPolicy.filter(ALL_KINDS, WIFI_CHARGING, false));
+        assertEquals(ALL_KINDS, RefreshPolicy.filter(ALL_KINDS, WIFI_CHARGING_IDLE, false));
+    }
+
+    public void testNothingRunsOffline() {
+        assertEquals(0, RefreshPolicy.filter(ALL_KINDS, OFFLINE, false));
+        assertEquals(0, RefreshPolicy.filter(ALL_KINDS, OFFLINE, true));
+    }
+
+    public void testOnlyKindsAskedForRun() {
+        assertEquals(RefreshPolicy.KIND_ART,
+                RefreshPolicy.filter(RefreshPolicy.KIND_ART, WIFI_CHARGING_IDLE, false));
+    }
+
+    /*
+        Someone pulling to refresh wants their saved locations too, metered or not, but not
+        the extras.
+     */
+    public void testManualSyncRefreshesEveryLocation() {
+        assertEquals(RefreshPolicy.KIND_FOREGROUND | RefreshPolicy.KIND_FAVORITES,
+                RefreshPolicy.filter(ALL_KINDS, METERED, true));
+    }
+
+    public void testMeteredPayloadIsCutDown() {
+        int allowed = RefreshPolicy.filter(RefreshPolicy.KINDS_SYNC, METERED, true);
+        RefreshPolicy.Payload payload = RefreshPolicy.choosePayload(allowed, METERED);
+        assertEquals(RefreshPolicy.METERED_DAYS, payload.days);
+        assertFalse(payload.hourly);
+    }
+
+    public void testUnmeteredPayloadIsWhole() {
+        RefreshPolicy.Payload payload =
+                RefreshPolicy.choosePayload(RefreshPolicy.KINDS_SYNC, WIFI);
+        assertEquals(RefreshPolicy.FULL_DAYS, payload.days);
+        assertTrue(payload.hourly);
+
+        payload = RefreshPolicy.choosePayload(RefreshPolicy.KIND_FOREGROUND, WIFI);
+        assertFalse("Error: hourly forecast fetched without being asked for", payload.hourly);
+    }
+
+    public void testBackfillAsksForEveryDay() {
+        RefreshPolicy.Payload payload = RefreshPolicy.choosePayload(
+                RefreshPolicy.KIND_FOREGROUND | RefreshPolicy.KIND_BACKFILL, METERED);
+        assertEquals(RefreshPolicy.FULL_DAYS, payload.days);
+    }
+
+    public void testEveryKindHasConstraints() {
+        for (int kind : RefreshPolicy.KINDS) {
+            RefreshPolicy.Constraints constraints = RefreshPolicy.getConstraints(kind);
+            assertTrue(constraints.periodFactor >= 1);
+            assertNotNull(RefreshPolicy.getName(kind));
+        }
+        assertFalse(RefreshPolicy.getConstraints(RefreshPolicy.KIND_FOREGROUND).unmetered);
+    }
+}
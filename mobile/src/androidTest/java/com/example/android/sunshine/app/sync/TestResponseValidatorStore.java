@@ -0,0 +1,145 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Fetches a forecast twice from a local stand-in for OWM that answers a matching
+    If-None-Match with 304.  The second fetch must be conditional, and its 304 must skip the
+    parse, the write and the fan-out.
+ */
+public class TestResponseValidatorStore extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+    private static final long FAN_OUT_WAIT_MILLIS = DataChangeBus.MAX_DELAY_MILLIS + 500;
+
+    private LocalHttpServer mServer;
+    private byte[] mForecast;
+    // What the server tags its current forecast with
+    private volatile String mEtag = "\"forecast-1\"";
+    private volatile String mLastIfNoneMatch;
+    private final AtomicInteger mNotModified = new AtomicInteger();
+    private final AtomicInteger mFanOuts = new AtomicInteger();
+    private SunshineSyncAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mContext.getSharedPreferences(ResponseValidatorStore.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mForecast = SyncTestUtilities.createForecastJson(14).getBytes("UTF-8");
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws IOException {
+                mLastIfNoneMatch = request.header("If-None-Match");
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                if (mEtag.equals(mLastIfNoneMatch)) {
+                    mNotModified.incrementAndGet();
+                    response.status = HttpURLConnection.HTTP_NOT_MODIFIED;
+                    return response;
+                }
+                response.header("Content-Type", "application/json; charset=utf-8");
+                response.header("ETag", mEtag);
+                response.body = mForecast;
+                return response;
+            }
+        });
+        DataChangeBus.getInstance(mContext).register("TestResponseValidatorStore",
+                DataChangeBus.CHANGE_FORECAST, new DataChangeBus.Consumer() {
+                    @Override
+                    public void onDataChanged(int changes) {
+                        mFanOuts.incrementAndGet();
+                    }
+                });
+        mAdapter = new SunshineSyncAdapter(mContext, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAll();
+        // the provider posts the delete; its fan-out must not reach the next test's consumer
+        SystemClock.sleep(FAN_OUT_WAIT_MILLIS);
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private String getEndpoint() {
+        return mServer.getUrl("/forecast/daily");
+    }
+
+    private String getValidatorKey() {
+        return SunshineSyncAdapter.buildForecastUri(getEndpoint(), LOCATION).toString();
+    }
+
+    private SyncPipeline<?> sync() throws Exception {
+        SyncPipeline<?> pipeline = mAdapter.syncForecastFrom(getEndpoint(), LOCATION);
+        SystemClock.sleep(FAN_OUT_WAIT_MILLIS);
+        return pipeline;
+    }
+
+    public void testSecondFetchIsConditional() throws Exception {
+        sync();
+        assertNull("Error: the first fetch sent validators", mLastIfNoneMatch);
+
+        sync();
+        assertEquals(mEtag, mLastIfNoneMatch);
+        assertEquals(1, mNotModified.get());
+    }
+
+    public void testNotModifiedSkipsParseWriteAndFanOut() throws Exception {
+        SyncPipeline<?> first = sync();
+        assertEquals(1, first.getStageCount(SyncPipeline.STAGE_PARSE));
+        assertEquals(1, first.getStageCount(SyncPipeline.STAGE_PERSIST));
+        assertEquals(1, mFanOuts.get());
+
+        SyncPipeline<?> second = sync();
+        assertEquals(1, mNotModified.get());
+        assertEquals("Error: a 304 was parsed", 0, second.getStageCount(SyncPipeline.STAGE_PARSE));
+        assertEquals("Error: a 304 was written",
+                0, second.getStageCount(SyncPipeline.STAGE_PERSIST));
+        assertEquals("Error: a 304 was fanned out", 1, mFanOuts.get());
+    }
+
+    public void testClearMakesTheNextFetchWhole() throws Exception {
+        sync();
+        ResponseValidatorStore validators = new ResponseValidatorStore(mContext);
+        validators.clear(getValidatorKey());
+
+        SyncPipeline<?> pipeline = sync();
+        assertNull("Error: cleared validators were sent", mLastIfNoneMatch);
+        assertEquals(0, mNotModified.get());
+        assertEquals(1, pipeline.getStageCount(SyncPipeline.STAGE_PARSE));
+    }
+
+    public void testHitRatio() throws Exception {
+        ResponseValidatorStore validators = new ResponseValidatorStore(mContext);
+        assertEquals(0f, validators.getHitRatio());
+
+        // unconditional, then answered with a 304
+        sync();
+        sync();
+        assertEquals(1f, validators.getHitRatio());
+
+        // conditional, but OWM has issued a new forecast since
+        mEtag = "\"forecast-2\"";
+        sync();
+        assertEquals(1, mNotModified.get());
+        assertEquals(0.5f, validators.getHitRatio());
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSingleFlightSync extends AndroidTestCase {
+
+    private static final String REQUEST =
+            SunshineSyncAdapter.getRequestKey(RefreshPolicy.KINDS_SYNC, false);
+    private static final String KEY = "94043";
+    private static final String OTHER_KEY = "94043\nLondon";
+
+    private final AtomicInteger mLaunches = new AtomicInteger();
+    private final Runnable mLaunch = new Runnable() {
+        @Override
+        public void run() {
+            mLaunches.incrementAndGet();
+        }
+    };
+
+    /*
+        The watch, a widget and the UI all ask for a refresh at the same moment: one sync goes
+        out and every caller gets its result.
+     */
+    public void testSimultaneousRequestsShareOneSync() throws InterruptedException {
+        final SingleFlightSync flights = new SingleFlightSync();
+        final int callers = 8;
+        final List<SingleFlightSync.Flight> joined = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    SingleFlightSync.Flight flight = flights.request(REQUEST, KEY, mLaunch);
+                    synchronized (joined) {
+                        joined.add(flight);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Error: more than one sync was requested", 1, mLaunches.get());
+        assertEquals(callers - 1, flights.getMergedRequestCount());
+        SingleFlightSync.Flight running = flights.onSyncStarted(REQUEST, KEY);
+        for (SingleFlightSync.Flight flight : joined) {
+            assertSame(running, flight);
+        }
+        assertEquals(callers, running.getCallers());
+
+        flights.onSyncFinished(running, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        for (SingleFlightSync.Flight flight : joined) {
+            assertTrue(flight.isDone());
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, flight.await(0));
+        }
+    }
+
+    public void testRequestMidFlightJoinsSameLocations() throws InterruptedException {
+        SingleFlightSync flights = new SingleFlightSync();
+        SingleFlightSync.Flight requested = flights.request(REQUEST, KEY, mLaunch);
+        SingleFlightSync.Flight running = flights.onSyncStarted(REQUEST, KEY);
+        assertSame(requested, running);
+
+        assertSame(running, flights.request(REQUEST, KEY, mLaunch));
+        assertEquals(1, mLaunches.get());
+
+        flights.onSyncFinished(running, SunshineSyncAdapter.LOCATION_STATUS_INVALID);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, requested.await(0));
+
+        // once it is over, the next request needs a sync of its own
+        SingleFlightSync.Flight next = flights.request(REQUEST, KEY, mLaunch);
+        assertNotSame(running, next);
+        assertEquals(2, mLaunches.get());
+    }
+
+    /*
+        A location typed in while a sync runs needs a sync that reads it, and every location
+        typed in before that sync starts is served by it.
+     */
+    public void testChangedLocationsWaitForTheNextSync() {
+        SingleFlightSync flights = new SingleFlightSync();
+        SingleFlightSync.Flight running = flights.onSyncStarted(REQUEST, KEY);
+
+        SingleFlightSync.Flight first = flights.request(REQUEST, OTHER_KEY, mLaunch);
+        assertNotSame(running, first);
+        SingleFlightSync.Flight second = flights.request(REQUEST, OTHER_KEY + "\nParis", mLaunch);
+        assertSame(first, second);
+        assertEquals(1, mLaunches.get());
+
+        flights.onSyncFinished(running, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertFalse(first.isDone());
+
+        SingleFlightSync.Flight next = flights.onSyncStarted(REQUEST, OTHER_KEY + "\nParis");
+        assertSame(first, next);
+        flights.onSyncFinished(next, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertTrue(second.isDone());
+    }
+
+    /*
+        A refresh of another kind, or the user asking, needs a sync of its own: joining one
+        that leaves its kind out, or holds the saved locations to the policy, would report
+        success for a refresh that never ran.
+     */
+    public void testOtherRequestsDoNotJoin() {
+        SingleFlightSync flights = new SingleFlightSync();
+        String hourly = SunshineSyncAdapter.getRequestKey(RefreshPolicy.KIND_HOURLY, false);
+        String manual = SunshineSyncAdapter.getRequestKey(RefreshPolicy.KINDS_SYNC, true);
+
+        SingleFlightSync.Flight pending = flights.request(REQUEST, KEY, mLaunch);
+        assertNotSame(pending, flights.request(hourly, KEY, mLaunch));
+        assertNotSame(pending, flights.request(manual, KEY, mLaunch));
+        assertEquals(3, mLaunches.get());
+
+        SingleFlightSync.Flight running = flights.onSyncStarted(REQUEST, KEY);
+        assertSame(pending, running);
+        assertNotSame(running, flights.request(hourly, KEY, mLaunch));
+        assertEquals("Error: a pending sync of the same kind was asked for again",
+                3, mLaunches.get());
+
+        // each sync takes over the flight that asked for it
+        SingleFlightSync.Flight hourlyFlight = flights.onSyncStarted(hourly, KEY);
+        assertNotSame(running, hourlyFlight);
+        flights.onSyncFinished(running, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertFalse(hourlyFlight.isDone());
+        flights.onSyncFinished(hourlyFlight, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertTrue(hourlyFlight.isDone());
+    }
+
+    public void testSyncKeyIgnoresOrder() {
+        Set<String> locations = new LinkedHashSet<>();
+        locations.add("94043");
+        locations.add("London");
+        Set<String> reversed = new LinkedHashSet<>();
+        reversed.add("London");
+        reversed.add("94043");
+        assertEquals(SunshineSyncAdapter.getSyncKey(locations),
+                SunshineSyncAdapter.getSyncKey(reversed));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/*
+    Runs the same series of requests against a local stand-in once the old way, a fresh
+    connection disconnected after every request, and once through the shared client, and
+    compares how many sockets each opened and how long the requests took.
+ */
+public class TestSunshineHttpClient extends AndroidTestCase {
+    public static final String LOG_TAG = TestSunshineHttpClient.class.getSimpleName();
+
+    private static final int NUM_REQUESTS = 20;
+    private static final int BODY_SIZE = 16 * 1024;
+
+    private LocalHttpServer mServer;
+    private volatile String mLastHost;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte) 'x');
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws IOException {
+                mLastHost = request.header("Host");
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                response.body = body;
+                return response;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    public void testConnectionsAreReused() throws IOException {
+        URL url = new URL(mServer.getUrl("/forecast"));
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+                assertEquals(BODY_SIZE, readFully(connection.getInputStream()));
+            } finally {
+                connection.disconnect();
+            }
+        }
+        long disconnectMillis = SystemClock.elapsedRealtime() - start;
+        int disconnectConnections = mServer.getConnectionCount();
+
+        SunshineHttpClient client = new SunshineHttpClient();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            SunshineHttpClient.Call call = client.newCall(url);
+            try {
+                assertEquals(HttpURLConnection.HTTP_OK, call.execute());
+                InputStream in = call.getConnection().getInputStream();
+                assertEquals(BODY_SIZE, readFully(in));
+                in.close();
+            } finally {
+                call.close();
+            }
+        }
+        long pooledMillis = SystemClock.elapsedRealtime() - start;
+        int pooledConnections = mServer.getConnectionCount() - disconnectConnections;
+
+        Log.i(LOG_TAG, NUM_REQUESTS + " requests with disconnect: " + disconnectConnections
+                + " connections, " + disconnectMillis + "ms");
+        Log.i(LOG_TAG, NUM_REQUESTS + " requests through the client: " + pooledConnections
+                + " connections, " + pooledMillis + "ms, mean headers "
+                + client.getMeanHeadersMillis() + "ms, mean total "
+                + client.getMeanTotalMillis() + "ms");
+
+        assertEquals(NUM_REQUESTS, disconnectConnections);
+        assertEquals("Error: the client did not reuse its connection", 1, pooledConnections);
+        assertEquals(NUM_REQUESTS, client.getRequestCount());
+    }
+
+    public void testErrorResponseKeepsConnection() throws IOException {
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = new LocalHttpServer.Response();
+                response.status = 404;
+                response.body = "{\"cod\":\"404\"}".getBytes();
+                return response;
+            }
+        });
+        try {
+            SunshineHttpClient client = new SunshineHttpClient();
+            URL url = new URL(server.getUrl("/missing"));
+            for (int i = 0; i < 3; i++) {
+                SunshineHttpClient.Call call = client.newCall(url);
+                try {
+                    assertEquals(HttpURLConnection.HTTP_NOT_FOUND, call.execute());
+                } finally {
+                    call.close();
+                }
+            }
+            assertEquals(1, server.getConnectionCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testDnsCacheKeepsHostHeader() throws IOException {
+        URL url = new URL(mServer.getUrl("/forecast").replace("127.0.0.1", "localhost"));
+        SunshineHttpClient client = new SunshineHttpClient();
+        for (int i = 0; i < 3; i++) {
+            SunshineHttpClient.Call call = client.newCall(url);
+            try {
+                assertEquals(HttpURLConnection.HTTP_OK, call.execute());
+                readFully(call.getConnection().getInputStream());
+            } finally {
+                call.close();
+            }
+        }
+        assertEquals("Error: host looked up more than once", 2, client.getDnsHitCount());
+        assertEquals("localhost:" + url.getPort(), mLastHost);
+    }
+}
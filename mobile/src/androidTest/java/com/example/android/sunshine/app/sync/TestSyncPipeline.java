@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSyncPipeline extends AndroidTestCase {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    public void testPersistsInOrderOnOneThread() throws InterruptedException {
+        final List<Integer> persisted = Collections.synchronizedList(new ArrayList<Integer>());
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        SyncPipeline<Integer> pipeline = new SyncPipeline<>(2,
+                new SyncPipeline.Persister<Integer>() {
+                    @Override
+                    public void persist(Integer batch) {
+                        threads.add(Thread.currentThread());
+                        persisted.add(batch);
+                    }
+                });
+        pipeline.start();
+
+        List<Integer> submitted = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(i);
+            submitted.add(i);
+        }
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertEquals(submitted, persisted);
+        assertEquals(1, threads.size());
+        assertFalse("Error: batches were persisted on the submitting thread",
+                threads.contains(Thread.currentThread()));
+        assertEquals(20, pipeline.getStageCount(SyncPipeline.STAGE_PERSIST));
+        assertTrue(pipeline.getMaxQueueDepth() <= 2);
+    }
+
+    public void testSubmitWaitsWhileQueueIsFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final SyncPipeline<Integer> pipeline = new SyncPipeline<>(2,
+                new SyncPipeline.Persister<Integer>() {
+                    @Override
+                    public void persist(Integer batch) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        pipeline.start();
+
+        // one batch held by the persister, two more fill the queue
+        pipeline.submit(0);
+        SystemClock.sleep(100);
+        pipeline.submit(1);
+        pipeline.submit(2);
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.submit(3);
+                    submitted.countDown();
+                } catch (InterruptedException e) {
+                    // the test fails on the latch
+                }
+            }
+        }).start();
+        assertFalse("Error: submit went through a full queue",
+                submitted.await(300, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(submitted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+        assertEquals(4, pipeline.getStageCount(SyncPipeline.STAGE_PERSIST));
+    }
+
+    public void testFailedBatchDoesNotStopPersisting() throws InterruptedException {
+        final AtomicInteger persisted = new AtomicInteger();
+        SyncPipeline<Integer> pipeline = new SyncPipeline<>(4,
+                new SyncPipeline.Persister<Integer>() {
+                    @Override
+                    public void persist(Integer batch) {
+                        if (batch == 1) {
+                            throw new IllegalStateException("disk full");
+                        }
+                        persisted.incrementAndGet();
+                    }
+                });
+        pipeline.start();
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(i);
+        }
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+        assertEquals(2, persisted.get());
+        assertEquals(1, pipeline.getFailedBatchCount());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class TestSyncPolicy extends AndroidTestCase {
+    public static final String LOG_TAG = TestSyncPolicy.class.getSimpleName();
+
+    // December 21st, 2014, 00:00 UTC
+    private static final long WEEK_START = 1419120000000L;
+
+    private static final long HOUR_IN_MILLIS = SyncPolicy.HOUR_IN_MILLIS;
+
+    private static SyncPolicy.Signals createSignals(long now) {
+        SyncPolicy.Signals signals = new SyncPolicy.Signals();
+        signals.nowMillis = now;
+        signals.utcOffsetMillis = -7 * HOUR_IN_MILLIS;
+        signals.lastSyncMillis = now;
+        return signals;
+    }
+
+    public void testSyncLandsOnModelRun() {
+        // 19:00 UTC, noon in Mountain View: the next run to land is the 18:00 one, at 22:45
+        SyncPolicy.Signals signals = createSignals(WEEK_START + 19 * HOUR_IN_MILLIS);
+        signals.hasPassiveViewer = true;
+        signals.changeRatio = 0.2;
+
+        long delay = new AdaptiveSyncPolicy().getNextSyncDelaySeconds(signals);
+        long syncAt = signals.nowMillis + delay * 1000;
+        assertEquals(AdaptiveSyncPolicy.getNextLandingMillis(signals.nowMillis), syncAt);
+    }
+
+    public void testIdleStretches() {
+        SyncPolicy.Signals signals = createSignals(WEEK_START + 19 * HOUR_IN_MILLIS);
+        signals.changeRatio = 0.05;
+
+        long idle = new AdaptiveSyncPolicy().getNextSyncDelaySeconds(signals);
+        assertTrue("Error: nobody is looking but the sync is due in " + idle + "s",
+                idle > SunshineSyncAdapter.SYNC_INTERVAL);
+        assertTrue(idle <= AdaptiveSyncPolicy.MAX_INTERVAL_SECONDS);
+    }
+
+    public void testStaleWhileInUseSyncsNow() {
+        // synced just before a run landed, and the user opens the app after it did
+        long landing = AdaptiveSyncPolicy.getNextLandingMillis(WEEK_START);
+        SyncPolicy.Signals signals = createSignals(landing + HOUR_IN_MILLIS);
+        signals.lastSyncMillis = landing - HOUR_IN_MILLIS;
+        signals.lastUsedMillis = signals.nowMillis;
+
+        assertEquals(0, new AdaptiveSyncPolicy().getNextSyncDelaySeconds(signals));
+
+        // the same visit right after a sync needs nothing
+        signals.lastSyncMillis = landing + 1;
+        assertTrue(new AdaptiveSyncPolicy().getNextSyncDelaySeconds(signals) > 0);
+    }
+
+    /*
+        Replays the recorded week against the old fixed interval and the adaptive policy.  The
+        adaptive one should sync less often and move fewer bytes without showing an older
+        forecast when somebody looks.
+     */
+    public void testSimulatedWeek() {
+        SyncPolicySimulator.Week week = SyncPolicySimulator.createRecordedWeek(WEEK_START);
+        SyncPolicySimulator.Report fixed = SyncPolicySimulator.run("fixed",
+                new SyncPolicy.Fixed(SunshineSyncAdapter.SYNC_INTERVAL), week);
+        SyncPolicySimulator.Report adaptive = SyncPolicySimulator.run("adaptive",
+                new AdaptiveSyncPolicy(), week);
+        week.hasPassiveViewer = true;
+        SyncPolicySimulator.Report widget = SyncPolicySimulator.run("adaptive with widget",
+                new AdaptiveSyncPolicy(), week);
+
+        Log.i(LOG_TAG, fixed.toString());
+        Log.i(LOG_TAG, adaptive.toString());
+        Log.i(LOG_TAG, widget.toString());
+
+        assertTrue("Error: adaptive policy synced more often", adaptive.syncs < fixed.syncs);
+        assertTrue("Error: adaptive policy moved more bytes", adaptive.bytes <= fixed.bytes);
+        assertTrue("Error: adaptive policy showed an older forecast",
+                adaptive.getMeanStaleMinutes() <= fixed.getMeanStaleMinutes());
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tiny HTTP/1.1 server bound to the loopback interface, standing in for the forecast
+ * servers in tests.  Responses come from a {@link Handler}; the server counts connections,
+ * requests and body bytes so tests can assert on what a sync cost.
+ *
+ * Connections are kept alive unless the request asks otherwise.
+ */
+public class LocalHttpServer {
+
+    public static class Request {
+        public String method;
+        public String path;
+        public final Map<String, String> headers = new LinkedHashMap<>();
+        public byte[] body = new byte[0];
+
+        /**
+         * @return the header value, matched case-insensitively, or null
+         */
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static class Response {
+        public int status = 200;
+        public final Map<String, String> headers = new LinkedHashMap<>();
+        public byte[] body = new byte[0];
+        public long delayMillis;
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    private final Handler mHandler;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBodyBytes = new AtomicLong();
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getBodyBytes() {
+        return mBodyBytes.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // ignore, we are going away anyway
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) break;
+                mRequestCount.incrementAndGet();
+
+                Response response = mHandler.handle(request);
+                if (response.delayMillis > 0) {
+                    Thread.sleep(response.delayMillis);
+                }
+                writeResponse(out, request, response);
+
+                if ("close".equalsIgnoreCase(request.header("Connection"))) break;
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException | InterruptedException e) {
+            // test server, nothing more to do
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void writeResponse(OutputStream out, Request request, Response response)
+            throws IOException {
+        boolean hasBody = !"HEAD".equals(request.method)
+                && response.status != 304 && response.status != 204;
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(" X\r\n");
+        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(hasBody ? response.body.length : 0).append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasBody) {
+            out.write(response.body);
+            mBodyBytes.addAndGet(response.body.length);
+        }
+        out.flush();
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Request request = new Request();
+        request.method = parts[0];
+        request.path = parts.length > 1 ? parts[1] : "/";
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        // read any body in full, which also keeps keep-alive in sync
+        String contentLength = request.header("Content-Length");
+        if (contentLength != null) {
+            request.body = new byte[Integer.parseInt(contentLength)];
+            int read = 0;
+            while (read < request.body.length) {
+                int count = in.read(request.body, read, request.body.length - read);
+                if (count == -1) break;
+                read += count;
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+}
@@ -26,6 +26,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
@@ -33,6 +34,7 @@ import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -47,6 +49,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
@@ -59,6 +62,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    private boolean mStaleShown;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -426,7 +430,31 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 }
                 tv.setText(message);
             }
+        } else {
+            updateStaleIndicator();
+        }
+    }
+
+    /*
+        While the weather server is failing the list keeps showing the stored forecast.  Say so,
+        and how old it is, once per outage.
+     */
+    private void updateStaleIndicator() {
+        @SunshineSyncAdapter.LocationStatus int location = Utility.getLocationStatus(getActivity());
+        boolean stale = location == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                || location == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        if (stale && !mStaleShown && getView() != null) {
+            long lastSync = new SyncScheduler(getActivity()).getLastSyncMillis();
+            String message;
+            if (lastSync > 0) {
+                message = getString(R.string.stale_forecast, DateUtils.getRelativeTimeSpanString(
+                        lastSync, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+            } else {
+                message = getString(R.string.stale_forecast_unknown_age);
+            }
+            Snackbar.make(getView(), message, Snackbar.LENGTH_LONG).show();
         }
+        mStaleShown = stale;
     }
 
     @Override
@@ -27,6 +27,8 @@ import android.util.AttributeSet;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.example.android.sunshine.app.sync.ForecastPrefetcher;
+
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
     private int mMinLength;
@@ -78,7 +80,18 @@ public class LocationEditTextPreference extends EditTextPreference {
                         positiveButton.setEnabled(true);
                     }
                 }
+                // Start fetching the forecast in case this is what the user commits
+                if (s.length() >= mMinLength) {
+                    ForecastPrefetcher.getInstance(getContext()).onCandidate(s.toString());
+                }
             }
         });
     }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        // A committed location is promoted by the settings listener first; this drops the rest
+        super.onDialogClosed(positiveResult);
+        ForecastPrefetcher.getInstance(getContext()).discard();
+    }
 }
@@ -25,9 +25,9 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 
-import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.DataChangeBus;
+import com.example.android.sunshine.app.sync.ForecastPrefetcher;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
-import com.example.android.sunshine.app.wear.WearSync;
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings.
@@ -136,12 +136,12 @@ public class SettingsActivity extends PreferenceActivity
             // we've changed the location
             // first clear locationStatus
             Utility.resetLocationStatus(this);
+            // show the forecast fetched while the location was typed, if there is one
+            ForecastPrefetcher.getInstance(this).promote(Utility.getPreferredLocation(this));
             SunshineSyncAdapter.syncImmediately(this);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
-            // units have changed. update lists of weather entries accordingly
-            getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
-
-            new WearSync(getApplicationContext()).sync(false);
+            // units have changed. update lists, widgets and Wear accordingly
+            DataChangeBus.getInstance(this).post(DataChangeBus.CHANGE_UNITS);
 
         } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
             // our location status has changed.  Update the summary accordingly
@@ -149,7 +149,7 @@ public class SettingsActivity extends PreferenceActivity
             bindPreferenceSummaryToValue(locationPreference);
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
-            getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            DataChangeBus.getInstance(this).post(DataChangeBus.CHANGE_ART);
         }
     }
 
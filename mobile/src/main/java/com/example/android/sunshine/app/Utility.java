@@ -28,7 +28,9 @@ import com.tinyappsdev.sharedres.SharedRes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Set;
 
 public class Utility {
     public static String getPreferredLocation(Context context) {
@@ -37,6 +39,22 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns every location the sync adapter keeps up to date: the preferred location first,
+     * followed by the saved locations.
+     */
+    public static Set<String> getSyncLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> locations = new LinkedHashSet<>();
+        locations.add(getPreferredLocation(context));
+        Set<String> saved = prefs.getStringSet(context.getString(R.string.pref_saved_locations_key),
+                null);
+        if (saved != null) {
+            locations.addAll(saved);
+        }
+        return locations;
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
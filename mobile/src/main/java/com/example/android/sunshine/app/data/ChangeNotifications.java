@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The URIs a write to the provider notifies.  Weather rows are added by (location, date) and
+ * notify the narrowest URI that covers them: weather/[setting]/[date] when one day of a
+ * location changed, weather/[setting] when several did.  The list of one location and the
+ * detail of another day are then left alone.
+ *
+ * Observers of weather/ itself still hear of every change, since cursors observe the
+ * descendants of their URI.
+ */
+class ChangeNotifications {
+
+    private final Set<Uri> mUris = new LinkedHashSet<>();
+    // Days written, by location setting
+    private final Map<String, Set<Long>> mWeatherDates = new LinkedHashMap<>();
+    private final Map<Long, String> mLocationSettings = new HashMap<>();
+    private boolean mAllWeather;
+
+    void add(Uri uri) {
+        mUris.add(uri);
+    }
+
+    /**
+     * Adds a weather row written; its location must still exist.
+     *
+     * @param date the normalized date of the row
+     */
+    void addWeather(SQLiteDatabase db, long locationId, long date) {
+        String locationSetting = getLocationSetting(db, locationId);
+        if (locationSetting == null) {
+            // no observer can hold rows of a location that is not there; tell everyone
+            mAllWeather = true;
+            return;
+        }
+        addWeather(locationSetting, date);
+    }
+
+    private void addWeather(String locationSetting, long date) {
+        Set<Long> dates = mWeatherDates.get(locationSetting);
+        if (dates == null) {
+            dates = new LinkedHashSet<>();
+            mWeatherDates.put(locationSetting, dates);
+        }
+        dates.add(date);
+    }
+
+    /**
+     * Adds the weather rows a selection matches, before they are updated or deleted.
+     */
+    void addWeather(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addWeather(db, cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * For writes whose rows are not known, such as deleting the whole table.
+     */
+    void addAllWeather() {
+        mAllWeather = true;
+    }
+
+    void addAll(ChangeNotifications other) {
+        mUris.addAll(other.mUris);
+        for (Map.Entry<String, Set<Long>> entry : other.mWeatherDates.entrySet()) {
+            for (Long date : entry.getValue()) {
+                addWeather(entry.getKey(), date);
+            }
+        }
+        mAllWeather |= other.mAllWeather;
+    }
+
+    /**
+     * @return whether any weather row changed, which the fan-out has to hear of
+     */
+    boolean hasWeather() {
+        return mAllWeather || !mWeatherDates.isEmpty();
+    }
+
+    Set<Uri> getUris() {
+        Set<Uri> uris = new LinkedHashSet<>(mUris);
+        if (mAllWeather) {
+            uris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        for (Map.Entry<String, Set<Long>> entry : mWeatherDates.entrySet()) {
+            Set<Long> dates = entry.getValue();
+            if (dates.size() == 1) {
+                uris.add(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        entry.getKey(), dates.iterator().next()));
+            } else {
+                uris.add(WeatherContract.WeatherEntry.buildWeatherLocation(entry.getKey()));
+            }
+        }
+        return uris;
+    }
+
+    private String getLocationSetting(SQLiteDatabase db, long locationId) {
+        if (mLocationSettings.containsKey(locationId)) {
+            return mLocationSettings.get(locationId);
+        }
+        String locationSetting = null;
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationSetting = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        mLocationSettings.put(locationId, locationSetting);
+        return locationSetting;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Complete weather rows held column by column in typed arrays, for writing many of them
+ * through {@link WeatherContract#METHOD_INSERT_WEATHER_BATCH} without a ContentValues per
+ * row.  Every row carries every column of the weather table.
+ *
+ * A batch crosses the provider call as the bytes of {@link #toBytes}.
+ */
+public class WeatherBatch {
+
+    private static final int FORMAT = 1;
+
+    // Every column of the weather table but its _ID
+    private static final int COLUMN_COUNT = 10;
+
+    int size;
+    long[] locationIds;
+    long[] dates;
+    int[] weatherIds;
+    String[] shortDescs;
+    double[] minTemps;
+    double[] maxTemps;
+    double[] humidities;
+    double[] pressures;
+    double[] windSpeeds;
+    double[] degrees;
+
+    public WeatherBatch() {
+        this(16);
+    }
+
+    public WeatherBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        locationIds = new long[capacity];
+        dates = new long[capacity];
+        weatherIds = new int[capacity];
+        shortDescs = new String[capacity];
+        minTemps = new double[capacity];
+        maxTemps = new double[capacity];
+        humidities = new double[capacity];
+        pressures = new double[capacity];
+        windSpeeds = new double[capacity];
+        degrees = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(long locationId, long date, int weatherId, String shortDesc, double minTemp,
+                    double maxTemp, double humidity, double pressure, double windSpeed,
+                    double degrees) {
+        if (shortDesc == null) {
+            throw new IllegalArgumentException("A weather row needs a description");
+        }
+        if (size == dates.length) {
+            grow(size * 2);
+        }
+        locationIds[size] = locationId;
+        dates[size] = date;
+        weatherIds[size] = weatherId;
+        shortDescs[size] = shortDesc;
+        minTemps[size] = minTemp;
+        maxTemps[size] = maxTemp;
+        humidities[size] = humidity;
+        pressures[size] = pressure;
+        windSpeeds[size] = windSpeed;
+        this.degrees[size] = degrees;
+        size++;
+    }
+
+    public void addAll(WeatherBatch other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.locationIds[i], other.dates[i], other.weatherIds[i], other.shortDescs[i],
+                    other.minTemps[i], other.maxTemps[i], other.humidities[i],
+                    other.pressures[i], other.windSpeeds[i], other.degrees[i]);
+        }
+    }
+
+    /**
+     * Ties every row to one location, for rows collected before its row id was known.
+     */
+    public void setLocationId(long locationId) {
+        Arrays.fill(locationIds, 0, size, locationId);
+    }
+
+    private void grow(int capacity) {
+        locationIds = Arrays.copyOf(locationIds, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+        shortDescs = Arrays.copyOf(shortDescs, capacity);
+        minTemps = Arrays.copyOf(minTemps, capacity);
+        maxTemps = Arrays.copyOf(maxTemps, capacity);
+        humidities = Arrays.copyOf(humidities, capacity);
+        pressures = Arrays.copyOf(pressures, capacity);
+        windSpeeds = Arrays.copyOf(windSpeeds, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + size * 80);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(locationIds[i]);
+                out.writeLong(dates[i]);
+                out.writeInt(weatherIds[i]);
+                out.writeUTF(shortDescs[i]);
+                out.writeDouble(minTemps[i]);
+                out.writeDouble(maxTemps[i]);
+                out.writeDouble(humidities[i]);
+                out.writeDouble(pressures[i]);
+                out.writeDouble(windSpeeds[i]);
+                out.writeDouble(degrees[i]);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a batch
+     */
+    public static WeatherBatch fromBytes(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int format = in.readUnsignedByte();
+            if (format != FORMAT) {
+                throw new IllegalArgumentException("Unsupported weather batch format " + format);
+            }
+            int size = in.readInt();
+            // grows as rows are read, so a bad count cannot allocate much
+            WeatherBatch batch = new WeatherBatch(Math.min(size, 1024));
+            for (int i = 0; i < size; i++) {
+                batch.add(in.readLong(), in.readLong(), in.readInt(), in.readUTF(),
+                        in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                        in.readDouble(), in.readDouble());
+            }
+            return batch;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed weather batch", e);
+        }
+    }
+
+    /**
+     * @return the rows as a batch, or null if any of them lacks a column or has one the
+     * batch does not carry
+     */
+    static WeatherBatch fromValues(ContentValues[] values) {
+        WeatherBatch batch = new WeatherBatch(values.length);
+        for (ContentValues value : values) {
+            if (value.size() != COLUMN_COUNT) {
+                return null;
+            }
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            Integer weatherId = value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            String shortDesc = value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+            Double minTemp = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+            Double maxTemp = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            Double humidity = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY);
+            Double pressure = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+            Double windSpeed = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED);
+            Double degrees = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES);
+            if (locationId == null || date == null || weatherId == null || shortDesc == null
+                    || minTemp == null || maxTemp == null || humidity == null || pressure == null
+                    || windSpeed == null || degrees == null) {
+                return null;
+            }
+            batch.add(locationId, date, weatherId, shortDesc, minTemp, maxTemp, humidity,
+                    pressure, windSpeed, degrees);
+        }
+        return batch;
+    }
+}
@@ -43,12 +43,35 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    // Write-only paths for ContentProviderOperations, which cannot go through call().  Kept
+    // out of weather/ and location/ so they never shadow a location setting.
+    public static final String PATH_WEATHER_BATCH = "weather_batch";
+    public static final String PATH_LOCATION_UPSERT = "location_upsert";
+
+    // Provider call() that writes weather rows only where they differ from the stored ones.
+    // The rows are passed as a ContentValues array under EXTRA_VALUES, and the returned bundle
+    // holds how many rows were inserted, updated in place, or left unchanged.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+    public static final String EXTRA_VALUES = "values";
+    public static final String RESULT_INSERTED = "inserted";
+    public static final String RESULT_UPDATED = "updated";
+    public static final String RESULT_UNCHANGED = "unchanged";
+
+    // Provider call() with the same effect as METHOD_UPSERT_WEATHER, for complete rows passed
+    // as the bytes of a WeatherBatch under EXTRA_BATCH.  Returns the same counts.
+    public static final String METHOD_INSERT_WEATHER_BATCH = "insert_weather_batch";
+    public static final String EXTRA_BATCH = "batch";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(startDate, new Time());
+    }
+
+    // Same as above, reusing the given Time so a loop over many dates allocates none
+    public static long normalizeDate(long startDate, Time time) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,6 +104,16 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The numeric city id openweathermap resolved the location setting to.  Cached so
+        // several locations can be fetched in one batch request by id.  Null until the
+        // first successful sync of the location.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // Insert that returns the row of the location setting if there is one, refreshing
+        // its city id, and adds it otherwise.  Notifies only if something was written.
+        public static final Uri UPSERT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_LOCATION_UPSERT).build();
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -97,6 +130,13 @@ public class WeatherContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
+        // Update that writes the WeatherBatch bytes under EXTRA_BATCH the way
+        // METHOD_INSERT_WEATHER_BATCH does, tying the rows to COLUMN_LOC_KEY when it is given,
+        // so an operation can take the location from a back reference.  Returns the rows
+        // inserted or updated.
+        public static final Uri BATCH_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER_BATCH).build();
+
         public static final String TABLE_NAME = "weather";
 
         // Column with the foreign key into the location table.
@@ -165,4 +205,97 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /*
+        Inner class that defines the table contents of the hourly table, which holds the
+        3-hour forecast.  There are about 40 of these rows per location for every 14 daily
+        ones, so they are kept small: times are whole seconds, measurements are stored as
+        integers in tenths of their unit, and the weather id stands in for the description.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the 3-hour period, stored as long in seconds since the epoch
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon and the description
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        // Temperature in tenths of a degree Celsius
+        public static final String COLUMN_TEMP = "temp";
+
+        // Humidity in whole percent
+        public static final String COLUMN_HUMIDITY = "humidity";
+
+        // Pressure in tenths of a hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+
+        // Windspeed in tenths of a meter per second
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        // Meteorological degrees (e.g, 0 is north, 180 is south), whole degrees
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Query parameter bounding a range query from above, exclusive.  The lower bound,
+        // inclusive, goes in COLUMN_TIME.
+        public static final String PARAM_END_TIME = "end";
+
+        // Stored value of one unit of temperature, pressure or windspeed
+        public static final int SCALE = 10;
+
+        public static int quantize(double value) {
+            return (int) Math.round(value * SCALE);
+        }
+
+        public static double dequantize(long stored) {
+            return (double) stored / SCALE;
+        }
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @param startTime first period to return, in seconds since the epoch
+         * @param endTime end of the range, exclusive, in seconds since the epoch
+         */
+        public static Uri buildHourlyLocationWithRange(
+                String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_TIME, Long.toString(startTime))
+                    .appendQueryParameter(PARAM_END_TIME, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(COLUMN_TIME);
+            if (null != timeString && timeString.length() > 0)
+                return Long.parseLong(timeString);
+            else
+                return 0;
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(PARAM_END_TIME);
+            if (null != timeString && timeString.length() > 0)
+                return Long.parseLong(timeString);
+            else
+                return Long.MAX_VALUE;
+        }
+    }
 }
@@ -16,9 +16,15 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
+import android.database.DefaultDatabaseErrorHandler;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -26,14 +32,66 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
  * Manages a local database for weather data.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    public static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 5;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+    static final String INDEX_HOURLY_TIME = "hourly_time";
+
+    // Pages the write-ahead log may hold before a commit copies it back into the database.
+    // SQLite's own default rather than the platform's 100, so a sync of every location
+    // checkpoints once at most instead of every few transactions; the platform truncates
+    // the log back to its journal size limit afterwards.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    // Set when the tables were recreated over data we had, after an upgrade or a corrupt
+    // file, until the sync layer has refilled them; see isRestorePending
+    private static final String PREFS_NAME = "weather_db";
+    private static final String KEY_RESTORE_PENDING = "restore_pending";
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, new DefaultDatabaseErrorHandler());
+    }
+
+    private WeatherDbHelper(final Context context, final DatabaseErrorHandler errorHandler) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION, new DatabaseErrorHandler() {
+            @Override
+            public void onCorruption(SQLiteDatabase dbObj) {
+                // The default handler deletes the file; the next open creates it afresh
+                errorHandler.onCorruption(dbObj);
+                setRestorePending(context, true);
+            }
+        });
+        mContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Queries get connections of their own from the pool and read the last commit
+            // while the sync writes, instead of queuing for the one connection.  The pool is
+            // the platform's: its size is a device setting (com.android.internal.R.integer.
+            // db_connection_pool_size, 4 on most builds) that apps cannot change at our SDK
+            // level.  The UI, the widgets, Muzei and Wear rarely read at once, so that is
+            // enough connections.
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        // Applies to the primary connection, the one every write goes through
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES,
+                null);
     }
 
     @Override
@@ -45,7 +103,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,8 +138,50 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // Every column is an INTEGER, and _id aliases the rowid so it costs nothing.  The
+        // unique (location, time) index doubles as the index range queries for a location
+        // walk, already in time order.  WITHOUT ROWID would save the rowid too, but needs
+        // SQLite 3.8.2, which API 15 does not have.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        // The unique (date, location) index serves the upsert lookups and the retention
+        // delete by date, but its order is no use to the reads, which are all "one location
+        // from this date on".  This one is, and carries the columns of the forecast list so
+        // the list is read from the index alone, already in date order.
+        final String SQL_CREATE_WEATHER_LOCATION_INDEX = "CREATE INDEX " +
+                INDEX_WEATHER_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ");";
+
+        // Periods that are over are pruned by time across every location
+        final String SQL_CREATE_HOURLY_TIME_INDEX = "CREATE INDEX " +
+                INDEX_HOURLY_TIME + " ON " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_TIME + ");";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TIME_INDEX);
     }
 
     @Override
@@ -91,8 +192,28 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // It does NOT depend on the version number for your application.
         // If you want to update the schema without wiping data, commenting out the next 2 lines
         // should be your top priority before modifying this method.
+        // The forecast itself survives: the sync layer re-parses it from the archived
+        // responses once it sees the restore is pending.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        setRestorePending(mContext, true);
         onCreate(sqLiteDatabase);
     }
+
+    /**
+     * @return whether the tables were recreated over data we had, after an upgrade or a
+     * corrupt file, and not refilled since.  Only known once the database has been opened.
+     */
+    public static boolean isRestorePending(Context context) {
+        return getPrefs(context).getBoolean(KEY_RESTORE_PENDING, false);
+    }
+
+    public static void setRestorePending(Context context, boolean pending) {
+        getPrefs(context).edit().putBoolean(KEY_RESTORE_PENDING, pending).apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
 }
@@ -17,12 +17,25 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.sync.DataChangeBus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +43,19 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // What to notify once the applyBatch running on this thread commits; null outside one
+    private final ThreadLocal<ChangeNotifications> mPendingNotifications = new ThreadLocal<>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int HOURLY = 200;
+    static final int HOURLY_WITH_LOCATION = 201;
     static final int LOCATION = 300;
+    static final int WEATHER_BATCH = 400;
+    static final int LOCATION_UPSERT = 401;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,23 +71,126 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.date = ? AND weather.location_id = ?
+    static final String sDateAndLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //location.location_setting = ? AND hourly.time >= ? AND hourly.time < ?
+    static final String sLocationSettingWithTimeRangeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    static final String sHourlyTimeOrder =
+            WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+
+    private static final String sInsertHourlySql = "INSERT OR REPLACE INTO " +
+            WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.HourlyEntry.COLUMN_TIME + ", " +
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.HourlyEntry.COLUMN_TEMP + ", " +
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.HourlyEntry.COLUMN_DEGREES +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // Columns of an hourly row, in the order sInsertHourlySql binds them
+    private static final String[] sHourlyInsertColumns = {
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+            WeatherContract.HourlyEntry.COLUMN_DEGREES
+    };
+
+    // The weather columns in the order the two statements below number their parameters
+    private static final String sWeatherBatchColumns =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES;
+
+    // Rewrites the stored row of (?1, ?2) only when one of its columns differs
+    private static final String sUpdateWeatherSql = "UPDATE " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " SET " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?3, " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " = ?4, " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?5, " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?6, " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " = ?7, " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + " = ?8, " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " = ?9, " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + " = ?10 WHERE " +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " = ?2 AND NOT (" +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " IS ?3 AND " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " IS ?4 AND " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " IS ?5 AND " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " IS ?6 AND " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " IS ?7 AND " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + " IS ?8 AND " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " IS ?9 AND " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + " IS ?10)";
+
+    // OR IGNORE overrides the table's ON CONFLICT REPLACE, so a row the update above left
+    // alone because nothing differs is not replaced under a new id
+    private static final String sInsertWeatherSql = "INSERT OR IGNORE INTO " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " (" + sWeatherBatchColumns +
+            ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10)";
+
+    /*
+        Like the hourly query below: the location resolves to its id through the unique
+        location_setting index, and the dates then walk the (location_id, date) index of the
+        weather table, which also holds every column the forecast list shows.
+     */
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -108,6 +231,26 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /*
+        The location resolves to its id through the unique location_setting index, and the
+        time range then walks the (location_id, time) index of the hourly table, which hands
+        the rows back in time order without a sort.
+     */
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+        long endTime = WeatherContract.HourlyEntry.getEndTimeFromUri(uri);
+
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingWithTimeRangeSelection,
+                new String[]{locationSetting, Long.toString(startTime), Long.toString(endTime)},
+                null,
+                null,
+                sortOrder != null ? sortOrder : sHourlyTimeOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -129,7 +272,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_BATCH, WEATHER_BATCH);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION_UPSERT, LOCATION_UPSERT);
         return matcher;
     }
 
@@ -143,6 +292,13 @@ public class WeatherProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * @return the helper behind this provider; for tests
+     */
+    WeatherDbHelper getOpenHelper() {
+        return mOpenHelper;
+    }
+
     /*
         Students: Here's where you'll code the getType function that uses the UriMatcher.  You can
         test this by uncommenting testGetType in TestProvider.
@@ -162,8 +318,16 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case WEATHER_BATCH:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case LOCATION_UPSERT:
+                return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -200,6 +364,24 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
             // "location"
             case LOCATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -238,6 +420,17 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                ChangeNotifications changes = new ChangeNotifications();
+                addWeatherRow(db, changes, values);
+                notifyChange(changes);
+                return returnUri;
+            }
+            case HOURLY: {
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             case LOCATION: {
@@ -248,10 +441,12 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case LOCATION_UPSERT:
+                return upsertLocation(db, values);
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -263,9 +458,29 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                ChangeNotifications changes = new ChangeNotifications();
+                db.beginTransaction();
+                try {
+                    if ("1".equals(selection)) {
+                        changes.addAllWeather();
+                    } else {
+                        changes.addWeather(db, selection, selectionArgs);
+                    }
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    notifyChange(changes);
+                }
+                return rowsDeleted;
+            }
+            case HOURLY:
                 rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
@@ -276,7 +491,7 @@ public class WeatherProvider extends ContentProvider {
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -297,49 +512,399 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
+                ChangeNotifications changes = new ChangeNotifications();
+                db.beginTransaction();
+                try {
+                    changes.addWeather(db, selection, selectionArgs);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)) {
+                        // the rows moved to days or locations we did not look up
+                        changes.addAllWeather();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0) {
+                    notifyChange(changes);
+                }
+                return rowsUpdated;
+            }
+            case HOURLY:
+                rowsUpdated = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
+            case WEATHER_BATCH: {
+                WeatherBatch batch = WeatherBatch.fromBytes(
+                        values.getAsByteArray(WeatherContract.EXTRA_BATCH));
+                Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                if (locationId != null) {
+                    batch.setLocationId(locationId);
+                }
+                Bundle counts = writeWeatherBatch(batch);
+                return counts.getInt(WeatherContract.RESULT_INSERTED)
+                        + counts.getInt(WeatherContract.RESULT_UPDATED);
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+            case WEATHER: {
+                // Counts the rows actually written; unchanged rows are left alone.  Complete
+                // rows take the compiled statements, partial ones the column by column upsert
+                WeatherBatch batch = WeatherBatch.fromValues(values);
+                Bundle counts = batch != null
+                        ? writeWeatherBatch(batch)
+                        : upsertWeather(values);
+                return counts.getInt(WeatherContract.RESULT_INSERTED)
+                        + counts.getInt(WeatherContract.RESULT_UPDATED);
+            }
+            case HOURLY:
+                return insertHourly(uri, values);
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /*
+        Runs the whole list in one transaction, so a sync's location, weather rows and pruning
+        commit together.  The writes inside notify nothing themselves; every URI they would
+        have notified is notified once after the commit, and none if the batch fails.  Weather
+        rows written by several operations are scoped together, so a location whose days were
+        written by one operation and pruned by another is notified once.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ChangeNotifications notifications = new ChangeNotifications();
+        ContentProviderResult[] results;
+        mPendingNotifications.set(notifications);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+        }
+        sendNotifications(notifications);
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        ChangeNotifications changes = new ChangeNotifications();
+        changes.add(uri);
+        notifyChange(changes);
+    }
+
+    private void notifyChange(ChangeNotifications changes) {
+        ChangeNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.addAll(changes);
+        } else {
+            sendNotifications(changes);
+        }
+    }
+
+    /*
+        Tells the observers, and the widgets, Muzei, the notification and Wear through the
+        bus when weather rows changed, whoever wrote them.  The bus collects the changes of
+        a burst of writes, such as a sync of several locations, into one fan-out.
+     */
+    private void sendNotifications(ChangeNotifications changes) {
+        for (Uri uri : changes.getUris()) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        if (changes.hasWeather()) {
+            DataChangeBus.getInstance(getContext()).post(DataChangeBus.CHANGE_FORECAST);
+        }
+    }
+
+    // Adds a weather row about to be written from its values, which may be partial
+    private static void addWeatherRow(SQLiteDatabase db, ChangeNotifications changes,
+                                      ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            changes.addWeather(db, locationId, date);
+        } else {
+            changes.addAllWeather();
+        }
+    }
+
+    /*
+        What the sync did with a location row through a query and an insert or update: the
+        row of the location setting is kept, with its city id refreshed when OWM resolves the
+        setting to another city, or inserted with every value given.
+     */
+    private Uri upsertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        Long cityId = values.getAsLong(WeatherContract.LocationEntry.COLUMN_CITY_ID);
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                long _id = cursor.getLong(0);
+                if (cityId != null && cityId != 0 && (cursor.isNull(1)
+                        || cursor.getLong(1) != cityId)) {
+                    ContentValues cityIdValues = new ContentValues();
+                    cityIdValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+                    db.update(WeatherContract.LocationEntry.TABLE_NAME, cityIdValues,
+                            WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(_id)});
+                    notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                }
+                return WeatherContract.LocationEntry.buildLocationUri(_id);
+            }
+        } finally {
+            cursor.close();
+        }
+        long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        if (_id <= 0) {
+            throw new android.database.SQLException("Failed to insert location " + locationSetting);
+        }
+        notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        return WeatherContract.LocationEntry.buildLocationUri(_id);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            Parcelable[] parcels = extras.getParcelableArray(WeatherContract.EXTRA_VALUES);
+            ContentValues[] values = new ContentValues[parcels.length];
+            System.arraycopy(parcels, 0, values, 0, parcels.length);
+            return upsertWeather(values);
+        } else if (WeatherContract.METHOD_INSERT_WEATHER_BATCH.equals(method)) {
+            WeatherBatch batch = WeatherBatch.fromBytes(
+                    extras.getByteArray(WeatherContract.EXTRA_BATCH));
+            return writeWeatherBatch(batch);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+        The upsert below for complete rows, through two statements compiled once for the batch
+        and rebound per row: an UPDATE that only matches a stored row differing from the new
+        one, then, where it matched nothing, an INSERT that gives way to a stored row.  No
+        cursor, ContentValues or SQL string per row, and one Time for all the dates.
+     */
+    private Bundle writeWeatherBatch(WeatherBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ChangeNotifications changes = new ChangeNotifications();
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        Time time = new Time();
+        db.beginTransaction();
+        SQLiteStatement update = db.compileStatement(sUpdateWeatherSql);
+        SQLiteStatement insert = db.compileStatement(sInsertWeatherSql);
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                long date = WeatherContract.normalizeDate(batch.dates[i], time);
+                bindWeatherRow(update, batch, i, date);
+                if (update.executeUpdateDelete() > 0) {
+                    updated++;
+                    changes.addWeather(db, batch.locationIds[i], date);
+                    continue;
+                }
+                bindWeatherRow(insert, batch, i, date);
+                if (insert.executeInsert() != -1) {
+                    inserted++;
+                    changes.addWeather(db, batch.locationIds[i], date);
+                } else {
+                    unchanged++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            update.close();
+            insert.close();
+            db.endTransaction();
+        }
+        if (inserted + updated > 0) {
+            notifyChange(changes);
+        }
+
+        Bundle counts = new Bundle();
+        counts.putInt(WeatherContract.RESULT_INSERTED, inserted);
+        counts.putInt(WeatherContract.RESULT_UPDATED, updated);
+        counts.putInt(WeatherContract.RESULT_UNCHANGED, unchanged);
+        return counts;
+    }
+
+    private static void bindWeatherRow(SQLiteStatement statement, WeatherBatch batch, int i,
+                                       long date) {
+        statement.bindLong(1, batch.locationIds[i]);
+        statement.bindLong(2, date);
+        statement.bindLong(3, batch.weatherIds[i]);
+        statement.bindString(4, batch.shortDescs[i]);
+        statement.bindDouble(5, batch.minTemps[i]);
+        statement.bindDouble(6, batch.maxTemps[i]);
+        statement.bindDouble(7, batch.humidities[i]);
+        statement.bindDouble(8, batch.pressures[i]);
+        statement.bindDouble(9, batch.windSpeeds[i]);
+        statement.bindDouble(10, batch.degrees[i]);
+    }
+
+    /*
+        Writes weather rows in place.  A row whose (date, location) already exists is updated
+        only in the columns that differ, or left alone when none do, so row ids stay stable and
+        a sync that brings nothing new does not wake any observer.
+     */
+    private Bundle upsertWeather(ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ChangeNotifications changes = new ChangeNotifications();
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value);
+                String date = value.getAsString(WeatherContract.WeatherEntry.COLUMN_DATE);
+                String locationId = value.getAsString(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Cursor cursor = null;
+                if (date != null && locationId != null) {
+                    cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                            null,
+                            sDateAndLocationIdSelection,
+                            new String[]{date, locationId},
+                            null,
+                            null,
+                            null);
+                }
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
+                    if (cursor == null || !cursor.moveToFirst()) {
                         long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            inserted++;
+                            addWeatherRow(db, changes, value);
                         }
+                        continue;
+                    }
+                    ContentValues changed = getChangedColumns(cursor, value);
+                    if (changed.size() == 0) {
+                        unchanged++;
+                    } else {
+                        long _id = cursor.getLong(
+                                cursor.getColumnIndex(WeatherContract.WeatherEntry._ID));
+                        db.update(WeatherContract.WeatherEntry.TABLE_NAME, changed,
+                                WeatherContract.WeatherEntry._ID + " = ?",
+                                new String[]{Long.toString(_id)});
+                        updated++;
+                        addWeatherRow(db, changes, value);
                     }
-                    db.setTransactionSuccessful();
                 } finally {
-                    db.endTransaction();
+                    if (cursor != null) {
+                        cursor.close();
+                    }
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (inserted + updated > 0) {
+            notifyChange(changes);
+        }
+
+        Bundle counts = new Bundle();
+        counts.putInt(WeatherContract.RESULT_INSERTED, inserted);
+        counts.putInt(WeatherContract.RESULT_UPDATED, updated);
+        counts.putInt(WeatherContract.RESULT_UNCHANGED, unchanged);
+        return counts;
+    }
+
+    /*
+        Writes hourly rows through one statement compiled for the whole batch, rebinding it
+        per row, instead of building an INSERT for every ContentValues.  A row for a period
+        that is already stored replaces it.
+     */
+    private int insertHourly(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int inserted = 0;
+        db.beginTransaction();
+        SQLiteStatement statement = db.compileStatement(sInsertHourlySql);
+        try {
+            for (ContentValues value : values) {
+                statement.clearBindings();
+                for (int i = 0; i < sHourlyInsertColumns.length; i++) {
+                    Long column = value.getAsLong(sHourlyInsertColumns[i]);
+                    if (column == null) {
+                        // fails the NOT NULL constraint, and with it the batch
+                        statement.bindNull(i + 1);
+                    } else {
+                        statement.bindLong(i + 1, column);
+                    }
+                }
+                if (statement.executeInsert() != -1) {
+                    inserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+        if (inserted > 0) {
+            notifyChange(uri);
+        }
+        return inserted;
+    }
+
+    /**
+     * @return the subset of values that differs from the row under the cursor
+     */
+    static ContentValues getChangedColumns(Cursor cursor, ContentValues values) {
+        ContentValues changed = new ContentValues(values);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = cursor.getColumnIndex(entry.getKey());
+            if (index != -1 && isSameValue(cursor, index, entry.getValue())) {
+                changed.remove(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    // Compares by type rather than by string, so a REAL read back from SQLite matches the
+    // double it was written from
+    private static boolean isSameValue(Cursor cursor, int index, Object value) {
+        if (cursor.isNull(index)) {
+            return value == null;
+        } else if (value == null) {
+            return false;
+        } else if (value instanceof Double || value instanceof Float) {
+            return cursor.getDouble(index) == ((Number) value).doubleValue();
+        } else if (value instanceof Number) {
+            return cursor.getLong(index) == ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            return cursor.getLong(index) == ((Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            return Arrays.equals(cursor.getBlob(index), (byte[]) value);
         }
+        return value.toString().equals(cursor.getString(index));
     }
 
     // You do not need to call this method. This is a method specifically to assist the testing
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sunshine.app.gcm;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.SyncScheduler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Forecast changes pushed in a GCM data message, applied without a network fetch.
+ *
+ * The payload only carries the days that changed, and of those only the fields that
+ * changed, keyed like the OWM response:
+ * <pre>
+ * {"locations": [{"location": "94043",
+ *                 "days": [{"day": 2457650, "max": 21.5, "main": "Rain", "id": 500}]}]}
+ * </pre>
+ * where "day" is the Julian day the row is for.  A day that is not stored yet needs every
+ * field, or it is dropped.
+ */
+public class ForecastDelta {
+    public static final String LOG_TAG = ForecastDelta.class.getSimpleName();
+
+    private static final String KEY_LOCATIONS = "locations";
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_DAYS = "days";
+    private static final String KEY_DAY = "day";
+
+    private static final String KEY_WEATHER_ID = "id";
+    private static final String KEY_DESCRIPTION = "main";
+
+    // Payload keys of the numeric fields, and the weather columns they go to
+    private static final String[][] sRealFields = {
+            {"max", WeatherContract.WeatherEntry.COLUMN_MAX_TEMP},
+            {"min", WeatherContract.WeatherEntry.COLUMN_MIN_TEMP},
+            {"humidity", WeatherContract.WeatherEntry.COLUMN_HUMIDITY},
+            {"pressure", WeatherContract.WeatherEntry.COLUMN_PRESSURE},
+            {"speed", WeatherContract.WeatherEntry.COLUMN_WIND_SPEED},
+            {"deg", WeatherContract.WeatherEntry.COLUMN_DEGREES},
+    };
+
+    /**
+     * @return the changed rows of each location in the payload, without their location id
+     * @throws JSONException if the payload is not a forecast delta
+     */
+    public static Map<String, List<ContentValues>> parse(String json) throws JSONException {
+        Map<String, List<ContentValues>> deltas = new LinkedHashMap<>();
+        JSONArray locations = new JSONObject(json).getJSONArray(KEY_LOCATIONS);
+        Time dayTime = new Time();
+        for (int i = 0; i < locations.length(); i++) {
+            JSONObject location = locations.getJSONObject(i);
+            JSONArray days = location.getJSONArray(KEY_DAYS);
+            List<ContentValues> rows = new ArrayList<>();
+            for (int j = 0; j < days.length(); j++) {
+                JSONObject day = days.getJSONObject(j);
+                ContentValues values = new ContentValues();
+                values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        dayTime.setJulianDay(day.getInt(KEY_DAY)));
+                if (day.has(KEY_WEATHER_ID)) {
+                    values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                            day.getInt(KEY_WEATHER_ID));
+                }
+                if (day.has(KEY_DESCRIPTION)) {
+                    values.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                            day.getString(KEY_DESCRIPTION));
+                }
+                for (String[] field : sRealFields) {
+                    if (day.has(field[0])) {
+                        values.put(field[1], day.getDouble(field[0]));
+                    }
+                }
+                rows.add(values);
+            }
+            deltas.put(location.getString(KEY_LOCATION), rows);
+        }
+        return deltas;
+    }
+
+    /**
+     * Writes the changes of the locations this device syncs in one transaction, then tells
+     * the widgets and the watch if anything actually changed.  Locations the device does not
+     * sync, or has never synced, are skipped.
+     *
+     * @return the number of rows inserted or updated
+     */
+    public static int apply(Context context, Map<String, List<ContentValues>> deltas) {
+        Set<String> subscribed = Utility.getSyncLocations(context);
+        List<ContentValues> rows = new ArrayList<>();
+        for (Map.Entry<String, List<ContentValues>> entry : deltas.entrySet()) {
+            if (!subscribed.contains(entry.getKey())) {
+                Log.d(LOG_TAG, "Skipping delta for unsubscribed " + entry.getKey());
+                continue;
+            }
+            long locationId = queryLocationId(context, entry.getKey());
+            if (locationId == -1) {
+                // the next sync fetches it whole
+                continue;
+            }
+            for (ContentValues values : entry.getValue()) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                rows.add(values);
+            }
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES,
+                rows.toArray(new ContentValues[rows.size()]));
+        Bundle counts = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+        int changed = counts.getInt(WeatherContract.RESULT_INSERTED)
+                + counts.getInt(WeatherContract.RESULT_UPDATED);
+        Log.d(LOG_TAG, rows.size() + " pushed rows, " + changed + " changed");
+        // the forecast is as fresh as a sync would have made it
+        new SyncScheduler(context).recordPush();
+        return changed;
+    }
+
+    private static long queryLocationId(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.DataChangeBus;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -42,8 +43,17 @@ public class MyGcmListenerService extends GcmListenerService {
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
 
+    // Data messages carrying forecast changes instead of an alert; see ForecastDelta
+    static final String EXTRA_TYPE = "type";
+    static final String EXTRA_DELTA = "delta";
+    static final String TYPE_FORECAST_DELTA = "forecast_delta";
+
     public static final int NOTIFICATION_ID = 1;
 
+    // The latest alert not shown yet; alerts share one notification, so a burst of them only
+    // needs the last one posted
+    private static String sPendingAlert;
+
     /**
      * Called when message is received.
      *
@@ -53,51 +63,98 @@ public class MyGcmListenerService extends GcmListenerService {
      */
     @Override
     public void onMessageReceived(String from, Bundle data) {
+        // TODO: gcm_default sender ID comes from the API console
+        if (!data.isEmpty() && getString(R.string.gcm_defaultSenderId).length() == 0) {
+            Toast.makeText(this, "SenderID string needs to be set", Toast.LENGTH_LONG).show();
+        }
+        handleMessage(this, from, data);
+    }
+
+    /**
+     * Does the work of {@link #onMessageReceived}, outside the service so tests can deliver
+     * messages without GCM.
+     */
+    static void handleMessage(Context context, String from, Bundle data) {
         // Time to unparcel the bundle!
         if (!data.isEmpty()) {
-            // TODO: gcm_default sender ID comes from the API console
-            String senderId = getString(R.string.gcm_defaultSenderId);
-            if (senderId.length() == 0) {
-                Toast.makeText(this, "SenderID string needs to be set", Toast.LENGTH_LONG).show();
-            }
+            String senderId = context.getString(R.string.gcm_defaultSenderId);
             // Not a bad idea to check that the message is coming from your server.
             if ((senderId).equals(from)) {
-                // Process message and then post a notification of the received message.
-                try {
-                    JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
-                    String weather = jsonObject.getString(EXTRA_WEATHER);
-                    String location = jsonObject.getString(EXTRA_LOCATION);
-                    String alert =
-                            String.format(getString(R.string.gcm_weather_alert), weather, location);
-                    sendNotification(alert);
-                } catch (JSONException e) {
-                    // JSON parsing failed, so we just let this message go, since GCM is not one
-                    // of our critical features.
+                if (TYPE_FORECAST_DELTA.equals(data.getString(EXTRA_TYPE))) {
+                    applyForecastDelta(context, data.getString(EXTRA_DELTA));
+                } else {
+                    postAlert(context, data);
                 }
             }
             Log.i(TAG, "Received: " + data.toString());
         }
     }
 
+    // Process message and then post a notification of the received message.
+    private static void postAlert(Context context, Bundle data) {
+        try {
+            JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
+            String weather = jsonObject.getString(EXTRA_WEATHER);
+            String location = jsonObject.getString(EXTRA_LOCATION);
+            String alert =
+                    String.format(context.getString(R.string.gcm_weather_alert), weather, location);
+            synchronized (MyGcmListenerService.class) {
+                sPendingAlert = alert;
+            }
+            DataChangeBus.getInstance(context).post(DataChangeBus.CHANGE_ALERT);
+        } catch (JSONException e) {
+            // JSON parsing failed, so we just let this message go, since GCM is not one
+            // of our critical features.
+        }
+    }
+
+    private static void applyForecastDelta(Context context, String delta) {
+        if (delta == null) {
+            Log.w(TAG, "Forecast delta without a payload");
+            return;
+        }
+        try {
+            ForecastDelta.apply(context, ForecastDelta.parse(delta));
+        } catch (JSONException e) {
+            // the next sync fetches whatever this would have changed
+            Log.w(TAG, "Malformed forecast delta", e);
+        }
+    }
+
+    /**
+     * Posts the latest alert received, if it has not been shown yet.  Called by the
+     * {@link DataChangeBus} once a burst of alerts is over.
+     */
+    public static void showPendingAlert(Context context) {
+        String alert;
+        synchronized (MyGcmListenerService.class) {
+            alert = sPendingAlert;
+            sPendingAlert = null;
+        }
+        if (alert != null) {
+            sendNotification(context, alert);
+        }
+    }
+
     /**
      *  Put the message into a notification and post it.
      *  This is just one simple example of what you might choose to do with a GCM message.
      *
      * @param message The alert message to be posted.
      */
-    private void sendNotification(String message) {
+    private static void sendNotification(Context context, String message) {
         NotificationManager mNotificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         PendingIntent contentIntent =
-                PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+                PendingIntent.getActivity(context, 0, new Intent(context, MainActivity.class), 0);
 
         // Notifications using both a large and a small icon (which yours should!) need the large
         // icon as a bitmap. So we need to create that here from the resource ID, and pass the
         // object along in our notification builder. Generally, you want to use the app icon as the
         // small icon, so that users understand what app is triggering this notification.
-        Bitmap largeIcon = BitmapFactory.decodeResource(this.getResources(), R.drawable.art_storm);
+        Bitmap largeIcon = BitmapFactory.decodeResource(context.getResources(), R.drawable.art_storm);
         NotificationCompat.Builder mBuilder =
-                new NotificationCompat.Builder(this)
+                new NotificationCompat.Builder(context)
                         .setSmallIcon(R.drawable.art_clear)
                         .setLargeIcon(largeIcon)
                         .setContentTitle("Weather Alert!")
@@ -0,0 +1,107 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Picks the next sync from when new forecasts are published and how much staleness the
+ * current situation tolerates.
+ *
+ * OpenWeatherMap publishes daily forecasts derived from the global models, which run every
+ * six hours from 00:00 UTC and reach the API a few hours later.  Between two runs the forecast
+ * barely moves, so syncs are placed just after a run lands.  How many runs may be skipped
+ * depends on the tolerance: shorter while the app is being looked at or the forecast is
+ * moving a lot, longer at night, when recent syncs changed little, or when nobody has looked
+ * in days.
+ */
+public class AdaptiveSyncPolicy implements SyncPolicy {
+
+    public static final long BASE_INTERVAL_SECONDS = 3 * 60 * 60;
+    public static final long MIN_INTERVAL_SECONDS = 30 * 60;
+    public static final long MAX_INTERVAL_SECONDS = 12 * 60 * 60;
+
+    // Model runs start every six hours and are served about four hours later, give or take
+    // the half hour it takes them to reach every server
+    static final long MODEL_RUN_PERIOD_MILLIS = 6 * HOUR_IN_MILLIS;
+    static final long MODEL_RUN_LAG_MILLIS = 4 * HOUR_IN_MILLIS;
+    static final long MODEL_RUN_SETTLE_MILLIS = 45 * 60 * 1000;
+
+    // Above HIGH the forecast is moving and we tolerate half the staleness; below LOW twice
+    static final double HIGH_CHANGE_RATIO = 0.5;
+    static final double LOW_CHANGE_RATIO = 0.1;
+
+    // Used within the last hour counts as being looked at; unused for 3 days as abandoned
+    static final long ACTIVE_WINDOW_MILLIS = HOUR_IN_MILLIS;
+    static final long IDLE_WINDOW_MILLIS = 72 * HOUR_IN_MILLIS;
+
+    // Local hours during which nobody is expected to look, unless they just did
+    static final int NIGHT_START_HOUR = 23;
+    static final int NIGHT_END_HOUR = 6;
+
+    @Override
+    public long getNextSyncDelaySeconds(Signals signals) {
+        long now = signals.nowMillis;
+        long sinceUsed = now - signals.lastUsedMillis;
+        boolean active = signals.lastUsedMillis > 0 && sinceUsed < ACTIVE_WINDOW_MILLIS;
+
+        // Someone is looking at a forecast that a newer run has already replaced
+        if (active && signals.lastSyncMillis > 0
+                && getNextLandingMillis(signals.lastSyncMillis) <= now) {
+            return 0;
+        }
+
+        double factor = 1.0;
+        boolean moving = signals.changeRatio >= HIGH_CHANGE_RATIO;
+        if (moving) {
+            factor *= 0.5;
+        } else if (signals.changeRatio <= LOW_CHANGE_RATIO) {
+            factor *= 2;
+        }
+        if (active) {
+            factor *= 0.5;
+        } else if (!signals.hasPassiveViewer
+                && (signals.lastUsedMillis == 0 || sinceUsed > IDLE_WINDOW_MILLIS)) {
+            factor *= 4;
+        }
+        int hour = signals.getLocalHour();
+        if (!active && (hour >= NIGHT_START_HOUR || hour < NIGHT_END_HOUR)) {
+            factor *= 2;
+        }
+        long tolerance = clamp((long) (BASE_INTERVAL_SECONDS * factor)) * 1000;
+
+        // Sync on the last run that lands within the tolerance.  If none does, wait for the
+        // next one, since nothing new will be there before it, unless the forecast has been
+        // moving between runs too.
+        long landing = getNextLandingMillis(now);
+        if (landing > now + tolerance) {
+            return clamp(toSeconds(moving ? tolerance : landing - now));
+        }
+        while (landing + MODEL_RUN_PERIOD_MILLIS <= now + tolerance) {
+            landing += MODEL_RUN_PERIOD_MILLIS;
+        }
+        return clamp(toSeconds(landing - now));
+    }
+
+    /**
+     * @return the first time after the given one when a model run has landed everywhere
+     */
+    static long getNextLandingMillis(long fromMillis) {
+        return getNextModelRunMillis(fromMillis - MODEL_RUN_SETTLE_MILLIS + 1)
+                + MODEL_RUN_SETTLE_MILLIS;
+    }
+
+    /**
+     * @return the first time at or after the given one when a model run becomes available
+     */
+    static long getNextModelRunMillis(long fromMillis) {
+        long sinceFirst = fromMillis - MODEL_RUN_LAG_MILLIS;
+        long runs = (long) Math.ceil(sinceFirst / (double) MODEL_RUN_PERIOD_MILLIS);
+        return runs * MODEL_RUN_PERIOD_MILLIS + MODEL_RUN_LAG_MILLIS;
+    }
+
+    // Rounds up, so a sync never wakes just short of the landing it was aimed at
+    private static long toSeconds(long millis) {
+        return (millis + 999) / 1000;
+    }
+
+    private static long clamp(long delaySeconds) {
+        return Math.max(MIN_INTERVAL_SECONDS, Math.min(MAX_INTERVAL_SECONDS, delaySeconds));
+    }
+}
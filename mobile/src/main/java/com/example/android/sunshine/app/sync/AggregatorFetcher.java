@@ -0,0 +1,114 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the forecasts of every location from our own aggregator in one exchange of
+ * {@link DeltaProtocol} messages: the versions held go up, only the days that changed come
+ * back.
+ *
+ * Also keeps the version of every location's stored forecast, in its own SharedPreferences
+ * file like the HTTP validators.
+ */
+public class AggregatorFetcher {
+
+    private static final String PREFS_NAME = "aggregator_versions";
+
+    public static class Result {
+        public int messageCode;
+        public long requestBytes;
+        public long wireBytes;
+        public long decodedBytes;
+        // until the response headers were in, and from then until the body was decoded
+        public long headersMillis;
+        public long bodyMillis;
+    }
+
+    /**
+     * @return the version held of each location, 0 for the ones not held
+     */
+    public static Map<String, Long> getVersions(Context context, Set<String> locations) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Map<String, Long> versions = new LinkedHashMap<>();
+        for (String location : locations) {
+            versions.put(location, prefs.getLong(location, 0));
+        }
+        return versions;
+    }
+
+    /**
+     * Remembers the versions of forecasts that have been stored.
+     */
+    public static void putVersions(Context context, Map<String, Long> versions) {
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            editor.putLong(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+    }
+
+    /**
+     * Posts the versions held and streams the answer into the callback.
+     *
+     * @param days days of forecast wanted, counted from today
+     * @throws IOException if the request failed or the response is not in the protocol
+     */
+    public static Result fetch(URL url, Map<String, Long> versions, int days,
+                               int julianStartDay, DeltaProtocol.Callback callback)
+            throws IOException {
+        Result result = new Result();
+        byte[] request = DeltaProtocol.encodeRequest(versions, days);
+        result.requestBytes = request.length;
+
+        SunshineHttpClient.Call call = null;
+        HttpResponseBody body = null;
+        try {
+            call = SunshineHttpClient.getInstance().newCall(url);
+            HttpURLConnection connection = call.getConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.length);
+            connection.setRequestProperty("Content-Type", DeltaProtocol.CONTENT_TYPE);
+            connection.setRequestProperty("Accept", DeltaProtocol.CONTENT_TYPE);
+            HttpResponseBody.requestCompression(connection);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(request);
+            } finally {
+                out.close();
+            }
+
+            result.messageCode = call.execute();
+            if (result.messageCode != HttpURLConnection.HTTP_OK) {
+                return result;
+            }
+            body = HttpResponseBody.open(connection);
+            if (body == null) {
+                throw new IOException("No response body from " + url.getHost());
+            }
+            DeltaProtocol.decodeResponse(body.getInputStream(), julianStartDay, callback);
+            return result;
+        } finally {
+            if (body != null) {
+                result.wireBytes = body.getWireBytes();
+                result.decodedBytes = body.getDecodedBytes();
+                body.close();
+            }
+            if (call != null) {
+                call.close();
+                result.headersMillis = call.getTiming().headersMillis;
+                result.bodyMillis = call.getTiming().totalMillis - result.headersMillis;
+            }
+        }
+    }
+}
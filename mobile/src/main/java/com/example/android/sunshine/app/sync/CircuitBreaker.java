@@ -0,0 +1,148 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * A circuit breaker per endpoint host, persisted so it survives the sync process being killed.
+ *
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the circuit opens and requests to that
+ * host are refused for an exponentially growing, jittered backoff.  Once the backoff is over a
+ * single probe request is let through (half-open); its outcome either closes the circuit or
+ * opens it again for twice as long.
+ */
+public class CircuitBreaker {
+    public static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    private static final String PREFS_NAME = "circuit_breaker";
+
+    private static final String SUFFIX_STATE = "#state";
+    private static final String SUFFIX_FAILURES = "#failures";
+    private static final String SUFFIX_OPENS = "#opens";
+    private static final String SUFFIX_OPEN_UNTIL = "#open_until";
+    private static final String SUFFIX_PROBE_STARTED = "#probe_started";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 2;
+    static final long BASE_BACKOFF_MILLIS = 5 * 60 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+
+    // A probe that has not reported back by then is assumed lost, and another one may go
+    static final long PROBE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    // Locations sync in parallel, so transitions must be serialized
+    private static final Object sLock = new Object();
+    private static final Random sRandom = new Random();
+
+    private final SharedPreferences mPrefs;
+    private final long mBaseBackoffMillis;
+    private final long mMaxBackoffMillis;
+
+    public CircuitBreaker(Context context) {
+        this(context, BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    CircuitBreaker(Context context, long baseBackoffMillis, long maxBackoffMillis) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @return true if a request to the host may go out now.  When the backoff has just run
+     * out this lets exactly one probe through.
+     */
+    public boolean allowRequest(String host) {
+        long now = System.currentTimeMillis();
+        synchronized (sLock) {
+            switch (mPrefs.getInt(host + SUFFIX_STATE, STATE_CLOSED)) {
+                case STATE_OPEN:
+                    if (now < mPrefs.getLong(host + SUFFIX_OPEN_UNTIL, 0)) {
+                        return false;
+                    }
+                    break;
+                case STATE_HALF_OPEN:
+                    if (now - mPrefs.getLong(host + SUFFIX_PROBE_STARTED, 0)
+                            < PROBE_TIMEOUT_MILLIS) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return true;
+            }
+            mPrefs.edit()
+                    .putInt(host + SUFFIX_STATE, STATE_HALF_OPEN)
+                    .putLong(host + SUFFIX_PROBE_STARTED, now)
+                    .apply();
+            Log.d(LOG_TAG, host + ": probing");
+            return true;
+        }
+    }
+
+    public void recordSuccess(String host) {
+        synchronized (sLock) {
+            if (mPrefs.getInt(host + SUFFIX_STATE, STATE_CLOSED) == STATE_CLOSED
+                    && mPrefs.getInt(host + SUFFIX_FAILURES, 0) == 0) {
+                return;
+            }
+            mPrefs.edit()
+                    .remove(host + SUFFIX_STATE)
+                    .remove(host + SUFFIX_FAILURES)
+                    .remove(host + SUFFIX_OPENS)
+                    .remove(host + SUFFIX_OPEN_UNTIL)
+                    .remove(host + SUFFIX_PROBE_STARTED)
+                    .apply();
+            Log.d(LOG_TAG, host + ": closed");
+        }
+    }
+
+    public void recordFailure(String host) {
+        long now = System.currentTimeMillis();
+        synchronized (sLock) {
+            int state = mPrefs.getInt(host + SUFFIX_STATE, STATE_CLOSED);
+            int failures = mPrefs.getInt(host + SUFFIX_FAILURES, 0) + 1;
+            SharedPreferences.Editor editor = mPrefs.edit()
+                    .putInt(host + SUFFIX_FAILURES, failures);
+            if (state == STATE_HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+                int opens = mPrefs.getInt(host + SUFFIX_OPENS, 0) + 1;
+                long backoff = getBackoffMillis(opens);
+                editor.putInt(host + SUFFIX_STATE, STATE_OPEN)
+                        .putInt(host + SUFFIX_OPENS, opens)
+                        .putLong(host + SUFFIX_OPEN_UNTIL, now + backoff);
+                Log.d(LOG_TAG, host + ": open for " + backoff / 1000 + "s");
+            }
+            editor.apply();
+        }
+    }
+
+    /**
+     * @return milliseconds until the host will be tried again, 0 if it may be tried now
+     */
+    public long getRetryAfterMillis(String host) {
+        synchronized (sLock) {
+            if (mPrefs.getInt(host + SUFFIX_STATE, STATE_CLOSED) != STATE_OPEN) {
+                return 0;
+            }
+            return Math.max(0,
+                    mPrefs.getLong(host + SUFFIX_OPEN_UNTIL, 0) - System.currentTimeMillis());
+        }
+    }
+
+    int getState(String host) {
+        return mPrefs.getInt(host + SUFFIX_STATE, STATE_CLOSED);
+    }
+
+    // Doubles with every consecutive opening, then keeps a random half of it so that devices
+    // cut off by the same outage do not all come back at the same moment
+    long getBackoffMillis(int opens) {
+        long backoff = mBaseBackoffMillis << Math.min(opens - 1, 20);
+        backoff = Math.min(mMaxBackoffMillis, backoff);
+        return backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+    }
+}
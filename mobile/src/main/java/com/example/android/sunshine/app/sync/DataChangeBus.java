@@ -0,0 +1,177 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects "data changed" events from the provider, the settings screen and GCM, and tells the
+ * consumers (widgets, Muzei, the notification, Wear, the lists) about them once the burst is
+ * over.
+ *
+ * Events are flags.  Posting one starts a short debounce window that every further event
+ * restarts, up to a cap; when it closes, every consumer interested in any of the collected
+ * flags runs exactly once, in parallel with the others, so changing the location and then
+ * the units renders the widgets and pushes to Wear once rather than twice.
+ */
+public class DataChangeBus {
+    public static final String LOG_TAG = DataChangeBus.class.getSimpleName();
+
+    // New or changed forecast rows
+    public static final int CHANGE_FORECAST = 1;
+    // Display settings: temperature units
+    public static final int CHANGE_UNITS = 1 << 1;
+    // The art pack used for the weather images
+    public static final int CHANGE_ART = 1 << 2;
+    // A weather alert pushed through GCM
+    public static final int CHANGE_ALERT = 1 << 3;
+
+    static final long DEBOUNCE_MILLIS = 500;
+    static final long MAX_DELAY_MILLIS = 2000;
+
+    static final int DISPATCH_THREADS = 2;
+
+    public interface Consumer {
+        /**
+         * Called on a dispatch thread, at most once per burst.
+         *
+         * @param changes every flag collected during the burst
+         */
+        void onDataChanged(int changes);
+    }
+
+    public interface DispatchListener {
+        /**
+         * Called once every consumer of a burst has returned.
+         */
+        void onDispatched(int changes, int consumers, long millis);
+    }
+
+    private static class Registration {
+        final String name;
+        final int interests;
+        final Consumer consumer;
+
+        Registration(String name, int interests, Consumer consumer) {
+            this.name = name;
+            this.interests = interests;
+            this.consumer = consumer;
+        }
+    }
+
+    private static DataChangeBus sInstance;
+
+    private final List<Registration> mConsumers = new ArrayList<>();
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mDispatcher = Executors.newFixedThreadPool(DISPATCH_THREADS);
+    private final long mDebounceMillis;
+    private final long mMaxDelayMillis;
+    private DispatchListener mListener;
+
+    // Guarded by this
+    private int mPending;
+    private long mFirstPostMillis;
+    private ScheduledFuture<?> mScheduled;
+
+    /**
+     * @return the bus every part of the app posts to, with the app's consumers registered
+     */
+    public static synchronized DataChangeBus getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataChangeBus(DEBOUNCE_MILLIS, MAX_DELAY_MILLIS);
+            DataChangeConsumers.register(context.getApplicationContext(), sInstance);
+        }
+        return sInstance;
+    }
+
+    DataChangeBus(long debounceMillis, long maxDelayMillis) {
+        mDebounceMillis = debounceMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param interests the CHANGE_ flags the consumer cares about
+     */
+    public synchronized void register(String name, int interests, Consumer consumer) {
+        mConsumers.add(new Registration(name, interests, consumer));
+    }
+
+    public synchronized void setDispatchListener(DispatchListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds changes to the current burst and (re)starts its debounce window.  Returns right
+     * away; the consumers run later, on the bus's own threads.
+     */
+    public synchronized void post(int changes) {
+        long now = System.nanoTime() / 1000000;
+        if (mPending == 0) {
+            mFirstPostMillis = now;
+        }
+        mPending |= changes;
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+        }
+        long delay = Math.min(mDebounceMillis,
+                Math.max(0, mFirstPostMillis + mMaxDelayMillis - now));
+        mScheduled = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        final int changes;
+        final List<Registration> targets = new ArrayList<>();
+        final DispatchListener listener;
+        synchronized (this) {
+            changes = mPending;
+            mPending = 0;
+            mScheduled = null;
+            for (Registration registration : mConsumers) {
+                if ((registration.interests & changes) != 0) {
+                    targets.add(registration);
+                }
+            }
+            listener = mListener;
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger(targets.size());
+        for (final Registration registration : targets) {
+            mDispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registration.consumer.onDataChanged(changes);
+                    } catch (RuntimeException e) {
+                        // the other consumers still get told
+                        Log.e(LOG_TAG, registration.name + " failed", e);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        Log.d(LOG_TAG, "Dispatched " + changes + " to " + targets.size()
+                                + " consumers in " + millis + "ms");
+                        if (listener != null) {
+                            listener.onDispatched(changes, targets.size(), millis);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The binary protocol spoken with the forecast aggregator.
+ *
+ * The client posts the version of the forecast it holds for each location, 0 for none:
+ * <pre>
+ * int magic, byte format, byte days, short count, count * (UTF location, long version)
+ * </pre>
+ * and the aggregator answers with one record per location, ended by STATUS_END:
+ * <pre>
+ * int magic, byte format,
+ *   byte STATUS_UNCHANGED, UTF location, long version
+ *   byte STATUS_UNKNOWN, UTF location
+ *   byte STATUS_CHANGED, UTF location, long version, long city id, UTF city name,
+ *        int lat, int lon (microdegrees), short day count, day count * day record
+ * byte STATUS_END
+ * </pre>
+ * where a changed record only carries the days that differ from the client's version.  Day
+ * records have a fixed layout of DAY_RECORD_BYTES, see {@link #encodeDay}, in fixed point
+ * at about the precision OWM reports.  The description is not sent; it follows from the
+ * weather id.
+ *
+ * Everything is big-endian, as DataOutputStream writes it.  Plain Java, so the aggregator
+ * can share the encoder.
+ */
+public class DeltaProtocol {
+
+    public static final String CONTENT_TYPE = "application/x-sunshine-delta";
+
+    static final int MAGIC = 0x53554e44; // "SUND"
+    static final int FORMAT = 1;
+
+    public static final byte STATUS_UNCHANGED = 0;
+    public static final byte STATUS_CHANGED = 1;
+    public static final byte STATUS_UNKNOWN = 2;
+    static final byte STATUS_END = -1;
+
+    // julian day, weather id, max, min, humidity, pressure, wind speed, wind direction
+    public static final int DAY_RECORD_BYTES = 4 + 2 + 2 + 2 + 1 + 2 + 2 + 2;
+
+    // Fixed point scales of the day record fields
+    private static final double TEMPERATURE_SCALE = 100;
+    private static final double PRESSURE_SCALE = 10;
+    private static final double WIND_SPEED_SCALE = 100;
+    private static final double COORD_SCALE = 1e6;
+
+    /**
+     * Receives a decoded response.
+     */
+    public interface Callback {
+        /**
+         * Called for a location whose forecast changed.
+         *
+         * @param version the version the client holds once the days are stored
+         * @return the callback that receives the location and its changed days, indexed from
+         * the julian start day passed to {@link #decodeResponse}
+         */
+        ForecastJsonParser.Callback onChanged(String locationSetting, long version);
+
+        void onUnchanged(String locationSetting, long version);
+
+        /**
+         * Called for a location the aggregator does not serve.
+         */
+        void onUnknown(String locationSetting);
+    }
+
+    public static byte[] encodeRequest(Map<String, Long> versions, int days) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT);
+        out.writeByte(days);
+        out.writeShort(versions.size());
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a request, on the aggregator's side.
+     *
+     * @param versions receives the version of every location asked for
+     * @return the number of days asked for
+     */
+    public static int decodeRequest(InputStream in, Map<String, Long> versions)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        readHeader(data);
+        int days = data.readUnsignedByte();
+        int count = data.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            versions.put(data.readUTF(), data.readLong());
+        }
+        return days;
+    }
+
+    /**
+     * Decodes a response off the stream, handing every location to the callback as soon as
+     * it has been read.  Days before the julian start day are skipped.
+     *
+     * @throws ProtocolException if the response is not in this format
+     */
+    public static void decodeResponse(InputStream in, int julianStartDay, Callback callback)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        readHeader(data);
+
+        byte[] record = new byte[DAY_RECORD_BYTES];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        ForecastJsonParser.Day day = new ForecastJsonParser.Day();
+        while (true) {
+            byte status;
+            try {
+                status = data.readByte();
+            } catch (EOFException e) {
+                throw new ProtocolException("Response ended without its end record");
+            }
+            switch (status) {
+                case STATUS_END:
+                    return;
+                case STATUS_UNCHANGED:
+                    callback.onUnchanged(data.readUTF(), data.readLong());
+                    break;
+                case STATUS_UNKNOWN:
+                    callback.onUnknown(data.readUTF());
+                    break;
+                case STATUS_CHANGED: {
+                    String locationSetting = data.readUTF();
+                    long version = data.readLong();
+                    long cityId = data.readLong();
+                    String cityName = data.readUTF();
+                    double lat = data.readInt() / COORD_SCALE;
+                    double lon = data.readInt() / COORD_SCALE;
+                    int dayCount = data.readUnsignedShort();
+
+                    ForecastJsonParser.Callback days = callback.onChanged(locationSetting, version);
+                    days.onLocation(cityId, cityName, lat, lon);
+                    for (int i = 0; i < dayCount; i++) {
+                        data.readFully(record);
+                        int julianDay = decodeDay(buffer, day);
+                        if (julianDay >= julianStartDay) {
+                            days.onDay(julianDay - julianStartDay, day);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new ProtocolException("Unknown record status " + status);
+            }
+        }
+    }
+
+    private static void readHeader(DataInputStream data) throws IOException {
+        if (data.readInt() != MAGIC) {
+            throw new ProtocolException("Not a forecast delta");
+        }
+        int format = data.readUnsignedByte();
+        if (format != FORMAT) {
+            throw new ProtocolException("Unsupported delta format " + format);
+        }
+    }
+
+    /**
+     * Writes a response.  Call one of the record methods per location, {@link #day} for
+     * every day announced by {@link #changed}, then {@link #finish}.
+     */
+    public static class Encoder {
+        private final DataOutputStream mOut;
+        private final ByteBuffer mRecord = ByteBuffer.allocate(DAY_RECORD_BYTES);
+
+        public Encoder(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(FORMAT);
+        }
+
+        public void unchanged(String locationSetting, long version) throws IOException {
+            mOut.writeByte(STATUS_UNCHANGED);
+            mOut.writeUTF(locationSetting);
+            mOut.writeLong(version);
+        }
+
+        public void unknown(String locationSetting) throws IOException {
+            mOut.writeByte(STATUS_UNKNOWN);
+            mOut.writeUTF(locationSetting);
+        }
+
+        public void changed(String locationSetting, long version, long cityId, String cityName,
+                double lat, double lon, int dayCount) throws IOException {
+            mOut.writeByte(STATUS_CHANGED);
+            mOut.writeUTF(locationSetting);
+            mOut.writeLong(version);
+            mOut.writeLong(cityId);
+            mOut.writeUTF(cityName);
+            mOut.writeInt((int) Math.round(lat * COORD_SCALE));
+            mOut.writeInt((int) Math.round(lon * COORD_SCALE));
+            mOut.writeShort(dayCount);
+        }
+
+        public void day(int julianDay, ForecastJsonParser.Day day) throws IOException {
+            mRecord.clear();
+            encodeDay(mRecord, julianDay, day);
+            mOut.write(mRecord.array(), 0, DAY_RECORD_BYTES);
+        }
+
+        public void finish() throws IOException {
+            mOut.writeByte(STATUS_END);
+            mOut.flush();
+        }
+    }
+
+    static void encodeDay(ByteBuffer record, int julianDay, ForecastJsonParser.Day day) {
+        record.putInt(0, julianDay);
+        record.putShort(4, (short) day.weatherId);
+        record.putShort(6, (short) Math.round(day.high * TEMPERATURE_SCALE));
+        record.putShort(8, (short) Math.round(day.low * TEMPERATURE_SCALE));
+        record.put(10, (byte) day.humidity);
+        record.putShort(11, (short) Math.round(day.pressure * PRESSURE_SCALE));
+        record.putShort(13, (short) Math.round(day.windSpeed * WIND_SPEED_SCALE));
+        record.putShort(15, (short) Math.round(day.windDirection));
+    }
+
+    /**
+     * @return the julian day of the record
+     */
+    static int decodeDay(ByteBuffer record, ForecastJsonParser.Day day) {
+        day.weatherId = record.getShort(4);
+        day.high = record.getShort(6) / TEMPERATURE_SCALE;
+        day.low = record.getShort(8) / TEMPERATURE_SCALE;
+        day.humidity = record.get(10) & 0xff;
+        day.pressure = record.getShort(11) / PRESSURE_SCALE;
+        day.windSpeed = record.getShort(13) / WIND_SPEED_SCALE;
+        day.windDirection = record.getShort(15);
+        day.description = describe(day.weatherId);
+        return record.getInt(0);
+    }
+
+    /**
+     * @return the OWM "main" description of a weather condition id
+     */
+    static String describe(int weatherId) {
+        if (weatherId >= 200 && weatherId < 300) {
+            return "Thunderstorm";
+        } else if (weatherId >= 300 && weatherId < 400) {
+            return "Drizzle";
+        } else if (weatherId >= 500 && weatherId < 600) {
+            return "Rain";
+        } else if (weatherId >= 600 && weatherId < 700) {
+            return "Snow";
+        } else if (weatherId >= 700 && weatherId < 800) {
+            return describeAtmosphere(weatherId);
+        } else if (weatherId == 800) {
+            return "Clear";
+        } else if (weatherId > 800 && weatherId < 900) {
+            return "Clouds";
+        }
+        return "Extreme";
+    }
+
+    private static String describeAtmosphere(int weatherId) {
+        switch (weatherId) {
+            case 701:
+                return "Mist";
+            case 711:
+                return "Smoke";
+            case 721:
+                return "Haze";
+            case 731:
+            case 761:
+                return "Dust";
+            case 741:
+                return "Fog";
+            case 751:
+                return "Sand";
+            case 762:
+                return "Ash";
+            case 771:
+                return "Squall";
+            case 781:
+                return "Tornado";
+            default:
+                return "Atmosphere";
+        }
+    }
+}
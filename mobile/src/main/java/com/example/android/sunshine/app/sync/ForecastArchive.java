@@ -0,0 +1,321 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherDbHelper;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last raw forecast response of every location, gzipped, in the app's files.
+ *
+ * The database is only a cache, so a schema upgrade or a corrupt file throws it away.
+ * Re-parsing these responses fills the new database straight away instead of leaving the
+ * UI empty until the network answers; see {@link #restoreIfPending()}.  A response is
+ * recorded while the sync parses it, so nothing is read twice; the file's modification time
+ * says which day it starts on.
+ */
+public class ForecastArchive {
+    public static final String LOG_TAG = ForecastArchive.class.getSimpleName();
+
+    private static final String DIRECTORY = "forecast_archive";
+    private static final String SUFFIX = ".json.gz";
+    private static final String CHARSET = "UTF-8";
+    private static final String TEMP_PREFIX = "response";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // A response still being recorded is never this old, even by a worker the sync gave up
+    // on; older ones were left by a process that died mid-sync
+    static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    // Keeps a sync and the restore at app start from both taking the pending restore
+    private static final Object sRestoreLock = new Object();
+
+    private final Context mContext;
+    private final File mDirectory;
+
+    public ForecastArchive(Context context) {
+        mContext = context.getApplicationContext();
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Copies what is read through it into a temporary file, which becomes the location's
+     * archived response on {@link #commit()}.
+     */
+    public class Recorder extends FilterReader {
+        private final String mLocationSetting;
+        private final File mTemp;
+        private Writer mOut;
+
+        private Recorder(String locationSetting, Reader in) throws IOException {
+            super(in);
+            mLocationSetting = locationSetting;
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            // hedged requests for one location may record at the same time
+            mTemp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDirectory);
+            mOut = new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(mTemp)), CHARSET);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1 && mOut != null) {
+                mOut.write(c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0 && mOut != null) {
+                mOut.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        /**
+         * Keeps what was read as the location's response.  Call once the whole response has
+         * been parsed successfully.
+         */
+        public void commit() throws IOException {
+            if (mOut == null) {
+                return;
+            }
+            mOut.close();
+            mOut = null;
+            if (!mTemp.renameTo(getFile(mLocationSetting))) {
+                mTemp.delete();
+                throw new IOException("Cannot archive " + mLocationSetting);
+            }
+        }
+
+        /**
+         * Drops what was read, if it was not committed.  Safe to call after {@link #commit()}.
+         */
+        public void abort() {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error closing archive", e);
+            }
+            mOut = null;
+            mTemp.delete();
+        }
+
+        /**
+         * Leaves the underlying reader to its owner, and the archive file to
+         * {@link #commit()} or {@link #abort()}; the parser closes its input when done.
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * @param in the decoded response body, which keeps belonging to the caller
+     */
+    public Recorder record(String locationSetting, Reader in) throws IOException {
+        return new Recorder(locationSetting, in);
+    }
+
+    /**
+     * Deletes the responses of locations that are no longer synced, and the ones left half
+     * recorded.
+     */
+    public void retain(Set<String> locationSettings) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // may still be written by a worker of a sync that timed out
+                if (System.currentTimeMillis() - file.lastModified() > STALE_TEMP_MILLIS) {
+                    file.delete();
+                }
+                continue;
+            }
+            String locationSetting = getLocationSetting(file);
+            if (locationSetting == null || !locationSettings.contains(locationSetting)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Refills the database from the archived responses of the synced locations if it was
+     * recreated since the last call, after a schema upgrade or a corrupt file.  Writes
+     * through the provider, so it must not run on the main thread.
+     *
+     * @return how many locations were restored
+     */
+    public int restoreIfPending() {
+        synchronized (sRestoreLock) {
+            // Opening the database is what finds out whether it is new
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    new String[]{WeatherContract.LocationEntry._ID}, null, null, null);
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (!WeatherDbHelper.isRestorePending(mContext)) {
+                return 0;
+            }
+            // cleared first, so a response that cannot be restored is not tried every time
+            WeatherDbHelper.setRestorePending(mContext, false);
+            int restored = restore(Utility.getSyncLocations(mContext));
+            Log.d(LOG_TAG, "Restored " + restored + " locations from the archive");
+            return restored;
+        }
+    }
+
+    /**
+     * Stores the archived responses of the given locations the way the sync stores a
+     * forecast.  Days that are already over are left out.
+     *
+     * @return how many locations were restored
+     */
+    int restore(Set<String> locationSettings) {
+        int restored = 0;
+        int today = SunshineSyncAdapter.getJulianStartDay();
+        long todayMillis = new Time().setJulianDay(today);
+        long pruneBefore = new Time().setJulianDay(today - 1);
+        for (String locationSetting : locationSettings) {
+            File file = getFile(locationSetting);
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                ArchivedForecast forecast =
+                        new ArchivedForecast(getJulianDay(file.lastModified()), todayMillis);
+                if (parse(file, forecast) != HttpURLConnection.HTTP_OK
+                        || forecast.mCityName == null) {
+                    continue;
+                }
+                mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                        SunshineSyncAdapter.buildForecastOperations(
+                                SunshineSyncAdapter.buildLocationValues(locationSetting,
+                                        forecast.mCityId, forecast.mCityName, forecast.mLat,
+                                        forecast.mLon),
+                                forecast.mRows, pruneBefore));
+                restored++;
+                Log.d(LOG_TAG, locationSetting + ": restored " + forecast.mRows.size() + " days");
+            } catch (IOException | JSONException e) {
+                // a bad archive only costs the network fetch we would have made anyway
+                Log.w(LOG_TAG, "Cannot restore " + locationSetting + ": " + e);
+                file.delete();
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(LOG_TAG, "Cannot store " + locationSetting, e);
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Collects an archived response as the rows of the days that are not over yet.
+     */
+    private static class ArchivedForecast implements ForecastJsonParser.Callback {
+        private final Time mDayTime = new Time();
+        private final int mJulianStartDay;
+        private final long mTodayMillis;
+        private final WeatherBatch mRows = new WeatherBatch(16);
+        private long mCityId;
+        private String mCityName;
+        private double mLat;
+        private double mLon;
+
+        ArchivedForecast(int julianStartDay, long todayMillis) {
+            mJulianStartDay = julianStartDay;
+            mTodayMillis = todayMillis;
+        }
+
+        @Override
+        public void onLocation(long cityId, String cityName, double lat, double lon) {
+            mCityId = cityId;
+            mCityName = cityName;
+            mLat = lat;
+            mLon = lon;
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.Day day) {
+            long date = mDayTime.setJulianDay(mJulianStartDay + index);
+            if (date < mTodayMillis) {
+                return;
+            }
+            // the location is filled in by the provider
+            mRows.add(0, date, day.weatherId, day.description, day.low, day.high,
+                    day.humidity, day.pressure, day.windSpeed, day.windDirection);
+        }
+    }
+
+    private static int parse(File file, ForecastJsonParser.Callback callback)
+            throws IOException, JSONException {
+        Reader in = new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), CHARSET);
+        try {
+            return ForecastJsonParser.parse(in, callback);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int getJulianDay(long millis) {
+        Time time = new Time();
+        time.set(millis);
+        return Time.getJulianDay(millis, time.gmtoff);
+    }
+
+    File getFile(String locationSetting) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(locationSetting, CHARSET) + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String getLocationSetting(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for the OpenWeatherMap daily and 3-hour forecast responses.
+ *
+ * Instead of reading the whole body into a String and building a JSONObject tree, the
+ * response is decoded token by token straight off the connection stream and every day is
+ * handed to a {@link Callback} as soon as it has been read.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // 3-hour forecast.  Each period is an element of "list", with the time in "dt" and the
+    // measurements split between "main" and "wind".
+    private static final String OWM_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+
+    /**
+     * One decoded day of the forecast.  The parser reuses a single instance for the whole
+     * list, so callbacks must copy out what they need instead of keeping a reference.
+     */
+    public static class Day {
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void reset() {
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+
+        void copyFrom(Day other) {
+            pressure = other.pressure;
+            humidity = other.humidity;
+            windSpeed = other.windSpeed;
+            windDirection = other.windDirection;
+            high = other.high;
+            low = other.low;
+            description = other.description;
+            weatherId = other.weatherId;
+        }
+    }
+
+    /**
+     * One decoded 3-hour period, reused like {@link Day}.
+     */
+    public static class Hour {
+        // seconds since the epoch
+        public long time;
+        public double temperature;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public int weatherId;
+
+        void reset() {
+            time = 0;
+            temperature = 0;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            weatherId = 0;
+        }
+    }
+
+    public interface LocationCallback {
+        /**
+         * Called once with the city block.
+         */
+        void onLocation(long cityId, String cityName, double lat, double lon);
+    }
+
+    /**
+     * Receives a daily forecast.  {@link #onLocation} is always delivered before the first
+     * {@link #onDay(int, Day)}, even if the server sends the list first.
+     */
+    public interface Callback extends LocationCallback {
+        /**
+         * Called for each element of the "list" array, in order.
+         */
+        void onDay(int index, Day day);
+    }
+
+    /**
+     * Receives the forecasts of a batch ("group") response, which wraps one forecast
+     * response per city in a top level "list" array.
+     */
+    public interface GroupCallback {
+        /**
+         * Called before each forecast of the group is parsed.
+         *
+         * @return the callback that receives this forecast's location and days
+         */
+        Callback onForecastStart(int index);
+
+        /**
+         * Called once a forecast of the group has been read completely.
+         *
+         * @param messageCode the "cod" of this forecast
+         */
+        void onForecastEnd(int index, int messageCode);
+    }
+
+    /**
+     * Parses a forecast response.
+     *
+     * @return the "cod" message code of the response, or {@link HttpURLConnection#HTTP_OK}
+     * if the server did not send one.
+     * @throws JSONException if the body is not a well formed forecast response
+     * @throws IOException if reading from the underlying stream failed
+     */
+    public static int parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return new ForecastJsonParser(callback).readResponse(reader);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw asJSONException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the JsonReader error as the JSONException callers expect, keeping it as the
+     * cause so the sync log shows where the body went wrong
+     */
+    private static JSONException asJSONException(Exception e) {
+        JSONException exception = new JSONException(e.getMessage());
+        exception.initCause(e);
+        return exception;
+    }
+
+    /**
+     * Receives a 3-hour forecast.  Unlike {@link Callback}, the periods are not held back
+     * for the city block: OWM sends it after the list, and callers that only collect rows
+     * do not need it first.
+     */
+    public interface HourlyCallback extends LocationCallback {
+        /**
+         * Called for each element of the "list" array, in order.
+         */
+        void onHour(int index, Hour hour);
+    }
+
+    /**
+     * Parses a 3-hour forecast response.
+     *
+     * @return the "cod" message code of the response, or {@link HttpURLConnection#HTTP_OK}
+     * if the server did not send one.
+     * @throws JSONException if the body is not a well formed forecast response
+     * @throws IOException if reading from the underlying stream failed
+     */
+    public static int parseHourly(Reader in, HourlyCallback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readHourlyResponse(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw asJSONException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a batch response holding several forecasts, one per city.
+     *
+     * @return the top level "cod" message code of the response, or
+     * {@link HttpURLConnection#HTTP_OK} if the server did not send one.
+     * @throws JSONException if the body is not a well formed group response
+     * @throws IOException if reading from the underlying stream failed
+     */
+    public static int parseGroup(Reader in, GroupCallback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readGroup(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw asJSONException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int readGroup(JsonReader reader, GroupCallback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        int index = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = Integer.parseInt(reader.nextString());
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ForecastJsonParser parser =
+                            new ForecastJsonParser(callback.onForecastStart(index));
+                    callback.onForecastEnd(index, parser.readResponse(reader));
+                    index++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return messageCode;
+    }
+
+    private final Callback mCallback;
+    private final Day mDay = new Day();
+
+    private boolean mHaveLocation;
+    private boolean mHaveList;
+    private List<Day> mPendingDays;
+    private int mDayCount;
+
+    private ForecastJsonParser(Callback callback) {
+        mCallback = callback;
+    }
+
+    private int readResponse(JsonReader reader) throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends the code as a string on success and as a number on some errors
+                messageCode = Integer.parseInt(reader.nextString());
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader);
+            } else if (OWM_LIST.equals(name)) {
+                readList(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageCode != HttpURLConnection.HTTP_OK) {
+            return messageCode;
+        }
+        if (!mHaveLocation) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        if (!mHaveList) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return messageCode;
+    }
+
+    private void readCity(JsonReader reader) throws IOException, JSONException {
+        readCity(reader, mCallback);
+        mHaveLocation = true;
+
+        // Flush any days that arrived before the city block
+        if (mPendingDays != null) {
+            for (Day day : mPendingDays) {
+                mCallback.onDay(mDayCount++, day);
+            }
+            mPendingDays = null;
+        }
+    }
+
+    private static void readCity(JsonReader reader, LocationCallback callback)
+            throws IOException, JSONException {
+        long cityId = 0;
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+
+        callback.onLocation(cityId, cityName, lat, lon);
+    }
+
+    private void readList(JsonReader reader) throws IOException, JSONException {
+        mHaveList = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader, mDay);
+            if (mHaveLocation) {
+                mCallback.onDay(mDayCount++, mDay);
+            } else {
+                if (mPendingDays == null) {
+                    mPendingDays = new ArrayList<>();
+                }
+                Day copy = new Day();
+                copy.copyFrom(mDay);
+                mPendingDays.add(copy);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static void readDay(JsonReader reader, Day day) throws IOException, JSONException {
+        day.reset();
+        boolean havePressure = false;
+        boolean haveHumidity = false;
+        boolean haveWindSpeed = false;
+        boolean haveWindDirection = false;
+        boolean haveHigh = false;
+        boolean haveLow = false;
+        boolean haveWeather = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+                havePressure = true;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = reader.nextInt();
+                haveHumidity = true;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+                haveWindSpeed = true;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+                haveWindDirection = true;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                        haveHigh = true;
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                        haveLow = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (haveWeather) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            day.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            day.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    haveWeather = true;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // The fields the JSONObject getters used to insist on; a day without them would
+        // otherwise be stored as zeros
+        if (!havePressure) {
+            throw new JSONException("No value for " + OWM_PRESSURE);
+        }
+        if (!haveHumidity) {
+            throw new JSONException("No value for " + OWM_HUMIDITY);
+        }
+        if (!haveWindSpeed) {
+            throw new JSONException("No value for " + OWM_WINDSPEED);
+        }
+        if (!haveWindDirection) {
+            throw new JSONException("No value for " + OWM_WIND_DIRECTION);
+        }
+        if (!haveHigh) {
+            throw new JSONException("No value for " + OWM_TEMPERATURE + "." + OWM_MAX);
+        }
+        if (!haveLow) {
+            throw new JSONException("No value for " + OWM_TEMPERATURE + "." + OWM_MIN);
+        }
+        if (!haveWeather || day.description == null) {
+            throw new JSONException("No value for " + OWM_WEATHER);
+        }
+    }
+
+    private static int readHourlyResponse(JsonReader reader, HourlyCallback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean haveLocation = false;
+        boolean haveList = false;
+        Hour hour = new Hour();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = Integer.parseInt(reader.nextString());
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, callback);
+                haveLocation = true;
+            } else if (OWM_LIST.equals(name)) {
+                haveList = true;
+                int index = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readHour(reader, hour);
+                    callback.onHour(index++, hour);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageCode != HttpURLConnection.HTTP_OK) {
+            return messageCode;
+        }
+        if (!haveLocation) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        if (!haveList) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return messageCode;
+    }
+
+    private static void readHour(JsonReader reader, Hour hour) throws IOException, JSONException {
+        hour.reset();
+        boolean haveTime = false;
+        boolean haveTemperature = false;
+        boolean havePressure = false;
+        boolean haveHumidity = false;
+        boolean haveWindSpeed = false;
+        boolean haveWindDirection = false;
+        boolean haveWeather = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                hour.time = reader.nextLong();
+                haveTime = true;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        hour.temperature = reader.nextDouble();
+                        haveTemperature = true;
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        hour.pressure = reader.nextDouble();
+                        havePressure = true;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        hour.humidity = reader.nextInt();
+                        haveHumidity = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        hour.windSpeed = reader.nextDouble();
+                        haveWindSpeed = true;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        hour.windDirection = reader.nextDouble();
+                        haveWindDirection = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // only the weather code of the first element is kept
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (haveWeather) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            hour.weatherId = reader.nextInt();
+                            haveWeather = true;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // as for a day, a period without these would otherwise be stored as zeros
+        if (!haveTime) {
+            throw new JSONException("No value for " + OWM_TIME);
+        }
+        if (!haveTemperature) {
+            throw new JSONException("No value for " + OWM_MAIN + "." + OWM_TEMPERATURE);
+        }
+        if (!havePressure) {
+            throw new JSONException("No value for " + OWM_MAIN + "." + OWM_PRESSURE);
+        }
+        if (!haveHumidity) {
+            throw new JSONException("No value for " + OWM_MAIN + "." + OWM_HUMIDITY);
+        }
+        if (!haveWindSpeed) {
+            throw new JSONException("No value for " + OWM_WIND + "." + OWM_WINDSPEED);
+        }
+        if (!haveWindDirection) {
+            throw new JSONException("No value for " + OWM_WIND + "." + OWM_WIND_DIRECTION);
+        }
+        if (!haveWeather) {
+            throw new JSONException("No value for " + OWM_WEATHER);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the forecast for a location while the user is still typing it in.
+ *
+ * Every edit of the location preference is a candidate; once the text has held still for
+ * a moment the candidate's forecast is fetched into a small side cache, never into the
+ * database.  When the user commits a location that was prefetched, its rows are promoted
+ * into the database straight away, so the forecast is on screen before the sync that
+ * follows has answered.  Whatever else was prefetched is thrown away when the dialog
+ * closes.  Loads and promotions run one at a time on a single thread, so a commit that
+ * comes while its candidate is still loading waits for it rather than missing.
+ */
+public class ForecastPrefetcher {
+    public static final String LOG_TAG = ForecastPrefetcher.class.getSimpleName();
+
+    // How long the text must hold still before the candidate is fetched
+    static final long DEBOUNCE_MILLIS = 750;
+
+    // Candidates kept at once; typing on evicts the oldest
+    static final int MAX_ENTRIES = 4;
+
+    // A prefetched forecast older than this is not promoted; the sync fetches afresh
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * Loads the forecast of one candidate location.
+     */
+    public interface Loader {
+        /**
+         * @return the forecast, or null if the location is not one the server knows
+         */
+        Prefetched load(String locationSetting) throws IOException, JSONException;
+    }
+
+    /**
+     * The forecast of one candidate, with the weather rows not yet tied to a location row.
+     */
+    public static class Prefetched implements ForecastJsonParser.Callback {
+        public final String locationSetting;
+        public final List<ContentValues> rows = new ArrayList<>();
+        public long cityId;
+        public String cityName;
+        public double lat;
+        public double lon;
+        long loadedAt;
+
+        private final Time mDayTime = new Time();
+        private final int mJulianStartDay;
+
+        public Prefetched(String locationSetting) {
+            this(locationSetting, SunshineSyncAdapter.getJulianStartDay());
+        }
+
+        /**
+         * @param julianStartDay the day the first element of the forecast is for
+         */
+        public Prefetched(String locationSetting, int julianStartDay) {
+            this.locationSetting = locationSetting;
+            mJulianStartDay = julianStartDay;
+        }
+
+        @Override
+        public void onLocation(long cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.Day day) {
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + index);
+            rows.add(SunshineSyncAdapter.buildWeatherValues(dateTime, day));
+        }
+    }
+
+    /**
+     * Fetches from the primary forecast endpoint.  Speculative requests are not hedged and
+     * leave the sync's validators alone.
+     */
+    private static class HttpLoader implements Loader {
+        @Override
+        public Prefetched load(String locationSetting) throws IOException, JSONException {
+            URL url = new URL(SunshineSyncAdapter.buildForecastUri(
+                    SunshineSyncAdapter.FORECAST_BASE_URL, locationSetting).toString());
+            SunshineHttpClient.Call call = SunshineHttpClient.getInstance().newCall(url);
+            HttpResponseBody body = null;
+            try {
+                HttpResponseBody.requestCompression(call.getConnection());
+                call.execute();
+                body = HttpResponseBody.open(call.getConnection());
+                if (body == null) {
+                    throw new IOException("No forecast from " + url.getHost());
+                }
+                Prefetched prefetched = new Prefetched(locationSetting);
+                int messageCode = ForecastJsonParser.parse(body.getReader(), prefetched);
+                switch (messageCode) {
+                    case HttpURLConnection.HTTP_OK:
+                        return prefetched;
+                    case HttpURLConnection.HTTP_NOT_FOUND:
+                        return null;
+                    default:
+                        throw new IOException("Forecast error " + messageCode);
+                }
+            } finally {
+                if (body != null) {
+                    body.close();
+                }
+                call.close();
+            }
+        }
+    }
+
+    private static ForecastPrefetcher sInstance;
+
+    private final Context mContext;
+    private final Loader mLoader;
+    private final long mDebounceMillis;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // Only touched on the executor thread
+    private final LruCache<String, Prefetched> mCache =
+            new LruCache<String, Prefetched>(MAX_ENTRIES) {
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Prefetched oldValue,
+                                            Prefetched newValue) {
+                    if (evicted) {
+                        mDiscarded++;
+                    }
+                }
+            };
+    private int mDiscarded;
+
+    // Guarded by this
+    private ScheduledFuture<?> mScheduled;
+    private String mCandidate;
+
+    public static synchronized ForecastPrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastPrefetcher(context.getApplicationContext(),
+                    new HttpLoader(), DEBOUNCE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    ForecastPrefetcher(Context context, Loader loader, long debounceMillis) {
+        mContext = context;
+        mLoader = loader;
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * Called on every edit of the location.  The candidate is fetched once no other edit has
+     * come for the debounce delay.
+     */
+    public synchronized void onCandidate(final String locationSetting) {
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+        }
+        mCandidate = locationSetting;
+        mScheduled = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                load(locationSetting);
+            }
+        }, mDebounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called once the location has been committed.  Stores the prefetched forecast for it,
+     * if there is a fresh one, and discards the other candidates.
+     *
+     * @return whether the location had been prefetched
+     */
+    public synchronized Future<Boolean> promote(final String locationSetting) {
+        cancelScheduled();
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Prefetched prefetched = mCache.remove(locationSetting);
+                boolean hit = prefetched != null && !isStale(prefetched);
+                if (hit) {
+                    store(prefetched);
+                }
+                evictAll();
+                new SyncStats(mContext).recordPrefetch(hit);
+                Log.d(LOG_TAG, locationSetting + (hit ? ": promoted prefetched forecast"
+                        : ": not prefetched"));
+                return hit;
+            }
+        });
+    }
+
+    /**
+     * Called when the location dialog closes.  Drops every prefetched forecast.
+     */
+    public synchronized void discard() {
+        cancelScheduled();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                evictAll();
+            }
+        });
+    }
+
+    private void cancelScheduled() {
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+            mScheduled = null;
+        }
+        mCandidate = null;
+    }
+
+    // Runs on the executor thread
+    private void load(String locationSetting) {
+        synchronized (this) {
+            if (!locationSetting.equals(mCandidate)) {
+                // superseded between firing and running
+                return;
+            }
+        }
+        Prefetched cached = mCache.get(locationSetting);
+        if (cached != null && !isStale(cached)) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            Prefetched prefetched = mLoader.load(locationSetting);
+            if (prefetched != null) {
+                prefetched.loadedAt = SystemClock.elapsedRealtime();
+                mCache.put(locationSetting, prefetched);
+            }
+            Log.d(LOG_TAG, "Prefetched " + locationSetting + " in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (IOException | JSONException e) {
+            // only a guess; the sync after the commit does the real fetch
+            Log.d(LOG_TAG, "Prefetch of " + locationSetting + " failed: " + e);
+        }
+    }
+
+    // Runs on the executor thread
+    private void evictAll() {
+        mCache.evictAll();
+        if (mDiscarded > 0) {
+            new SyncStats(mContext).recordPrefetchDiscarded(mDiscarded);
+            mDiscarded = 0;
+        }
+    }
+
+    private static boolean isStale(Prefetched prefetched) {
+        return SystemClock.elapsedRealtime() - prefetched.loadedAt > MAX_AGE_MILLIS;
+    }
+
+    // Runs on the executor thread
+    private void store(Prefetched prefetched) {
+        long locationId = SunshineSyncAdapter.addLocation(mContext, prefetched.locationSetting,
+                prefetched.cityId, prefetched.cityName, prefetched.lat, prefetched.lon);
+        ContentValues[] cvArray = new ContentValues[prefetched.rows.size()];
+        for (int i = 0; i < cvArray.length; i++) {
+            cvArray[i] = prefetched.rows.get(i);
+            cvArray[i].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES, cvArray);
+        // the provider posts to the fan-out if any rows changed
+        mContext.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+    }
+
+    /**
+     * @return how many forecasts sit in the side cache; for tests
+     */
+    int size() throws Exception {
+        return mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mCache.size();
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buckets locations into cells of a coordinate grid, so that locations a few kilometres
+ * apart share one forecast fetch.
+ *
+ * Cells are CELL_DEGREES of latitude high and about as many kilometres wide, the longitude
+ * step widening towards the poles.  Two locations resolved to the same OWM city always land
+ * in the same cell; two that straddle a cell edge do not, and are simply fetched apart.
+ */
+public class GridCells {
+
+    // About 5.5 km north to south
+    static final double CELL_DEGREES = 0.05;
+
+    // How long a cell's forecast stands in for a fetch of any location in it
+    static final long CELL_TTL_MILLIS = 15 * 60 * 1000;
+
+    /**
+     * @return the key of the cell holding the coordinates
+     */
+    public static String cellOf(double lat, double lon) {
+        long latIndex = (long) Math.floor(lat / CELL_DEGREES);
+        // one longitude step per latitude band, taken at the band's middle, so every point of
+        // the band agrees on it
+        double bandLat = Math.toRadians((latIndex + 0.5) * CELL_DEGREES);
+        double lonDegrees = CELL_DEGREES / Math.max(Math.cos(bandLat), 0.01);
+        long lonIndex = (long) Math.floor(lon / lonDegrees);
+        return latIndex + ":" + lonIndex;
+    }
+
+    /**
+     * @param coordinates latitude and longitude of each location, in sync order
+     * @return the locations of every cell, keyed by cell in the order their first location
+     * came; the first location of a cell is the one fetched for it
+     */
+    public static Map<String, List<String>> bucket(Map<String, double[]> coordinates) {
+        Map<String, List<String>> cells = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> entry : coordinates.entrySet()) {
+            String cell = cellOf(entry.getValue()[0], entry.getValue()[1]);
+            List<String> members = cells.get(cell);
+            if (members == null) {
+                members = new ArrayList<>();
+                cells.put(cell, members);
+            }
+            members.add(entry.getKey());
+        }
+        return cells;
+    }
+
+    /**
+     * The last forecast fetched for each cell, for as long as it may stand in for a fetch.
+     */
+    public static class Cache<T> {
+        private static class Entry<T> {
+            final T value;
+            final long storedAt;
+
+            Entry(T value, long storedAt) {
+                this.value = value;
+                this.storedAt = storedAt;
+            }
+        }
+
+        private final long mTtlMillis;
+        private final Map<String, Entry<T>> mEntries = new HashMap<>();
+
+        public Cache(long ttlMillis) {
+            mTtlMillis = ttlMillis;
+        }
+
+        public synchronized void put(String cell, T value) {
+            long now = SystemClock.elapsedRealtime();
+            // expired cells are dropped here, so cells no location uses any more go too
+            Iterator<Entry<T>> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().storedAt >= mTtlMillis) {
+                    it.remove();
+                }
+            }
+            mEntries.put(cell, new Entry<>(value, now));
+        }
+
+        /**
+         * @return the cell's forecast, or null if there is none younger than the TTL
+         */
+        public synchronized T get(String cell) {
+            Entry<T> entry = mEntries.get(cell);
+            if (entry == null || SystemClock.elapsedRealtime() - entry.storedAt >= mTtlMillis) {
+                return null;
+            }
+            return entry.value;
+        }
+
+        public synchronized void clear() {
+            mEntries.clear();
+        }
+    }
+}
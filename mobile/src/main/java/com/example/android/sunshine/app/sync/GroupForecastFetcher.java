@@ -0,0 +1,99 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetches the forecasts of several cities in one request from a batch ("group") endpoint,
+ * addressed by the numeric city ids cached on the location table.
+ *
+ * The response wraps one regular forecast document per city in a "list"; it is parsed as
+ * a stream and each city's forecast is handed to the {@link ForecastJsonParser.GroupCallback}
+ * as soon as it has been read, so the caller can commit it on its own.
+ */
+public class GroupForecastFetcher {
+
+    // The most ids the group endpoint accepts in one request
+    public static final int MAX_IDS_PER_REQUEST = 20;
+
+    private static final String ID_PARAM = "id";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    public static class Result {
+        public int messageCode;
+        public long wireBytes;
+        public long decodedBytes;
+        // until the response headers were in, and from then until the body was parsed
+        public long headersMillis;
+        public long bodyMillis;
+    }
+
+    /**
+     * Splits city ids into request sized chunks, preserving their order.
+     */
+    public static List<List<Long>> chunk(List<Long> cityIds) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int i = 0; i < cityIds.size(); i += MAX_IDS_PER_REQUEST) {
+            chunks.add(new ArrayList<>(
+                    cityIds.subList(i, Math.min(cityIds.size(), i + MAX_IDS_PER_REQUEST))));
+        }
+        return chunks;
+    }
+
+    public static Uri buildUri(String baseUrl, List<Long> cityIds, String units, int numDays,
+                               String appId) {
+        return Uri.parse(baseUrl).buildUpon()
+                .appendQueryParameter(ID_PARAM, TextUtils.join(",", cityIds))
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, appId)
+                .build();
+    }
+
+    /**
+     * Fetches one chunk and streams it into the callback.
+     *
+     * @throws IOException if the request failed
+     * @throws JSONException if the response is not a well formed group response
+     */
+    public static Result fetch(URL url, ForecastJsonParser.GroupCallback callback)
+            throws IOException, JSONException {
+        Result result = new Result();
+        SunshineHttpClient.Call call = null;
+        HttpResponseBody body = null;
+        try {
+            call = SunshineHttpClient.getInstance().newCall(url);
+            HttpResponseBody.requestCompression(call.getConnection());
+            call.execute();
+
+            body = HttpResponseBody.open(call.getConnection());
+            if (body == null) {
+                throw new IOException("No response body from " + url.getHost());
+            }
+            result.messageCode = ForecastJsonParser.parseGroup(body.getReader(), callback);
+            return result;
+        } finally {
+            if (body != null) {
+                result.wireBytes = body.getWireBytes();
+                result.decodedBytes = body.getDecodedBytes();
+                body.close();
+            }
+            if (call != null) {
+                call.close();
+                result.headersMillis = call.getTiming().headersMillis;
+                result.bodyMillis = call.getTiming().totalMillis - result.headersMillis;
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a request to a list of equivalent endpoints, hedging against a slow one.
+ *
+ * The request first goes to the endpoint that has been fastest lately.  If no answer has
+ * come back once a high percentile of that endpoint's recent latencies has passed, the same
+ * request also goes to the next endpoint, and so on down the list; an endpoint that fails
+ * hands over to the next one straight away.  The first usable response wins and the
+ * requests still running are cancelled.  Latencies and failures are kept per endpoint, so
+ * the order and the hedge delays follow how the endpoints have been doing.
+ */
+public class HedgedFetcher {
+    public static final String LOG_TAG = HedgedFetcher.class.getSimpleName();
+
+    // Hedge once a request has taken longer than this percentile of the endpoint's recent ones
+    static final int HEDGE_PERCENTILE = 90;
+
+    // Hedge delay until an endpoint has enough samples, and the bounds for it afterwards
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 3 * 1000;
+    static final long MIN_HEDGE_DELAY_MILLIS = 100;
+    static final long MAX_HEDGE_DELAY_MILLIS = 10 * 1000;
+    static final int MIN_SAMPLES = 5;
+
+    // Latencies kept per endpoint
+    static final int LATENCY_WINDOW = 32;
+
+    public interface Attempt<T> {
+        /**
+         * Sends the request to this attempt's endpoint and reads the response.
+         *
+         * @throws Exception if the endpoint gave no usable response
+         */
+        T execute() throws Exception;
+
+        /**
+         * Aborts the request, which lost to another endpoint.  Called from another thread
+         * while {@link #execute()} may still be running.
+         */
+        void cancel();
+    }
+
+    public interface AttemptFactory<T> {
+        Attempt<T> newAttempt(String endpoint);
+    }
+
+    public static class Result<T> {
+        // The winning response, null if no endpoint gave one in time
+        public T value;
+        public String endpoint;
+        // What the last endpoint to fail failed with
+        public Exception error;
+        public int attempts;
+        public long millis;
+    }
+
+    /**
+     * Recent latencies of one endpoint.  A request that lost counts with the time it had
+     * taken when it was cancelled, a lower bound, so an endpoint that keeps losing still
+     * drifts down the order.
+     */
+    static class EndpointStats {
+        private final long[] mLatencies = new long[LATENCY_WINDOW];
+        private int mCount;
+        private int mNext;
+        private int mConsecutiveFailures;
+
+        synchronized void recordLatency(long millis) {
+            mLatencies[mNext] = millis;
+            mNext = (mNext + 1) % LATENCY_WINDOW;
+            mCount = Math.min(mCount + 1, LATENCY_WINDOW);
+        }
+
+        synchronized void recordSuccess(long millis) {
+            recordLatency(millis);
+            mConsecutiveFailures = 0;
+        }
+
+        synchronized void recordFailure() {
+            mConsecutiveFailures++;
+        }
+
+        synchronized int getSampleCount() {
+            return mCount;
+        }
+
+        synchronized int getConsecutiveFailures() {
+            return mConsecutiveFailures;
+        }
+
+        /**
+         * @return the latency under which the given percent of the samples fall, -1 if
+         * there are none
+         */
+        synchronized long getPercentile(int percentile) {
+            if (mCount == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "p50 " + getPercentile(50) + "ms, p" + HEDGE_PERCENTILE + " "
+                    + getPercentile(HEDGE_PERCENTILE) + "ms over " + mCount
+                    + ", " + mConsecutiveFailures + " failures";
+        }
+    }
+
+    private static class Launched<T> {
+        final String endpoint;
+        final Attempt<T> attempt;
+        final long startedAt;
+        Future<T> future;
+
+        Launched(String endpoint, Attempt<T> attempt, long startedAt) {
+            this.endpoint = endpoint;
+            this.attempt = attempt;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final List<String> mEndpoints;
+    private final Map<String, EndpointStats> mStats = new LinkedHashMap<>();
+    private final long mDefaultHedgeDelayMillis;
+    private final AtomicInteger mHedges = new AtomicInteger();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SyncHedge #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param endpoints equivalent endpoints, the preferred one first; that order holds until
+     *                  there are latencies to go by
+     */
+    public HedgedFetcher(List<String> endpoints) {
+        this(endpoints, DEFAULT_HEDGE_DELAY_MILLIS);
+    }
+
+    HedgedFetcher(List<String> endpoints, long defaultHedgeDelayMillis) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        mEndpoints = new ArrayList<>(endpoints);
+        mDefaultHedgeDelayMillis = defaultHedgeDelayMillis;
+        for (String endpoint : mEndpoints) {
+            mStats.put(endpoint, new EndpointStats());
+        }
+    }
+
+    /**
+     * Runs the request against the endpoints until one of them answers.  Blocks the calling
+     * thread; the requests themselves run on the fetcher's own threads.
+     *
+     * @param timeoutMillis how long to wait for an answer overall
+     * @return the winning response and where it came from; without a value if every
+     * endpoint failed or the time ran out
+     */
+    public <T> Result<T> fetch(AttemptFactory<T> factory, long timeoutMillis)
+            throws InterruptedException {
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + timeoutMillis;
+        List<String> order = getEndpointOrder();
+        CompletionService<T> completion = new ExecutorCompletionService<>(mExecutor);
+        Map<Future<T>, Launched<T>> running = new HashMap<>();
+        Result<T> result = new Result<>();
+        int next = 0;
+        long hedgeAt = 0;
+
+        try {
+            while (true) {
+                long now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    Log.w(LOG_TAG, "No endpoint answered in " + timeoutMillis + "ms");
+                    break;
+                }
+                if (next < order.size() && (running.isEmpty() || now >= hedgeAt)) {
+                    String endpoint = order.get(next++);
+                    if (!running.isEmpty()) {
+                        mHedges.incrementAndGet();
+                        Log.d(LOG_TAG, "Hedging to " + endpoint + " after "
+                                + (now - start) + "ms");
+                    }
+                    Launched<T> launched = launch(completion, factory, endpoint, now);
+                    running.put(launched.future, launched);
+                    result.attempts++;
+                    hedgeAt = now + getHedgeDelayMillis(endpoint);
+                    continue;
+                }
+                if (running.isEmpty()) {
+                    // every endpoint failed
+                    break;
+                }
+
+                long until = next < order.size() ? Math.min(hedgeAt, deadline) : deadline;
+                Future<T> done = completion.poll(until - now, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                Launched<T> launched = running.remove(done);
+                long millis = SystemClock.elapsedRealtime() - launched.startedAt;
+                try {
+                    result.value = done.get();
+                    result.endpoint = launched.endpoint;
+                    getStats(launched.endpoint).recordSuccess(millis);
+                    return result;
+                } catch (ExecutionException e) {
+                    getStats(launched.endpoint).recordFailure();
+                    result.error = e.getCause() instanceof Exception
+                            ? (Exception) e.getCause() : e;
+                    Log.d(LOG_TAG, launched.endpoint + " failed after " + millis + "ms: "
+                            + result.error);
+                    // the next endpoint goes now rather than at the hedge delay
+                    hedgeAt = 0;
+                }
+            }
+            return result;
+        } finally {
+            long now = SystemClock.elapsedRealtime();
+            for (Launched<T> launched : running.values()) {
+                launched.attempt.cancel();
+                launched.future.cancel(true);
+                getStats(launched.endpoint).recordLatency(now - launched.startedAt);
+            }
+            result.millis = now - start;
+        }
+    }
+
+    private <T> Launched<T> launch(CompletionService<T> completion, AttemptFactory<T> factory,
+                                   String endpoint, long now) {
+        final Attempt<T> attempt = factory.newAttempt(endpoint);
+        Launched<T> launched = new Launched<>(endpoint, attempt, now);
+        launched.future = completion.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return attempt.execute();
+            }
+        });
+        return launched;
+    }
+
+    /**
+     * @return the endpoints in the order they are tried: by median latency, each failure in
+     * a row counting as one more maximum hedge delay.  Endpoints without samples count as
+     * the default hedge delay and otherwise keep their configured order.
+     */
+    List<String> getEndpointOrder() {
+        final Map<String, Long> expected = new HashMap<>();
+        for (String endpoint : mEndpoints) {
+            EndpointStats stats = getStats(endpoint);
+            long median = stats.getSampleCount() > 0
+                    ? stats.getPercentile(50) : mDefaultHedgeDelayMillis;
+            expected.put(endpoint,
+                    median + stats.getConsecutiveFailures() * MAX_HEDGE_DELAY_MILLIS);
+        }
+        List<String> order = new ArrayList<>(mEndpoints);
+        // stable, so ties keep the configured order
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long l = expected.get(lhs);
+                long r = expected.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    long getHedgeDelayMillis(String endpoint) {
+        EndpointStats stats = getStats(endpoint);
+        if (stats.getSampleCount() < MIN_SAMPLES) {
+            return mDefaultHedgeDelayMillis;
+        }
+        long delay = stats.getPercentile(HEDGE_PERCENTILE);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, delay));
+    }
+
+    EndpointStats getStats(String endpoint) {
+        return mStats.get(endpoint);
+    }
+
+    /**
+     * @return how many requests went out as hedges, to a second or later endpoint
+     */
+    public int getHedgeCount() {
+        return mHedges.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, EndpointStats> entry : mStats.entrySet()) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the body of an HTTP response as a stream: the compressed bytes coming off the
+ * socket are inflated on the fly and fed to a Reader using the charset the server declared,
+ * without ever buffering the whole body.
+ *
+ * Counts the bytes read off the wire and the bytes after decompression so that the sync can
+ * report what it actually cost on a metered network.
+ */
+public class HttpResponseBody implements Closeable {
+
+    // Once we ask for an encoding ourselves, HttpURLConnection stops decompressing
+    // transparently and leaves the Content-Encoding for us to handle.
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    // JSON is UTF-8 unless the server says otherwise (RFC 7159)
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    // Reading the rest of a body (a gzip trailer, trailing whitespace) lets the connection go
+    // back to the keep-alive pool; a body with more than this left is cheaper to abandon
+    static final int MAX_DRAIN_BYTES = 8 * 1024;
+
+    private final CountingInputStream mWire;
+    private final CountingInputStream mDecoded;
+    private final Reader mReader;
+    private final String mContentEncoding;
+    // Handed to the InflaterInputStream, which only ends the inflaters it creates itself; null
+    // unless the body is deflated
+    private final Inflater mInflater;
+
+    /**
+     * Asks the server for a compressed body.  Must be called before the connection is opened.
+     */
+    public static void requestCompression(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Opens the body of a response for reading.
+     *
+     * @return the decoded body, or null if the connection has no input stream
+     */
+    public static HttpResponseBody open(HttpURLConnection connection) throws IOException {
+        InputStream raw = connection.getInputStream();
+        if (raw == null) {
+            return null;
+        }
+        return new HttpResponseBody(raw, connection.getContentEncoding(),
+                charsetOf(connection.getContentType()));
+    }
+
+    HttpResponseBody(InputStream raw, String contentEncoding, Charset charset) throws IOException {
+        mContentEncoding = contentEncoding;
+        mWire = new CountingInputStream(new BufferedInputStream(raw));
+
+        InputStream decoded;
+        Inflater inflater = null;
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            decoded = new GZIPInputStream(mWire);
+        } else if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            PushbackInputStream pushback = new PushbackInputStream(mWire, 2);
+            inflater = new Inflater(!isZlibWrapped(pushback));
+            decoded = new InflaterInputStream(pushback, inflater);
+        } else {
+            decoded = mWire;
+        }
+        mInflater = inflater;
+        mDecoded = new CountingInputStream(decoded);
+        mReader = new BufferedReader(new InputStreamReader(mDecoded, charset));
+    }
+
+    public Reader getReader() {
+        return mReader;
+    }
+
+    /**
+     * @return the decompressed body as bytes, for bodies that are not text.  Read either this
+     * or the reader, never both.
+     */
+    public InputStream getInputStream() {
+        return mDecoded;
+    }
+
+    /**
+     * @return the Content-Encoding the server applied, or null for an identity body
+     */
+    public String getContentEncoding() {
+        return mContentEncoding;
+    }
+
+    /**
+     * @return the number of bytes read off the connection so far
+     */
+    public long getWireBytes() {
+        return mWire.getCount();
+    }
+
+    /**
+     * @return the number of bytes handed to the reader after decompression so far
+     */
+    public long getDecodedBytes() {
+        return mDecoded.getCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+            int drained = 0;
+            int read;
+            while (drained < MAX_DRAIN_BYTES && (read = mWire.read(buffer)) != -1) {
+                drained += read;
+            }
+        } catch (IOException e) {
+            // the connection will not be reused, nothing else is lost
+        } finally {
+            try {
+                mReader.close();
+            } finally {
+                // frees the native zlib memory now rather than at finalization
+                if (mInflater != null) {
+                    mInflater.end();
+                }
+            }
+        }
+    }
+
+    static Charset charsetOf(String contentType) {
+        if (contentType == null) {
+            return DEFAULT_CHARSET;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                String name = param.substring(8).trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return DEFAULT_CHARSET;
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * "deflate" is supposed to be zlib wrapped, but enough servers send a raw deflate
+     * stream that we sniff the zlib header before choosing.
+     */
+    private static boolean isZlibWrapped(PushbackInputStream pushback) throws IOException {
+        int b0 = pushback.read();
+        int b1 = pushback.read();
+        if (b1 != -1) pushback.unread(b1);
+        if (b0 != -1) pushback.unread(b0);
+
+        return b0 != -1 && b1 != -1
+                && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
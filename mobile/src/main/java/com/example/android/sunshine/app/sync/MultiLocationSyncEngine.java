@@ -0,0 +1,185 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Refreshes a set of locations concurrently.
+ *
+ * Every location runs as its own task on a bounded worker pool and commits its own rows,
+ * so a slow city never holds up the others.  Tasks talking to the same host share a
+ * semaphore so we never open more than a fixed number of connections per server, and the
+ * whole run shares one deadline after which unfinished locations are abandoned.
+ */
+public class MultiLocationSyncEngine {
+    public static final String LOG_TAG = MultiLocationSyncEngine.class.getSimpleName();
+
+    public interface LocationSyncer {
+        /**
+         * @return the host the location will be fetched from, used for the per-host limit
+         */
+        String getHost(String locationSetting);
+
+        /**
+         * Fetches and commits a single location.  Called on a worker thread.
+         *
+         * @return one of the {@link SunshineSyncAdapter.LocationStatus} values
+         */
+        @SunshineSyncAdapter.LocationStatus
+        int syncLocation(String locationSetting) throws InterruptedException;
+    }
+
+    public static class Result {
+        // in the order the locations were requested
+        public final Map<String, Integer> statuses = new LinkedHashMap<>();
+        public final Map<String, Long> latencyMillis = new LinkedHashMap<>();
+        public final Set<String> timedOut = new LinkedHashSet<>();
+        public long wallTimeMillis;
+
+        /**
+         * @return the status of a location, or LOCATION_STATUS_SERVER_DOWN if it did not
+         * finish before the deadline
+         */
+        @SunshineSyncAdapter.LocationStatus
+        public int getStatus(String locationSetting) {
+            Integer status = statuses.get(locationSetting);
+            //noinspection WrongConstant
+            return status != null ? status : SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        }
+    }
+
+    // How long the workers of a finished run get to return after being interrupted
+    private static final long WORKER_EXIT_MILLIS = SunshineHttpClient.READ_TIMEOUT_MILLIS;
+
+    private final int mMaxWorkers;
+    private final int mMaxPerHost;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+
+    public MultiLocationSyncEngine(int maxWorkers, int maxPerHost) {
+        mMaxWorkers = maxWorkers;
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * Syncs every location and waits until they are all done or the deadline passes.
+     *
+     * @param timeoutMillis the budget shared by the whole run
+     */
+    public Result syncAll(Collection<String> locations, final LocationSyncer syncer,
+                          long timeoutMillis) throws InterruptedException {
+        final Result result = new Result();
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        List<String> ordered = new ArrayList<>(new LinkedHashSet<>(locations));
+        if (ordered.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(mMaxWorkers, ordered.size()));
+        Map<String, Future<Integer>> futures = new LinkedHashMap<>();
+        final Map<String, Long> latencies =
+                Collections.synchronizedMap(new HashMap<String, Long>());
+        try {
+            for (final String location : ordered) {
+                futures.put(location, executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Semaphore permits = permitsFor(syncer.getHost(location));
+                        long remaining = deadline - System.nanoTime();
+                        if (!permits.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                            throw new TimeoutException("No connection slot for " + location);
+                        }
+                        long taskStart = System.nanoTime();
+                        try {
+                            return syncer.syncLocation(location);
+                        } finally {
+                            permits.release();
+                            latencies.put(location, TimeUnit.NANOSECONDS.toMillis(
+                                    System.nanoTime() - taskStart));
+                        }
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<Integer>> entry : futures.entrySet()) {
+                String location = entry.getKey();
+                try {
+                    long remaining = Math.max(0, deadline - System.nanoTime());
+                    result.statuses.put(location,
+                            entry.getValue().get(remaining, TimeUnit.NANOSECONDS));
+                } catch (TimeoutException | CancellationException e) {
+                    entry.getValue().cancel(true);
+                    result.timedOut.add(location);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof TimeoutException) {
+                        result.timedOut.add(location);
+                    } else {
+                        Log.e(LOG_TAG, "Sync of " + location + " failed", e.getCause());
+                        result.statuses.put(location,
+                                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            awaitWorkers(executor);
+        }
+
+        result.wallTimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for (String location : ordered) {
+            Long latency = latencies.get(location);
+            if (latency != null) {
+                result.latencyMillis.put(location, latency);
+            }
+        }
+        Log.d(LOG_TAG, "Synced " + result.statuses.size() + "/" + ordered.size()
+                + " locations in " + result.wallTimeMillis + "ms, per location "
+                + result.latencyMillis + (result.timedOut.isEmpty() ? ""
+                : ", timed out " + result.timedOut));
+        return result;
+    }
+
+    /**
+     * Waits for the interrupted workers to return, so none of them is still writing once the
+     * run is over.  A worker stuck on a socket read returns within the read timeout.
+     */
+    private static void awaitWorkers(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(WORKER_EXIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Workers still running " + WORKER_EXIT_MILLIS
+                        + "ms after the run");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized Semaphore permitsFor(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mMaxPerHost);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+}
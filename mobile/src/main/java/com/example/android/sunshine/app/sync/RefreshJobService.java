@@ -0,0 +1,232 @@
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.Target;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs the sync {@link SyncScheduler} places after a model run lands as a one-shot job, and
+ * every kind of refresh as its own periodic job, so that JobScheduler holds each back
+ * until the network, the charger and the screen are the way {@link RefreshPolicy} wants
+ * them, and batches it with whatever else is waiting for the same conditions.
+ *
+ * The daily, hourly and backfill jobs ask the sync adapter for a sync of their own kind,
+ * which checks the policy again since the conditions may have changed by the time it runs.
+ * The art job downloads the images of the stored forecast into Glide's cache.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class RefreshJobService extends JobService {
+    public static final String LOG_TAG = RefreshJobService.class.getSimpleName();
+
+    private static final String EXTRA_KIND = "kind";
+
+    // Job ids are the kind bits, offset so they cannot clash with other jobs of the app; the
+    // wakeup takes the id no kind has
+    private static final int JOB_ID_BASE = 1000;
+    private static final int JOB_ID_WAKEUP = JOB_ID_BASE;
+
+    // How late the wakeup may run, so JobScheduler can batch it with other work
+    private static final long WAKEUP_WINDOW_MILLIS = 15 * 60 * 1000;
+
+    // How long a job waits on the sync it asked for before giving up on it
+    private static final long SYNC_WAIT_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * Schedules one job per kind of refresh, replacing the periodic sync.  A job already
+     * pending with the same period and constraints is left alone, since scheduling it again
+     * would restart its period.
+     *
+     * @param intervalSeconds period of the daily and hourly refreshes; the others are
+     *                        multiples of it
+     */
+    public static void schedule(Context context, long intervalSeconds) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        SparseArray<JobInfo> pending = new SparseArray<>();
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            pending.put(job.getId(), job);
+        }
+        ComponentName service = new ComponentName(context, RefreshJobService.class);
+        for (int kind : RefreshPolicy.KINDS) {
+            RefreshPolicy.Constraints constraints = RefreshPolicy.getConstraints(kind);
+            PersistableBundle extras = new PersistableBundle();
+            extras.putInt(EXTRA_KIND, kind);
+            JobInfo job = new JobInfo.Builder(JOB_ID_BASE + kind, service)
+                    .setRequiredNetworkType(constraints.unmetered
+                            ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                    .setRequiresCharging(constraints.charging)
+                    .setRequiresDeviceIdle(constraints.idle)
+                    .setPeriodic(intervalSeconds * constraints.periodFactor * 1000)
+                    .setPersisted(true)
+                    .setExtras(extras)
+                    .build();
+            if (isSameJob(job, pending.get(job.getId()))) {
+                continue;
+            }
+            if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+                Log.w(LOG_TAG, "Could not schedule the " + RefreshPolicy.getName(kind) + " job");
+            }
+        }
+
+        // The jobs ask for syncs themselves
+        Account account = SunshineSyncAdapter.getSyncAccount(context);
+        ContentResolver.removePeriodicSync(account,
+                context.getString(R.string.content_authority), new Bundle());
+    }
+
+    private static boolean isSameJob(JobInfo job, JobInfo pending) {
+        return pending != null
+                && pending.isPeriodic()
+                && pending.getIntervalMillis() == job.getIntervalMillis()
+                && pending.getNetworkType() == job.getNetworkType()
+                && pending.isRequireCharging() == job.isRequireCharging()
+                && pending.isRequireDeviceIdle() == job.isRequireDeviceIdle()
+                && pending.isPersisted() == job.isPersisted();
+    }
+
+    /**
+     * Schedules the foreground refresh once, replacing the wakeup already scheduled.
+     */
+    public static void scheduleWakeup(Context context, long delayMillis) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        PersistableBundle extras = new PersistableBundle();
+        extras.putInt(EXTRA_KIND, RefreshPolicy.KIND_FOREGROUND);
+        JobInfo job = new JobInfo.Builder(JOB_ID_WAKEUP,
+                new ComponentName(context, RefreshJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delayMillis)
+                .setOverrideDeadline(delayMillis + WAKEUP_WINDOW_MILLIS)
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(LOG_TAG, "Could not schedule the wakeup");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final int kind = params.getExtras().getInt(EXTRA_KIND);
+        final Context context = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                boolean ok = false;
+                try {
+                    ok = runRefresh(context, kind);
+                } catch (InterruptedException e) {
+                    Log.d(LOG_TAG, "Interrupted waiting for the " + RefreshPolicy.getName(kind)
+                            + " refresh");
+                } finally {
+                    new SyncStats(context).recordRefreshJob(kind, ok,
+                            SystemClock.elapsedRealtime() - start);
+                    // a failed run is retried at the next period, not with backoff
+                    jobFinished(params, false);
+                }
+            }
+        }, "Refresh " + RefreshPolicy.getName(kind)).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The sync adapter stops on its own; the next period tries again
+        return false;
+    }
+
+    /**
+     * @return whether the refresh ran to completion
+     */
+    private static boolean runRefresh(Context context, int kind) throws InterruptedException {
+        Log.d(LOG_TAG, "Running the " + RefreshPolicy.getName(kind) + " refresh");
+        if (kind == RefreshPolicy.KIND_ART) {
+            return prefetchArt(context);
+        }
+        // Each job asks for its own kind only.  The foreground sync, which runs on any
+        // network, takes the saved locations and the 3-hour forecasts along when the
+        // conditions allow them, so their own jobs find them fresh.
+        int kinds = kind;
+        if (kind == RefreshPolicy.KIND_FOREGROUND) {
+            kinds |= RefreshPolicy.filter(RefreshPolicy.KIND_FAVORITES | RefreshPolicy.KIND_HOURLY,
+                    new SyncScheduler(context).getConditions(), false);
+        }
+        return SunshineSyncAdapter.requestRefresh(context, kinds).await(SYNC_WAIT_MILLIS)
+                == SunshineSyncAdapter.LOCATION_STATUS_OK;
+    }
+
+    /**
+     * Downloads the art of every weather condition in the stored forecast, so the list, the
+     * notification and Muzei find it cached instead of fetching it on a metered network.
+     */
+    private static boolean prefetchArt(Context context) throws InterruptedException {
+        if (Utility.usingLocalGraphics(context)) {
+            return true;
+        }
+        Set<Integer> weatherIds = new TreeSet<>();
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        long today = dayTime.setJulianDay(
+                Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff));
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(WeatherContract.normalizeDate(today))},
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                weatherIds.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        boolean ok = true;
+        for (int weatherId : weatherIds) {
+            String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+            if (artUrl == null) {
+                continue;
+            }
+            try {
+                Glide.with(context)
+                        .load(artUrl)
+                        .downloadOnly(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL)
+                        .get();
+            } catch (ExecutionException e) {
+                Log.w(LOG_TAG, "Could not prefetch " + artUrl, e);
+                ok = false;
+            }
+        }
+        Log.d(LOG_TAG, "Prefetched the art of " + weatherIds.size() + " conditions");
+        return ok;
+    }
+}
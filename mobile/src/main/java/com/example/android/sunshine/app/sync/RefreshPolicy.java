@@ -0,0 +1,160 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides which kinds of refresh may run under the current device conditions, and how big a
+ * forecast to ask for.  Plain Java like {@link SyncPolicy}, so the decisions can be checked
+ * offline; {@link SyncScheduler} reads the conditions and {@link RefreshJobService} turns
+ * the constraints into jobs.
+ *
+ * The forecast on screen refreshes on any network.  Everything else waits for a network
+ * that costs nothing, and the extras nobody is waiting for also for the charger, or for
+ * the device to be idle as well.
+ */
+public class RefreshPolicy {
+
+    // Kinds of refresh, as bits so a sync can carry several
+    public static final int KIND_FOREGROUND = 1;      // daily forecast of the preferred location
+    public static final int KIND_FAVORITES = 1 << 1;  // daily forecast of the saved locations
+    public static final int KIND_HOURLY = 1 << 2;     // 3-hour forecast of every location
+    public static final int KIND_ART = 1 << 3;        // art pack images for the stored forecast
+    public static final int KIND_BACKFILL = 1 << 4;   // the days a metered sync left out
+
+    public static final int[] KINDS =
+            {KIND_FOREGROUND, KIND_FAVORITES, KIND_HOURLY, KIND_ART, KIND_BACKFILL};
+
+    // What a periodic sync covers when nothing says otherwise
+    public static final int KINDS_SYNC = KIND_FOREGROUND | KIND_FAVORITES | KIND_HOURLY;
+
+    // Days asked for on a network that costs nothing, and on a metered one
+    public static final int FULL_DAYS = 14;
+    public static final int METERED_DAYS = 7;
+
+    // How much less often than the fallback sync the extras are due: the art daily and the
+    // backfill twice a day
+    static final int ART_PERIOD_FACTOR = 2;
+    static final int BACKFILL_PERIOD_FACTOR = 1;
+
+    /**
+     * The state of the device a decision is made in.
+     */
+    public static class Conditions {
+        public boolean connected;
+        public boolean metered;
+        public boolean charging;
+        public boolean idle;
+
+        @Override
+        public String toString() {
+            return (connected ? (metered ? "metered" : "unmetered") : "offline")
+                    + (charging ? ", charging" : "") + (idle ? ", idle" : "");
+        }
+    }
+
+    /**
+     * What one kind of refresh needs before it runs.
+     */
+    public static class Constraints {
+        public final boolean unmetered;
+        public final boolean charging;
+        public final boolean idle;
+        // Multiple of the foreground sync interval between two runs
+        public final int periodFactor;
+
+        Constraints(boolean unmetered, boolean charging, boolean idle, int periodFactor) {
+            this.unmetered = unmetered;
+            this.charging = charging;
+            this.idle = idle;
+            this.periodFactor = periodFactor;
+        }
+    }
+
+    /**
+     * How big a forecast to ask for.
+     */
+    public static class Payload {
+        public final int days;
+        public final boolean hourly;
+
+        Payload(int days, boolean hourly) {
+            this.days = days;
+            this.hourly = hourly;
+        }
+
+        @Override
+        public String toString() {
+            return days + " days" + (hourly ? " with hourly" : "");
+        }
+    }
+
+    public static Constraints getConstraints(int kind) {
+        switch (kind) {
+            case KIND_FOREGROUND:
+                return new Constraints(false, false, false, 1);
+            case KIND_FAVORITES:
+            case KIND_HOURLY:
+                return new Constraints(true, false, false, 1);
+            case KIND_ART:
+                return new Constraints(true, true, false, ART_PERIOD_FACTOR);
+            case KIND_BACKFILL:
+                return new Constraints(true, true, true, BACKFILL_PERIOD_FACTOR);
+            default:
+                throw new IllegalArgumentException("Unknown refresh kind " + kind);
+        }
+    }
+
+    public static boolean allows(int kind, Conditions conditions) {
+        Constraints constraints = getConstraints(kind);
+        return conditions.connected
+                && (!constraints.unmetered || !conditions.metered)
+                && (!constraints.charging || conditions.charging)
+                && (!constraints.idle || conditions.idle);
+    }
+
+    /**
+     * @param kinds the kinds asked for, as KIND_ bits
+     * @param manual whether the user asked; the forecast they look at then comes whatever the
+     *               network, saved locations included
+     * @return the kinds that may run now
+     */
+    public static int filter(int kinds, Conditions conditions, boolean manual) {
+        int allowed = 0;
+        for (int kind : KINDS) {
+            if ((kinds & kind) == 0) {
+                continue;
+            }
+            boolean userFacing = kind == KIND_FOREGROUND || kind == KIND_FAVORITES;
+            if (allows(kind, conditions) || (manual && userFacing && conditions.connected)) {
+                allowed |= kind;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * @return the forecast to ask for: the whole of it where data costs nothing, only the
+     * next week and no 3-hour periods where it is metered, unless a backfill asked for all
+     */
+    public static Payload choosePayload(int kinds, Conditions conditions) {
+        if (!conditions.metered || (kinds & KIND_BACKFILL) != 0) {
+            return new Payload(FULL_DAYS, (kinds & KIND_HOURLY) != 0);
+        }
+        return new Payload(METERED_DAYS, false);
+    }
+
+    public static String getName(int kind) {
+        switch (kind) {
+            case KIND_FOREGROUND:
+                return "foreground";
+            case KIND_FAVORITES:
+                return "favorites";
+            case KIND_HOURLY:
+                return "hourly";
+            case KIND_ART:
+                return "art";
+            case KIND_BACKFILL:
+                return "backfill";
+            default:
+                throw new IllegalArgumentException("Unknown refresh kind " + kind);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Persists the HTTP cache validators (ETag / Last-Modified) of the last forecast response,
+ * keyed by the query URI, so the next sync can ask the server whether anything changed
+ * instead of downloading the whole payload again.
+ *
+ * Also keeps running counts of how often a conditional request was answered with
+ * 304 Not Modified.
+ */
+public class ResponseValidatorStore {
+    public static final String LOG_TAG = ResponseValidatorStore.class.getSimpleName();
+
+    // Package-private so tests can start from an empty store
+    static final String PREFS_NAME = "forecast_validators";
+
+    private static final String SUFFIX_ETAG = "#etag";
+    private static final String SUFFIX_LAST_MODIFIED = "#last_modified";
+
+    private static final String KEY_CONDITIONAL_REQUESTS = "stats_conditional_requests";
+    private static final String KEY_NOT_MODIFIED = "stats_not_modified";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // Locations sync in parallel, so read-modify-write of the counters must be serialized
+    private static final Object sLock = new Object();
+
+    private final SharedPreferences mPrefs;
+
+    public ResponseValidatorStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds If-None-Match / If-Modified-Since headers for the stored validators, if any.
+     * Must be called before the connection is opened.
+     *
+     * @return true if the request was made conditional
+     */
+    public boolean applyTo(HttpURLConnection connection, String key) {
+        String etag = mPrefs.getString(key + SUFFIX_ETAG, null);
+        String lastModified = mPrefs.getString(key + SUFFIX_LAST_MODIFIED, null);
+        if (etag == null && lastModified == null) {
+            return false;
+        }
+
+        if (etag != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            // echo the server's own date string back rather than reformatting it
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        synchronized (sLock) {
+            mPrefs.edit()
+                    .putLong(KEY_CONDITIONAL_REQUESTS,
+                            mPrefs.getLong(KEY_CONDITIONAL_REQUESTS, 0) + 1)
+                    .apply();
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the validators of a response whose body has been stored successfully.
+     */
+    public void store(HttpURLConnection connection, String key) {
+        String etag = connection.getHeaderField(HEADER_ETAG);
+        String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (etag != null) {
+            editor.putString(key + SUFFIX_ETAG, etag);
+        } else {
+            editor.remove(key + SUFFIX_ETAG);
+        }
+        if (lastModified != null) {
+            editor.putString(key + SUFFIX_LAST_MODIFIED, lastModified);
+        } else {
+            editor.remove(key + SUFFIX_LAST_MODIFIED);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the validators for a key, so the next request is unconditional.
+     */
+    public void clear(String key) {
+        mPrefs.edit()
+                .remove(key + SUFFIX_ETAG)
+                .remove(key + SUFFIX_LAST_MODIFIED)
+                .apply();
+    }
+
+    public void recordNotModified() {
+        synchronized (sLock) {
+            long notModified = mPrefs.getLong(KEY_NOT_MODIFIED, 0) + 1;
+            mPrefs.edit().putLong(KEY_NOT_MODIFIED, notModified).apply();
+        }
+        Log.d(LOG_TAG, "Forecast not modified, cache hit ratio " + getHitRatio());
+    }
+
+    /**
+     * @return the fraction of conditional requests that were answered with 304 Not Modified
+     */
+    public float getHitRatio() {
+        long conditional = mPrefs.getLong(KEY_CONDITIONAL_REQUESTS, 0);
+        if (conditional == 0) {
+            return 0f;
+        }
+        return (float) mPrefs.getLong(KEY_NOT_MODIFIED, 0) / conditional;
+    }
+}
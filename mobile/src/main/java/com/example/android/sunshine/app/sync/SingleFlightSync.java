@@ -0,0 +1,149 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges overlapping sync requests into one sync.
+ *
+ * Only requests for the same sync join each other: the same kinds of refresh, and manual or
+ * not.  A request made while such a sync has been requested but not started yet joins it:
+ * that sync reads the locations when it starts, so it serves every request made before then.
+ * A request made while one is running joins it if it is for the same set of locations;
+ * otherwise it asks for the next one.  Callers get a {@link Flight} they can wait on for the
+ * status of the sync that served them.
+ */
+public class SingleFlightSync {
+    public static final String LOG_TAG = SingleFlightSync.class.getSimpleName();
+
+    // A requested sync the SyncManager has not started by then (no network, say) no longer
+    // absorbs new requests; the next one asks again
+    static final long PENDING_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    public static class Flight {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private long mRequestedAt;
+        private volatile String mRequest;
+        private volatile String mLocations;
+        private volatile int mStatus = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        private int mCallers;
+
+        Flight(long requestedAt) {
+            mRequestedAt = requestedAt;
+        }
+
+        /**
+         * @return the location status the sync ended with, or LOCATION_STATUS_UNKNOWN if it
+         * did not finish in time
+         */
+        @SunshineSyncAdapter.LocationStatus
+        public int await(long timeoutMillis) throws InterruptedException {
+            mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            //noinspection WrongConstant
+            return mStatus;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * @return how many requests this sync serves
+         */
+        public synchronized int getCallers() {
+            return mCallers;
+        }
+
+        private synchronized void join() {
+            mCallers++;
+        }
+
+        private void complete(int status) {
+            mStatus = status;
+            mDone.countDown();
+        }
+    }
+
+    // Requested syncs not started yet, by what they were asked for
+    private final Map<String, Flight> mPending = new HashMap<>();
+    // Running syncs, by what they were asked for
+    private final Map<String, Flight> mRunning = new HashMap<>();
+    private int mMergedRequests;
+
+    /**
+     * @param request identifies what the caller asks the sync for, its extras
+     * @param locations identifies the locations the caller wants synced
+     * @param launch asks the SyncManager for a sync; run, outside any lock, only when no
+     *               sync in flight can serve the request
+     */
+    public Flight request(String request, String locations, Runnable launch) {
+        long now = System.currentTimeMillis();
+        Flight flight;
+        synchronized (this) {
+            Flight running = mRunning.get(request);
+            Flight pending = mPending.get(request);
+            if (running != null && running.mLocations.equals(locations)) {
+                flight = running;
+            } else if (pending != null && now - pending.mRequestedAt < PENDING_TIMEOUT_MILLIS) {
+                flight = pending;
+            } else {
+                flight = null;
+            }
+            if (flight != null) {
+                mMergedRequests++;
+                flight.join();
+                Log.d(LOG_TAG, "Joined sync in flight, " + flight.getCallers() + " callers");
+                return flight;
+            }
+            // a stale pending sync keeps its callers and is asked for again
+            if (pending == null) {
+                pending = new Flight(now);
+                mPending.put(request, pending);
+            } else {
+                pending.mRequestedAt = now;
+            }
+            flight = pending;
+            flight.join();
+        }
+        launch.run();
+        return flight;
+    }
+
+    /**
+     * Called when a sync starts.  Takes over the pending flight asked for the same, if any;
+     * periodic syncs start without one.
+     *
+     * @param request what this sync was asked for, its extras
+     * @param locations the locations this sync covers
+     */
+    public synchronized Flight onSyncStarted(String request, String locations) {
+        Flight flight = mPending.remove(request);
+        if (flight == null) {
+            flight = new Flight(System.currentTimeMillis());
+        }
+        flight.mRequest = request;
+        flight.mLocations = locations;
+        mRunning.put(request, flight);
+        return flight;
+    }
+
+    public void onSyncFinished(Flight flight, @SunshineSyncAdapter.LocationStatus int status) {
+        synchronized (this) {
+            if (mRunning.get(flight.mRequest) == flight) {
+                mRunning.remove(flight.mRequest);
+            }
+        }
+        flight.complete(status);
+    }
+
+    /**
+     * @return requests that were served by a sync already in flight
+     */
+    public synchronized int getMergedRequestCount() {
+        return mMergedRequests;
+    }
+}
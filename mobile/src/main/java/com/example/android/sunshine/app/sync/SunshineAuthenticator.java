@@ -73,6 +73,15 @@ public class SunshineAuthenticator extends AbstractAccountAuthenticator {
         throw new UnsupportedOperationException();
     }
 
+    // The account is going away, stop handing out the cached one
+    @Override
+    public Bundle getAccountRemovalAllowed(
+            AccountAuthenticatorResponse r,
+            Account account) throws NetworkErrorException {
+        SunshineSyncAdapter.forgetSyncAccount();
+        return super.getAccountRemovalAllowed(r, account);
+    }
+
     // Checking features for the account is not supported
     @Override
     public Bundle hasFeatures(
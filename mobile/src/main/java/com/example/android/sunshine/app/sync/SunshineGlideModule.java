@@ -0,0 +1,103 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.stream.StreamModelLoader;
+import com.bumptech.glide.module.GlideModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Routes Glide's network loads (the art pack images in the list, the detail view, the widgets
+ * and the notification icon) through {@link SunshineHttpClient}, so they share its pooled
+ * connections, timeouts and DNS cache with the sync.  Registered in the manifest.
+ */
+public class SunshineGlideModule implements GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new Factory());
+    }
+
+    static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+        @Override
+        public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                        GenericLoaderFactory factories) {
+            return new StreamModelLoader<GlideUrl>() {
+                @Override
+                public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width,
+                                                                   int height) {
+                    return new Fetcher(model);
+                }
+            };
+        }
+
+        @Override
+        public void teardown() {
+        }
+    }
+
+    static class Fetcher implements DataFetcher<InputStream> {
+        private final GlideUrl mUrl;
+        private SunshineHttpClient.Call mCall;
+        private InputStream mStream;
+        private volatile boolean mCancelled;
+
+        Fetcher(GlideUrl url) {
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            mCall = SunshineHttpClient.getInstance().newCall(new URL(mUrl.toString()));
+            int code = mCall.execute();
+            if (mCancelled) {
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Request failed " + code + ": " + mUrl);
+            }
+            mStream = mCall.getConnection().getInputStream();
+            return mStream;
+        }
+
+        @Override
+        public void cleanup() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // nothing to do, the connection just will not be reused
+                }
+            }
+            if (mCall != null) {
+                mCall.close();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+}
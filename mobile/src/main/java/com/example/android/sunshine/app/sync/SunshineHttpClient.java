@@ -0,0 +1,239 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one HTTP client every outbound fetch goes through: the sync, the group endpoint and
+ * Glide's image loads.
+ *
+ * Connections are never disconnected, only their streams closed, so the platform keeps the
+ * socket alive and the next request to the same host reuses it instead of paying for another
+ * TCP (and TLS) handshake.  Host names are resolved once and cached in process, since the
+ * framework only caches lookups for a couple of seconds.  Every request is timed.
+ */
+public class SunshineHttpClient {
+    public static final String LOG_TAG = SunshineHttpClient.class.getSimpleName();
+
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // Idle keep-alive connections the platform pool holds on to
+    static final int MAX_IDLE_CONNECTIONS = 5;
+
+    static final long DNS_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static SunshineHttpClient sInstance;
+
+    private static class DnsEntry {
+        final InetAddress address;
+        final long expiresAt;
+
+        DnsEntry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, DnsEntry> mDnsCache = new HashMap<>();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mDnsHits = new AtomicLong();
+    private final AtomicLong mHeadersMillis = new AtomicLong();
+    private final AtomicLong mTotalMillis = new AtomicLong();
+
+    public static synchronized SunshineHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SunshineHttpClient();
+        }
+        return sInstance;
+    }
+
+    SunshineHttpClient() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+    }
+
+    /**
+     * How long one request took.  Header time runs from the start of the call until the
+     * status line and headers are in, and so includes any connect; total time runs until the
+     * call is closed.
+     */
+    public static class Timing {
+        public long dnsMillis;
+        public long headersMillis;
+        public long totalMillis;
+
+        @Override
+        public String toString() {
+            return "dns " + dnsMillis + "ms, headers " + headersMillis + "ms, total "
+                    + totalMillis + "ms";
+        }
+    }
+
+    /**
+     * One request.  Configure it through {@link #getConnection()}, send it with
+     * {@link #execute()}, and always {@link #close()} it, which hands the connection back to
+     * the pool rather than tearing it down.
+     */
+    public class Call implements Closeable {
+        private final HttpURLConnection mConnection;
+        private final String mHost;
+        private final long mStart;
+        private final Timing mTiming = new Timing();
+        private boolean mClosed;
+
+        Call(URL url) throws IOException {
+            mStart = SystemClock.elapsedRealtime();
+            mHost = url.getHost();
+
+            // Plain http can go straight to the cached address; https needs the name for
+            // certificate checks, so the platform resolves those itself
+            URL target = url;
+            InetAddress address = null;
+            if ("http".equals(url.getProtocol())) {
+                address = resolve(mHost);
+                target = new URL(url.getProtocol(), address.getHostAddress(), url.getPort(),
+                        url.getFile());
+            }
+            mTiming.dnsMillis = SystemClock.elapsedRealtime() - mStart;
+
+            mConnection = (HttpURLConnection) target.openConnection();
+            mConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            mConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            mConnection.setRequestMethod("GET");
+            if (address != null) {
+                mConnection.setRequestProperty("Host",
+                        url.getPort() == -1 ? mHost : mHost + ":" + url.getPort());
+            }
+        }
+
+        public HttpURLConnection getConnection() {
+            return mConnection;
+        }
+
+        /**
+         * Sends the request and waits for the response headers.
+         *
+         * @return the HTTP status code
+         */
+        public int execute() throws IOException {
+            try {
+                int code = mConnection.getResponseCode();
+                mTiming.headersMillis = SystemClock.elapsedRealtime() - mStart;
+                return code;
+            } catch (IOException e) {
+                // the cached address may be the reason, look it up again next time
+                evict(mHost);
+                throw e;
+            }
+        }
+
+        public Timing getTiming() {
+            return mTiming;
+        }
+
+        /**
+         * Releases the connection for reuse.  Any body stream should be closed first; an
+         * unread error body is drained here, up to {@link HttpResponseBody#MAX_DRAIN_BYTES},
+         * so the connection stays reusable.
+         */
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            InputStream error = mConnection.getErrorStream();
+            if (error != null) {
+                try {
+                    byte[] buffer = new byte[1024];
+                    int drained = 0;
+                    int read;
+                    while (drained < HttpResponseBody.MAX_DRAIN_BYTES
+                            && (read = error.read(buffer)) != -1) {
+                        drained += read;
+                    }
+                } catch (IOException e) {
+                    // the connection will not be reused, nothing else is lost
+                } finally {
+                    try {
+                        error.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Error closing error stream", e);
+                    }
+                }
+            }
+            mTiming.totalMillis = SystemClock.elapsedRealtime() - mStart;
+            mRequests.incrementAndGet();
+            mHeadersMillis.addAndGet(mTiming.headersMillis);
+            mTotalMillis.addAndGet(mTiming.totalMillis);
+            Log.v(LOG_TAG, mHost + ": " + mTiming);
+        }
+    }
+
+    public Call newCall(URL url) throws IOException {
+        return new Call(url);
+    }
+
+    /**
+     * Resolves a host name through the in-process cache.
+     */
+    InetAddress resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mDnsCache) {
+            DnsEntry entry = mDnsCache.get(host);
+            if (entry != null && entry.expiresAt > now) {
+                mDnsHits.incrementAndGet();
+                return entry.address;
+            }
+        }
+        // look up outside the lock so one slow host does not hold up the others
+        InetAddress address = InetAddress.getByName(host);
+        synchronized (mDnsCache) {
+            mDnsCache.put(host, new DnsEntry(address, now + DNS_TTL_MILLIS));
+        }
+        return address;
+    }
+
+    void evict(String host) {
+        synchronized (mDnsCache) {
+            mDnsCache.remove(host);
+        }
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getDnsHitCount() {
+        return mDnsHits.get();
+    }
+
+    /**
+     * @return mean time to response headers over every closed call, in milliseconds
+     */
+    public long getMeanHeadersMillis() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : mHeadersMillis.get() / requests;
+    }
+
+    /**
+     * @return mean time from start to close over every closed call, in milliseconds
+     */
+    public long getMeanTotalMillis() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : mTotalMillis.get() / requests;
+    }
+}
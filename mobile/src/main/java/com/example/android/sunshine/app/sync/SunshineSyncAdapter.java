@@ -2,58 +2,54 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.BuildConfig;
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherBatch;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.wearable.DataMap;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
 import java.net.URL;
-import java.util.Vector;
-import java.util.concurrent.ExecutionException;
-
-import com.example.android.sunshine.app.wear.WearSync;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -61,24 +57,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
     // 60 seconds (1 minute) * 180 = 3 hours
+    // The schedule now comes from SyncScheduler; this is the fixed baseline it is measured against.
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
-    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -90,451 +71,1393 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
+    // Endpoints serving the same daily forecast as FORECAST_BASE_URL, mirrors or a proxy of
+    // our own, as a comma separated list of base URLs.  Requests are hedged across them.
+    private static final String FORECAST_MIRROR_URLS = BuildConfig.FORECAST_MIRROR_URLS;
+
+    // 3-hour forecast for the next 5 days, about 40 periods per location
+    private static final String HOURLY_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+
+    // Batch endpoint serving the forecasts of several city ids in one response, or empty to
+    // fetch every location on its own.  OWM's public group endpoint only serves current
+    // conditions, so this points at a server that returns daily forecasts in the same shape.
+    private static final String FORECAST_GROUP_BASE_URL = BuildConfig.FORECAST_GROUP_URL;
+
+    // Our own aggregator, answering for every location at once with only the days that
+    // changed, see DeltaProtocol; empty to fetch from OWM
+    private static final String FORECAST_AGGREGATOR_BASE_URL = BuildConfig.FORECAST_AGGREGATOR_URL;
+
+    // The engine target that stands for every location fetched from the aggregator
+    private static final String AGGREGATOR_TARGET = "aggregator";
+
+    // Prefix of the engine targets that stand for a chunk of city ids
+    private static final String GROUP_TARGET_PREFIX = "group:";
+
+    // Prefix of the engine targets that fetch a location's 3-hour forecast
+    private static final String HOURLY_TARGET_PREFIX = "hourly:";
+
+    // Where buildForecastOperations puts each write, and applyBatch each of their results
+    static final int OPERATION_LOCATION = 0;
+    static final int OPERATION_ROWS = 1;
+    static final int OPERATION_PRUNE = 2;
+
+    // Periods that started longer ago than this are pruned
+    private static final long HOURLY_KEEP_SECONDS = 3 * 60 * 60;
+
+    // Bounds for refreshing several locations at once; no host gets more than half the
+    // workers, so a slow one cannot hold up the targets of the others
+    private static final int SYNC_MAX_WORKERS = 4;
+    private static final int SYNC_MAX_PER_HOST = 2;
+    private static final long SYNC_DEADLINE_MILLIS = 60 * 1000;
+
+    // Parsed forecasts waiting for the persist thread before the workers are held back
+    private static final int PERSIST_QUEUE_CAPACITY = 4;
+
+    // Rows received and rows that differed from the stored ones, for the scheduler
+    private final AtomicInteger mRowsReceived = new AtomicInteger();
+    private final AtomicInteger mRowsChanged = new AtomicInteger();
+
+    // Forecasts fetched for a grid cell, standing in for fetches of the cell until they expire
+    private static final GridCells.Cache<ForecastRowCollector> sCellForecasts =
+            new GridCells.Cache<>(GridCells.CELL_TTL_MILLIS);
+
+    private final CircuitBreaker mCircuitBreaker;
+
+    // Shared by every sync so that the endpoint latencies carry over
+    private static final HedgedFetcher sForecastEndpoints =
+            new HedgedFetcher(getForecastEndpoints());
+
+    // Sync extra holding the RefreshPolicy.KIND_ bits asked for; a sync without it refreshes
+    // RefreshPolicy.KINDS_SYNC
+    public static final String EXTRA_KINDS = "refresh_kinds";
+
+    // Merges sync requests that overlap, see syncImmediately
+    private static final SingleFlightSync sFlights = new SingleFlightSync();
+
+    // The sync account, once it is known to exist; cleared by the authenticator when removed
+    private static volatile Account sSyncAccount;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mCircuitBreaker = new CircuitBreaker(context);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        Set<String> locations = Utility.getSyncLocations(getContext());
+        int kinds = extras.getInt(EXTRA_KINDS, RefreshPolicy.KINDS_SYNC);
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+
+        // Requests for the same refresh made since this sync was asked for, or for these
+        // locations while it runs, are answered by it
+        SingleFlightSync.Flight flight = sFlights.onSyncStarted(getRequestKey(kinds, manual),
+                getSyncKey(locations));
+        @LocationStatus int status = LOCATION_STATUS_SERVER_DOWN;
+        try {
+            // A database recreated while the app ran gets the last forecast back first
+            new ForecastArchive(getContext()).restoreIfPending();
+
+            // The conditions may have changed since the sync was asked for, and syncs from
+            // before Lollipop are not held back for them at all
+            RefreshPolicy.Conditions conditions = new SyncScheduler(getContext()).getConditions();
+            int allowed = RefreshPolicy.filter(kinds, conditions, manual);
+            RefreshPolicy.Payload payload = RefreshPolicy.choosePayload(allowed, conditions);
+            new SyncStats(getContext()).recordRefreshDecision(kinds, allowed, payload);
+
+            Set<String> refreshed = new LinkedHashSet<>();
+            String preferredLocation = Utility.getPreferredLocation(getContext());
+            boolean backfill = (allowed & RefreshPolicy.KIND_BACKFILL) != 0;
+            for (String location : locations) {
+                int kind = location.equals(preferredLocation)
+                        ? RefreshPolicy.KIND_FOREGROUND : RefreshPolicy.KIND_FAVORITES;
+                if (backfill || (allowed & kind) != 0) {
+                    refreshed.add(location);
+                }
+            }
+            // the 3-hour forecasts may be asked for on their own, for every location
+            Set<String> hourly = payload.hourly ? locations : Collections.<String>emptySet();
+            if (refreshed.isEmpty() && hourly.isEmpty()) {
+                // the stored forecast and its status stand until the conditions allow more
+                Log.d(LOG_TAG, "Nothing to refresh while " + conditions);
+                status = Utility.getLocationStatus(getContext());
+                return;
+            }
+            Log.d(LOG_TAG, "Refreshing " + refreshed.size() + " of " + locations.size()
+                    + " locations, " + payload + ", while " + conditions);
+            status = syncLocations(refreshed, hourly, payload, syncResult);
+        } finally {
+            sFlights.onSyncFinished(flight, status);
+        }
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    /**
+     * Refreshes the given locations.
+     *
+     * @param hourlyLocations locations to refresh the 3-hour forecast of, if the payload has it
+     * @param payload how much of the forecast to ask for
+     * @return the status of the preferred location, or the stored status if it was not
+     * refreshed
+     */
+    @LocationStatus
+    private int syncLocations(Set<String> locations, Set<String> hourlyLocations,
+            RefreshPolicy.Payload payload, SyncResult syncResult) {
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        mRowsReceived.set(0);
+        mRowsChanged.set(0);
+
+        // Locations whose stored coordinates fall in one grid cell are fetched once, for the
+        // first of them; the others get a copy of that forecast.  The aggregator answers for
+        // all of them in one exchange anyway.
+        boolean useAggregator = !TextUtils.isEmpty(FORECAST_AGGREGATOR_BASE_URL);
+        Set<String> fetched = new LinkedHashSet<>(locations);
+        Map<String, String> cellOf = new HashMap<>();
+        Map<String, List<String>> cellFollowers = new HashMap<>();
+        if (!useAggregator) {
+            for (Map.Entry<String, List<String>> cell
+                    : GridCells.bucket(queryCoordinates(locations)).entrySet()) {
+                List<String> members = cell.getValue();
+                // a shorter forecast fetched on a metered network must not stand in for a
+                // full one
+                cellOf.put(members.get(0), cell.getKey() + "/" + payload.days);
+                if (members.size() > 1) {
+                    List<String> followers = new ArrayList<>(members.subList(1, members.size()));
+                    cellFollowers.put(members.get(0), followers);
+                    fetched.removeAll(followers);
+                }
+            }
+        }
+        if (fetched.size() < locations.size()) {
+            Log.d(LOG_TAG, locations.size() + " locations in " + fetched.size() + " fetches");
+            new SyncStats(getContext()).recordSharedFetches(locations.size() - fetched.size());
+        }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        // Locations whose city id we already know are fetched together from the group
+        // endpoint, when one is configured.  Everything else is fetched on its own, which
+        // also resolves and caches its city id for the next sync.
+        Map<String, String> targetOf = new LinkedHashMap<>();
+        Map<Long, List<String>> locationsByCityId = new HashMap<>();
+        if (useAggregator) {
+            for (String location : fetched) {
+                targetOf.put(location, AGGREGATOR_TARGET);
+            }
+        } else if (!TextUtils.isEmpty(FORECAST_GROUP_BASE_URL) && fetched.size() > 1) {
+            Map<String, Long> cityIds = queryCityIds(fetched);
+            if (cityIds.size() > 1) {
+                for (Map.Entry<String, Long> entry : cityIds.entrySet()) {
+                    List<String> settings = locationsByCityId.get(entry.getValue());
+                    if (settings == null) {
+                        settings = new ArrayList<>();
+                        locationsByCityId.put(entry.getValue(), settings);
+                    }
+                    settings.add(entry.getKey());
+                }
+                List<Long> ids = new ArrayList<>(locationsByCityId.keySet());
+                for (List<Long> chunk : GroupForecastFetcher.chunk(ids)) {
+                    String target = GROUP_TARGET_PREFIX + TextUtils.join(",", chunk);
+                    for (Long cityId : chunk) {
+                        for (String setting : locationsByCityId.get(cityId)) {
+                            targetOf.put(setting, target);
+                        }
+                    }
+                }
+            }
+        }
+        for (String location : fetched) {
+            if (!targetOf.containsKey(location)) {
+                targetOf.put(location, location);
+            }
+        }
+        // a location sharing a cell ends up however the fetch for its cell does
+        for (Map.Entry<String, List<String>> entry : cellFollowers.entrySet()) {
+            for (String follower : entry.getValue()) {
+                targetOf.put(follower, targetOf.get(entry.getKey()));
+            }
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // The 3-hour forecasts run next to the daily ones; they do not count towards the
+        // location status
+        List<String> targets = new ArrayList<>(targetOf.values());
+        if (payload.hourly) {
+            for (String location : hourlyLocations) {
+                targets.add(HOURLY_TARGET_PREFIX + location);
+            }
+        }
 
+        final SyncPipeline<PendingRows> pipeline = newPipeline();
+        pipeline.start();
+        ForecastSyncer syncer = new ForecastSyncer(new SyncRun(pipeline, payload.days, cellOf,
+                cellFollowers, locationsByCityId,
+                useAggregator ? fetched : Collections.<String>emptySet()));
+
+        // Every location is committed before the status is published or anyone is told
+        MultiLocationSyncEngine.Result result;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+            result = new MultiLocationSyncEngine(SYNC_MAX_WORKERS, SYNC_MAX_PER_HOST)
+                    .syncAll(targets, syncer, SYNC_DEADLINE_MILLIS);
+            if (!pipeline.finish(SYNC_DEADLINE_MILLIS)) {
+                Log.w(LOG_TAG, "Persist stage did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Sync interrupted");
+            pipeline.abort();
+            Thread.currentThread().interrupt();
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-            URL url = new URL(builtUri.toString());
+        // The location status only ever describes the preferred location
+        String preferredTarget = targetOf.get(preferredLocation);
+        int status;
+        if (preferredTarget != null) {
+            status = result.getStatus(preferredTarget);
+            setLocationStatus(getContext(), status);
+        } else {
+            status = Utility.getLocationStatus(getContext());
+        }
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+        // Tell the SyncManager what went wrong, and to hold off while every endpoint we need
+        // has its circuit open, rather than retrying into the outage
+        long retryAfter = Long.MAX_VALUE;
+        for (String target : new LinkedHashSet<>(targetOf.values())) {
+            switch (result.getStatus(target)) {
+                case LOCATION_STATUS_SERVER_DOWN:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                case LOCATION_STATUS_SERVER_INVALID:
+                    syncResult.stats.numParseExceptions++;
+                    break;
+            }
+            retryAfter = Math.min(retryAfter,
+                    mCircuitBreaker.getRetryAfterMillis(syncer.getHost(target)));
+        }
+        if (retryAfter > 0 && retryAfter != Long.MAX_VALUE) {
+            syncResult.delayUntil = (System.currentTimeMillis() + retryAfter) / 1000;
+            Log.d(LOG_TAG, "Endpoints down, delaying syncs for " + retryAfter / 1000 + "s");
+        }
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        // Responses of locations no longer synced are not worth restoring
+        new ForecastArchive(getContext()).retain(Utility.getSyncLocations(getContext()));
+
+        // A failed sync says nothing about how fast the forecast is moving, and one of the
+        // 3-hour forecasts alone says nothing of the daily forecast
+        SyncScheduler scheduler = new SyncScheduler(getContext());
+        if (status == LOCATION_STATUS_OK && !locations.isEmpty()) {
+            scheduler.recordSync(mRowsReceived.get(), mRowsChanged.get());
+        }
+        scheduler.scheduleNext();
+
+        SyncStats stats = new SyncStats(getContext());
+        stats.recordStage(SyncPipeline.STAGE_FETCH,
+                pipeline.getStageMillis(SyncPipeline.STAGE_FETCH));
+        stats.recordStage(SyncPipeline.STAGE_PARSE,
+                pipeline.getStageMillis(SyncPipeline.STAGE_PARSE));
+        stats.recordStage(SyncPipeline.STAGE_PERSIST,
+                pipeline.getStageMillis(SyncPipeline.STAGE_PERSIST));
+
+        Log.d(LOG_TAG, "Sync Complete. " + locations.size() + " locations in "
+                + result.wallTimeMillis + "ms; " + pipeline);
+        return status;
+    }
+
+    private static SyncPipeline<PendingRows> newPipeline() {
+        return new SyncPipeline<>(PERSIST_QUEUE_CAPACITY,
+                new SyncPipeline.Persister<PendingRows>() {
+                    @Override
+                    public void persist(PendingRows rows) {
+                        rows.store();
+                    }
+                });
+    }
+
+    /**
+     * What the workers of one sync share.  It is handed to them rather than kept in fields of
+     * the adapter, so a worker that outlives its sync cannot reach the next one's.
+     */
+    private static class SyncRun {
+        // Parsed forecasts are submitted to it for persisting
+        final SyncPipeline<PendingRows> pipeline;
+        // Days of forecast asked for, as the refresh policy chose them
+        final int forecastDays;
+        // Grid cell of each location fetched for its cell, and the other locations of the
+        // cell, which take a copy of its forecast instead of a fetch
+        final Map<String, String> cellOf;
+        final Map<String, List<String>> cellFollowers;
+        // Location settings fetched from the group endpoint, by the city id they resolved to
+        final Map<Long, List<String>> locationsByCityId;
+        // Locations fetched from the aggregator
+        final Set<String> aggregatedLocations;
+
+        SyncRun(SyncPipeline<PendingRows> pipeline, int forecastDays, Map<String, String> cellOf,
+                Map<String, List<String>> cellFollowers,
+                Map<Long, List<String>> locationsByCityId, Set<String> aggregatedLocations) {
+            this.pipeline = pipeline;
+            this.forecastDays = forecastDays;
+            this.cellOf = cellOf;
+            this.cellFollowers = cellFollowers;
+            this.locationsByCityId = locationsByCityId;
+            this.aggregatedLocations = aggregatedLocations;
+        }
+    }
+
+    private class ForecastSyncer implements MultiLocationSyncEngine.LocationSyncer {
+        private final SyncRun mRun;
+
+        ForecastSyncer(SyncRun run) {
+            mRun = run;
+        }
+
+        @Override
+        public String getHost(String target) {
+            if (target.equals(AGGREGATOR_TARGET)) {
+                return Uri.parse(FORECAST_AGGREGATOR_BASE_URL).getHost();
+            }
+            if (target.startsWith(GROUP_TARGET_PREFIX)) {
+                return Uri.parse(FORECAST_GROUP_BASE_URL).getHost();
+            }
+            if (target.startsWith(HOURLY_TARGET_PREFIX)) {
+                return Uri.parse(HOURLY_BASE_URL).getHost();
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            // Stands for the forecast endpoints together: the fetch only fails when every
+            // one of them did
+            return Uri.parse(FORECAST_BASE_URL).getHost();
+        }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        @Override
+        public int syncLocation(String target) {
+            // A forecast fetched for the location's grid cell a moment ago sends no request,
+            // so it neither waits on the endpoint's circuit nor counts towards it
+            ForecastRowCollector shared = getCellForecast(mRun, target);
+            if (shared != null) {
+                Log.d(LOG_TAG, target + ": using the forecast of grid cell "
+                        + mRun.cellOf.get(target));
+                return submitForCell(mRun, shared.copyFor(target))
+                        ? LOCATION_STATUS_OK : LOCATION_STATUS_SERVER_DOWN;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            // While the endpoint's circuit is open, the stored rows are all we have; the
+            // location status tells the UI they are stale
+            String host = getHost(target);
+            if (!mCircuitBreaker.allowRequest(host)) {
+                return LOCATION_STATUS_SERVER_DOWN;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+
+            int status;
+            if (target.equals(AGGREGATOR_TARGET)) {
+                status = fetchFromAggregator(mRun);
+            } else if (target.startsWith(GROUP_TARGET_PREFIX)) {
+                status = fetchForecastGroup(mRun,
+                        target.substring(GROUP_TARGET_PREFIX.length()));
+            } else if (target.startsWith(HOURLY_TARGET_PREFIX)) {
+                status = fetchHourlyForecast(mRun,
+                        target.substring(HOURLY_TARGET_PREFIX.length()));
+            } else {
+                status = fetchForecast(mRun, target);
+            }
+
+            if (status == LOCATION_STATUS_SERVER_DOWN || status == LOCATION_STATUS_SERVER_INVALID) {
+                mCircuitBreaker.recordFailure(host);
+            } else {
+                mCircuitBreaker.recordSuccess(host);
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Fetches the forecasts of a chunk of cities in one request and commits every city's
+     * rows, for every location setting that resolved to it, as its own transaction.
+     *
+     * @param cityIdList comma separated city ids
+     * @return the resulting status, shared by every location in the chunk
+     */
+    @LocationStatus
+    private int fetchForecastGroup(SyncRun run, String cityIdList) {
+        List<Long> cityIds = new ArrayList<>();
+        for (String id : TextUtils.split(cityIdList, ",")) {
+            cityIds.add(Long.parseLong(id));
+        }
+
+        GroupForecastFetcher.Result result = null;
+        try {
+            Uri builtUri = GroupForecastFetcher.buildUri(FORECAST_GROUP_BASE_URL, cityIds,
+                    "metric", run.forecastDays, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+            ForecastGroupDemux demux = new ForecastGroupDemux(run);
+            result = GroupForecastFetcher.fetch(new URL(builtUri.toString()), demux);
+
+            switch (result.messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return LOCATION_STATUS_INVALID;
+                default:
+                    return LOCATION_STATUS_SERVER_DOWN;
+            }
+            Log.d(LOG_TAG, "Group of " + cityIds.size() + " cities: "
+                    + demux.mStoredLocations + " locations queued");
+            return LOCATION_STATUS_OK;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            return LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            return LOCATION_STATUS_SERVER_INVALID;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            if (result != null) {
+                new SyncStats(getContext()).recordTransfer(result.wireBytes, result.decodedBytes);
+                run.pipeline.record(SyncPipeline.STAGE_FETCH, result.headersMillis);
+                run.pipeline.record(SyncPipeline.STAGE_PARSE, result.bodyMillis);
             }
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches what changed since the versions held, for every location of the sync, from the
+     * aggregator in one request, and queues the changed days of each location.  The versions
+     * are recorded once the rows before them have been stored.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the resulting status, shared by every location
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    @LocationStatus
+    private int fetchFromAggregator(SyncRun run) {
+        // A location whose rows are gone is asked for whole, whatever version was stored
+        Map<String, Long> versions =
+                AggregatorFetcher.getVersions(getContext(), run.aggregatedLocations);
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            if (entry.getValue() != 0 && !hasForecastFor(entry.getKey())) {
+                entry.setValue(0L);
+            }
+        }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        AggregatorFetcher.Result result = null;
+        try {
+            AggregatedRows rows = new AggregatedRows();
+            result = AggregatorFetcher.fetch(new URL(FORECAST_AGGREGATOR_BASE_URL), versions,
+                    run.forecastDays, rows.mJulianStartDay, rows);
+            switch (result.messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return LOCATION_STATUS_INVALID;
+                default:
+                    return LOCATION_STATUS_SERVER_DOWN;
+            }
+            for (ForecastRowCollector collector : rows.mCollectors) {
+                if (!submitForecast(run, collector)) {
+                    return LOCATION_STATUS_SERVER_DOWN;
+                }
+            }
+            if (!submitForecast(run, rows)) {
+                return LOCATION_STATUS_SERVER_DOWN;
+            }
+            Log.d(LOG_TAG, "Aggregator: " + rows.mCollectors.size() + " of " + versions.size()
+                    + " locations changed, " + result.wireBytes + " bytes");
+            // the location status only describes the preferred location
+            return rows.mUnknown.contains(Utility.getPreferredLocation(getContext()))
+                    ? LOCATION_STATUS_INVALID : LOCATION_STATUS_OK;
+        } catch (ProtocolException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return LOCATION_STATUS_SERVER_INVALID;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return LOCATION_STATUS_SERVER_DOWN;
+        } finally {
+            if (result != null) {
+                new SyncStats(getContext()).recordTransfer(result.wireBytes, result.decodedBytes);
+                run.pipeline.record(SyncPipeline.STAGE_FETCH, result.headersMillis);
+                run.pipeline.record(SyncPipeline.STAGE_PARSE, result.bodyMillis);
+            }
+        }
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Collects an aggregator response as one collector per changed location.  Queued after
+     * them, it records the versions the response brought for the locations it left
+     * unchanged or whose rows committed.
+     */
+    private class AggregatedRows extends PendingRows implements DeltaProtocol.Callback {
+        private final int mJulianStartDay = getJulianStartDay();
+        private final List<ForecastRowCollector> mCollectors = new ArrayList<>();
+        private final Map<String, Long> mVersions = new HashMap<>();
+        private final Set<String> mUnknown = new HashSet<>();
+
+        @Override
+        public ForecastJsonParser.Callback onChanged(String locationSetting, long version) {
+            mVersions.put(locationSetting, version);
+            ForecastRowCollector collector =
+                    new ForecastRowCollector(locationSetting, mJulianStartDay);
+            mCollectors.add(collector);
+            return collector;
+        }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        @Override
+        public void onUnchanged(String locationSetting, long version) {
+            mVersions.put(locationSetting, version);
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        @Override
+        public void onUnknown(String locationSetting) {
+            mUnknown.add(locationSetting);
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        @Override
+        void store() {
+            // a location whose rows did not commit is asked for again from its old version
+            for (ForecastRowCollector collector : mCollectors) {
+                if (!collector.mStored) {
+                    mVersions.remove(collector.mLocationSetting);
+                }
+            }
+            AggregatorFetcher.putVersions(getContext(), mVersions);
+        }
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Splits a group response back into per-location rows.  A city can be shared by several
+     * location settings (say a postal code and the city name), in which case every one of
+     * them gets its own copy of the forecast.
+     */
+    private class ForecastGroupDemux implements ForecastJsonParser.GroupCallback {
+        private final SyncRun mRun;
+        private final int mJulianStartDay = getJulianStartDay();
+        private List<ForecastRowCollector> mCollectors = new ArrayList<>();
+        private int mStoredLocations;
+
+        ForecastGroupDemux(SyncRun run) {
+            mRun = run;
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        @Override
+        public ForecastJsonParser.Callback onForecastStart(int index) {
+            // the previous city's collectors now belong to the persist stage
+            mCollectors = new ArrayList<>();
+            return new ForecastJsonParser.Callback() {
+                @Override
+                public void onLocation(long cityId, String cityName, double lat, double lon) {
+                    List<String> settings = mRun.locationsByCityId.get(cityId);
+                    if (settings == null) {
+                        Log.w(LOG_TAG, "Group response holds unrequested city " + cityId);
+                        return;
+                    }
+                    for (String setting : settings) {
+                        ForecastRowCollector collector =
+                                new ForecastRowCollector(setting, mJulianStartDay);
+                        collector.onLocation(cityId, cityName, lat, lon);
+                        mCollectors.add(collector);
+                        // locations sharing its grid cell keep their own city id
+                        List<String> followers = mRun.cellFollowers.get(setting);
+                        if (followers != null) {
+                            for (String follower : followers) {
+                                ForecastRowCollector copy =
+                                        new ForecastRowCollector(follower, mJulianStartDay);
+                                copy.onLocation(0, cityName, lat, lon);
+                                mCollectors.add(copy);
+                            }
+                        }
+                    }
+                }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+                @Override
+                public void onDay(int index, ForecastJsonParser.Day day) {
+                    for (ForecastRowCollector collector : mCollectors) {
+                        collector.onDay(index, day);
+                    }
+                }
+            };
+        }
 
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        @Override
+        public void onForecastEnd(int index, int messageCode) {
+            if (messageCode != HttpURLConnection.HTTP_OK) {
+                Log.w(LOG_TAG, "Group forecast " + index + " failed with " + messageCode);
+                return;
+            }
+            for (ForecastRowCollector collector : mCollectors) {
+                if (submitForecast(mRun, collector)) {
+                    mStoredLocations++;
                 }
             }
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+    /**
+     * @return the public forecast endpoint followed by the configured mirrors
+     */
+    static List<String> getForecastEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add(FORECAST_BASE_URL);
+        for (String url : TextUtils.split(FORECAST_MIRROR_URLS, ",")) {
+            if (url.trim().length() > 0) {
+                endpoints.add(url.trim());
+            }
+        }
+        return endpoints;
+    }
 
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+    /**
+     * @return the request for a location's full daily forecast at the given endpoint
+     */
+    static Uri buildForecastUri(String endpoint, String locationQuery) {
+        return buildForecastUri(endpoint, locationQuery, RefreshPolicy.FULL_DAYS);
+    }
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /**
+     * @return the daily forecast request for a location at the given endpoint
+     */
+    static Uri buildForecastUri(String endpoint, String locationQuery, int numDays) {
+        String format = "json";
+        String units = "metric";
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        return Uri.parse(endpoint).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+    }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+    /**
+     * @param target an engine target; only plain locations have a grid cell
+     * @return the forecast fetched for the target's grid cell a moment ago, or null
+     */
+    private static ForecastRowCollector getCellForecast(SyncRun run, String target) {
+        String cell = run.cellOf.get(target);
+        return cell != null ? sCellForecasts.get(cell) : null;
+    }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    /**
+     * Fetches the forecast for one location and commits it.  The request is hedged across
+     * the forecast endpoints.  Safe to call from several threads at once.  Grid cells
+     * fetched a moment ago are served by {@link ForecastSyncer} before it gets here.
+     *
+     * @return the resulting location status
+     */
+    @LocationStatus
+    private int fetchForecast(final SyncRun run, final String locationQuery) {
+        String cell = run.cellOf.get(locationQuery);
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+        // Only ask for a 304 if we still hold the rows the validators describe; after a
+        // wipe or a location change we need the full body.
+        final boolean useValidators = hasForecastFor(locationQuery);
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        HedgedFetcher.Result<ForecastAttempt> result;
+        try {
+            result = sForecastEndpoints.fetch(
+                    new HedgedFetcher.AttemptFactory<ForecastAttempt>() {
+                        @Override
+                        public HedgedFetcher.Attempt<ForecastAttempt> newAttempt(String endpoint) {
+                            return new ForecastAttempt(run, endpoint, locationQuery,
+                                    useValidators);
+                        }
+                    }, SYNC_DEADLINE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        ForecastAttempt attempt = result.value;
+        if (attempt == null) {
+            // If the code didn't successfully get the weather data, there's no point in
+            // attempting to parse it.
+            Log.e(LOG_TAG, locationQuery + ": no endpoint answered in " + result.millis
+                    + "ms", result.error);
+            return result.error instanceof JSONException
+                    ? LOCATION_STATUS_SERVER_INVALID : LOCATION_STATUS_SERVER_DOWN;
+        }
+        if (result.attempts > 1) {
+            Log.d(LOG_TAG, locationQuery + ": answered by " + result.endpoint + " after "
+                    + result.attempts + " requests; " + sForecastEndpoints);
+        }
+        if (attempt.mCollector == null) {
+            return attempt.mStatus;
+        }
+        if (cell != null) {
+            sCellForecasts.put(cell, attempt.mCollector.copyFor(locationQuery));
+        }
+        return submitForCell(run, attempt.mCollector)
+                ? LOCATION_STATUS_OK : LOCATION_STATUS_SERVER_DOWN;
+    }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+    /**
+     * Fetches one location's forecast from a single endpoint, without hedging, and commits
+     * it the way a sync does; for tests.
+     *
+     * @return the pipeline the forecast went through, whose stage counts tell what was done
+     */
+    SyncPipeline<?> syncForecastFrom(String endpoint, String locationQuery)
+            throws IOException, JSONException, InterruptedException {
+        SyncPipeline<PendingRows> pipeline = newPipeline();
+        pipeline.start();
+        SyncRun run = new SyncRun(pipeline, RefreshPolicy.FULL_DAYS,
+                Collections.<String, String>emptyMap(),
+                Collections.<String, List<String>>emptyMap(),
+                Collections.<Long, List<String>>emptyMap(), Collections.<String>emptySet());
+        ForecastAttempt attempt = new ForecastAttempt(run, endpoint, locationQuery,
+                hasForecastFor(locationQuery)).execute();
+        if (attempt.mCollector != null) {
+            submitForCell(run, attempt.mCollector);
+        }
+        pipeline.finish(SYNC_DEADLINE_MILLIS);
+        return pipeline;
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Submits a location's forecast along with a copy for every other location of its grid
+     * cell.  The copies are made first, since the persist stage writes to the rows.
+     *
+     * @return false if the sync was cancelled while waiting
+     */
+    private boolean submitForCell(SyncRun run, ForecastRowCollector collector) {
+        List<ForecastRowCollector> collectors = new ArrayList<>();
+        collectors.add(collector);
+        List<String> followers = run.cellFollowers.get(collector.mLocationSetting);
+        if (followers != null) {
+            for (String follower : followers) {
+                collectors.add(collector.copyFor(follower));
+            }
+        }
+        for (ForecastRowCollector rows : collectors) {
+            if (!submitForecast(run, rows)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                double high;
-                double low;
+    /**
+     * One request for a location's forecast to one endpoint.  Parses the response, but
+     * leaves submitting the rows to the caller, since only the winning attempt may.
+     */
+    private class ForecastAttempt implements HedgedFetcher.Attempt<ForecastAttempt> {
+        private final SyncRun mRun;
+        private final String mEndpoint;
+        private final String mLocationQuery;
+        private final int mDays;
+        private final boolean mUseValidators;
+        private volatile SunshineHttpClient.Call mCall;
+        private volatile boolean mCancelled;
+
+        @LocationStatus
+        int mStatus = LOCATION_STATUS_UNKNOWN;
+        // The parsed rows, null when there are none to store
+        ForecastRowCollector mCollector;
+
+        ForecastAttempt(SyncRun run, String endpoint, String locationQuery,
+                        boolean useValidators) {
+            mRun = run;
+            mEndpoint = endpoint;
+            mLocationQuery = locationQuery;
+            mDays = run.forecastDays;
+            mUseValidators = useValidators;
+        }
 
-                String description;
-                int weatherId;
+        /**
+         * @throws IOException if the endpoint could not be reached or answered with an error
+         * @throws JSONException if the response was not a forecast
+         */
+        @Override
+        public ForecastAttempt execute() throws IOException, JSONException {
+            // These two need to be declared outside the try/catch
+            // so that they can be closed in the finally block.
+            SunshineHttpClient.Call call = null;
+            HttpResponseBody body = null;
+            ForecastArchive.Recorder recorder = null;
+
+            try {
+                String validatorKey =
+                        buildForecastUri(mEndpoint, mLocationQuery, mDays).toString();
+                URL url = new URL(validatorKey);
+
+                // Create the request to OpenWeatherMap on a pooled connection
+                call = SunshineHttpClient.getInstance().newCall(url);
+                mCall = call;
+                if (mCancelled) {
+                    throw new IOException("Cancelled");
+                }
+                HttpURLConnection urlConnection = call.getConnection();
+                HttpResponseBody.requestCompression(urlConnection);
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+                // Validators are kept per endpoint, since each has its own URL
+                ResponseValidatorStore validators = new ResponseValidatorStore(getContext());
+                if (mUseValidators) {
+                    validators.applyTo(urlConnection, validatorKey);
+                }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+                if (call.execute() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // OWM has not issued anything new since the last sync, the stored forecast
+                    // is still current.  Skip parse, write and fan-out entirely.
+                    validators.recordNotModified();
+                    Log.d(LOG_TAG, mLocationQuery + ": forecast not modified");
+                    mStatus = LOCATION_STATUS_OK;
+                    return this;
+                }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+                // Parse the response straight off the (decompressing) input stream
+                body = HttpResponseBody.open(urlConnection);
+                if (body == null) {
+                    throw new IOException("No forecast from " + url.getHost());
+                }
+                ForecastRowCollector collector =
+                        new ForecastRowCollector(mLocationQuery, getJulianStartDay());
+                // keep a copy of the response to rebuild the database from after an upgrade
+                recorder = new ForecastArchive(getContext())
+                        .record(mLocationQuery, body.getReader());
+                int messageCode = ForecastJsonParser.parse(recorder, collector);
+
+                // do we have an error?
+                switch (messageCode) {
+                    case HttpURLConnection.HTTP_OK:
+                        try {
+                            recorder.commit();
+                        } catch (IOException e) {
+                            Log.w(LOG_TAG, "Could not archive the response", e);
+                        }
+                        validators.store(urlConnection, validatorKey);
+                        mCollector = collector;
+                        mStatus = LOCATION_STATUS_OK;
+                        return this;
+                    case HttpURLConnection.HTTP_NOT_FOUND:
+                        validators.clear(validatorKey);
+                        mStatus = LOCATION_STATUS_INVALID;
+                        return this;
+                    default:
+                        // another endpoint may do better
+                        validators.clear(validatorKey);
+                        throw new IOException("Forecast error " + messageCode + " from "
+                                + url.getHost());
+                }
+            } finally {
+                if (recorder != null) {
+                    recorder.abort();
+                }
+                if (body != null) {
+                    Log.d(LOG_TAG, "Fetched " + body.getWireBytes() + " bytes ("
+                            + body.getDecodedBytes() + " decoded, encoding "
+                            + body.getContentEncoding() + ")");
+                    new SyncStats(getContext()).recordTransfer(
+                            body.getWireBytes(), body.getDecodedBytes());
+                    try {
+                        body.close();
+                    } catch (final IOException e) {
+                        Log.e(LOG_TAG, "Error closing stream", e);
+                    }
+                }
+                if (call != null) {
+                    // keeps the socket alive for the next request
+                    call.close();
+                    SunshineHttpClient.Timing timing = call.getTiming();
+                    if (!mCancelled) {
+                        mRun.pipeline.record(SyncPipeline.STAGE_FETCH, timing.headersMillis);
+                        if (body != null) {
+                            mRun.pipeline.record(SyncPipeline.STAGE_PARSE,
+                                    timing.totalMillis - timing.headersMillis);
+                        }
+                    }
+                    Log.d(LOG_TAG, mLocationQuery + " from " + Uri.parse(mEndpoint).getHost()
+                            + ": " + timing);
+                }
+            }
+        }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            SunshineHttpClient.Call call = mCall;
+            if (call != null) {
+                // fails the read in progress; the socket is not worth saving
+                call.getConnection().disconnect();
+            }
+        }
+    }
+
+    /**
+     * Rows parsed off one response, waiting for the persist stage.
+     */
+    private abstract class PendingRows {
+        /**
+         * Commits the rows.  Runs on the persist thread.
+         */
+        abstract void store();
+    }
+
+    /**
+     * Collects the rows decoded by {@link ForecastJsonParser} into a WeatherBatch for a
+     * single provider call.  Nothing touches the database while parsing; the location row is
+     * resolved by the persist stage.
+     */
+    private class ForecastRowCollector extends PendingRows
+            implements ForecastJsonParser.Callback {
+        private final String mLocationSetting;
+        private final int mJulianStartDay;
+        private final Time mDayTime = new Time();
+        private final WeatherBatch mRows = new WeatherBatch(16);
+        private boolean mHasLocation;
+        private long mCityId;
+        private String mCityName;
+        private double mLat;
+        private double mLon;
+        // Whether store() committed the rows; read by AggregatedRows on the persist thread
+        private boolean mStored;
+
+        ForecastRowCollector(String locationSetting, int julianStartDay) {
+            mLocationSetting = locationSetting;
+            mJulianStartDay = julianStartDay;
+        }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        @Override
+        void store() {
+            mStored = storeForecast(this);
+        }
 
-                ContentValues weatherValues = new ContentValues();
+        @Override
+        public void onLocation(long cityId, String cityName, double lat, double lon) {
+            mHasLocation = true;
+            mCityId = cityId;
+            mCityName = cityName;
+            mLat = lat;
+            mLon = lon;
+        }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        @Override
+        public void onDay(int index, ForecastJsonParser.Day day) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + index);
+            mRows.add(0, dateTime, day.weatherId, day.description, day.low, day.high,
+                    day.humidity, day.pressure, day.windSpeed, day.windDirection);
+        }
 
-                cVVector.add(weatherValues);
+        /**
+         * @return the same forecast for another location, whose location row exists already
+         * and keeps the city id it has
+         */
+        ForecastRowCollector copyFor(String locationSetting) {
+            ForecastRowCollector copy = new ForecastRowCollector(locationSetting, mJulianStartDay);
+            if (mHasLocation) {
+                copy.onLocation(0, mCityName, mLat, mLon);
             }
+            copy.mRows.addAll(mRows);
+            return copy;
+        }
+    }
+
+    /**
+     * @return the weather row for one day of the forecast, without its location
+     */
+    static ContentValues buildWeatherValues(long dateTime, ForecastJsonParser.Day day) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+        return weatherValues;
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+    /**
+     * Fetches the 3-hour forecast for one location and queues its rows.  Safe to call from
+     * several threads at once.
+     *
+     * @return the resulting location status
+     */
+    @LocationStatus
+    private int fetchHourlyForecast(SyncRun run, String locationQuery) {
+        SunshineHttpClient.Call call = null;
+        HttpResponseBody body = null;
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+        try {
+            Uri builtUri = Uri.parse(HOURLY_BASE_URL).buildUpon()
+                    .appendQueryParameter("q", locationQuery)
+                    .appendQueryParameter("mode", "json")
+                    .appendQueryParameter("units", "metric")
+                    .appendQueryParameter("APPID", BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                    .build();
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                notifyWear();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            call = SunshineHttpClient.getInstance().newCall(new URL(builtUri.toString()));
+            HttpURLConnection urlConnection = call.getConnection();
+            HttpResponseBody.requestCompression(urlConnection);
+            call.execute();
 
+            body = HttpResponseBody.open(urlConnection);
+            if (body == null) {
+                return LOCATION_STATUS_SERVER_DOWN;
+            }
+            HourlyRowCollector collector = new HourlyRowCollector(locationQuery);
+            switch (ForecastJsonParser.parseHourly(body.getReader(), collector)) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return LOCATION_STATUS_INVALID;
+                default:
+                    return LOCATION_STATUS_SERVER_DOWN;
+            }
+            return submitForecast(run, collector)
+                    ? LOCATION_STATUS_OK : LOCATION_STATUS_SERVER_DOWN;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            return LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (body != null) {
+                new SyncStats(getContext()).recordTransfer(
+                        body.getWireBytes(), body.getDecodedBytes());
+                try {
+                    body.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (call != null) {
+                call.close();
+                SunshineHttpClient.Timing timing = call.getTiming();
+                run.pipeline.record(SyncPipeline.STAGE_FETCH, timing.headersMillis);
+                if (body != null) {
+                    run.pipeline.record(SyncPipeline.STAGE_PARSE,
+                            timing.totalMillis - timing.headersMillis);
+                }
+            }
         }
     }
 
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
-    }
+    /**
+     * Collects the periods of a 3-hour forecast as hourly rows, quantized the way the table
+     * stores them.
+     */
+    private class HourlyRowCollector extends PendingRows
+            implements ForecastJsonParser.HourlyCallback {
+        private final String mLocationSetting;
+        private final List<ContentValues> mRows = new ArrayList<>(40);
+        private boolean mHasLocation;
+        private long mCityId;
+        private String mCityName;
+        private double mLat;
+        private double mLon;
+
+        HourlyRowCollector(String locationSetting) {
+            mLocationSetting = locationSetting;
+        }
+
+        @Override
+        public void onLocation(long cityId, String cityName, double lat, double lon) {
+            mHasLocation = true;
+            mCityId = cityId;
+            mCityName = cityName;
+            mLat = lat;
+            mLon = lon;
+        }
+
+        @Override
+        public void onHour(int index, ForecastJsonParser.Hour hour) {
+            ContentValues values = new ContentValues(8);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TIME, hour.time);
+            values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, hour.weatherId);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.quantize(hour.temperature));
+            values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, hour.humidity);
+            values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    WeatherContract.HourlyEntry.quantize(hour.pressure));
+            values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.quantize(hour.windSpeed));
+            values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES,
+                    (int) Math.round(hour.windDirection));
+            mRows.add(values);
+        }
 
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
+        @Override
+        void store() {
+            storeHourlyForecast(this);
         }
     }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+    /**
+     * Hands a parsed forecast to the persist stage, waiting while it is behind.
+     *
+     * @return false if the sync was cancelled while waiting
+     */
+    private boolean submitForecast(SyncRun run, PendingRows rows) {
+        try {
+            run.pipeline.submit(rows);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-        if ( displayNotifications ) {
+    /**
+     * OWM returns daily forecasts based upon the local time of the city that is being
+     * asked for, which means that we need to know the GMT offset to translate this data
+     * properly.
+     *
+     * Since this data is also sent in-order and the first day is always the
+     * current day, we're going to take advantage of that to get a nice
+     * normalized UTC date for all of our weather.
+     */
+    static int getJulianStartDay() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
+        // we start at the day returned by local time. Otherwise this is a mess.
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
 
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
+    /**
+     * Commits the rows of one location and prunes its history, with the location row, in
+     * one transaction that notifies observers once.  Only rows that differ from what is
+     * stored are written; the provider posts to the fan-out only if something changed.  Runs
+     * on the persist thread.
+     *
+     * @return whether the transaction committed
+     */
+    private boolean storeForecast(ForecastRowCollector collector) {
+        WeatherBatch batch = collector.mRows;
+        if (!collector.mHasLocation) {
+            // rows that belong to no location would never be read back
+            Log.w(LOG_TAG, collector.mLocationSetting + ": forecast without a city not stored");
+            return batch.size() == 0;
+        }
+        ContentValues locationValues = buildLocationValues(collector.mLocationSetting,
+                collector.mCityId, collector.mCityName, collector.mLat, collector.mLon);
+        if (batch.size() == 0) {
+            getContext().getContentResolver().insert(
+                    WeatherContract.LocationEntry.UPSERT_URI, locationValues);
+            return true;
+        }
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+        // delete old data so we don't build up an endless history
+        long pruneBefore = new Time().setJulianDay(collector.mJulianStartDay - 1);
+        ContentProviderResult[] results;
+        try {
+            results = getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY,
+                    buildForecastOperations(locationValues, batch, pruneBefore));
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, collector.mLocationSetting + ": forecast not stored", e);
+            return false;
+        }
+        int written = results[OPERATION_ROWS].count;
+        int deleted = results[OPERATION_PRUNE].count;
+        mRowsReceived.addAndGet(batch.size());
+        mRowsChanged.addAndGet(written);
+        Log.d(LOG_TAG, collector.mLocationSetting + ": " + written + " written, "
+                + (batch.size() - written) + " unchanged, " + deleted + " deleted");
+        return true;
+    }
 
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+    /**
+     * @param locationValues the location row
+     * @param pruneBefore the last date to delete, of every location
+     * @return the writes of one forecast: the location upsert, the weather rows tied to it by
+     * a back reference, and the pruning, at the OPERATION_ indices
+     */
+    static ArrayList<ContentProviderOperation> buildForecastOperations(
+            ContentValues locationValues, WeatherBatch batch, long pruneBefore) {
+        if (locationValues == null) {
+            throw new IllegalArgumentException("A forecast needs its location row");
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(3);
+        operations.add(OPERATION_LOCATION, ContentProviderOperation
+                .newInsert(WeatherContract.LocationEntry.UPSERT_URI)
+                .withValues(locationValues)
+                .build());
+        operations.add(OPERATION_ROWS, ContentProviderOperation
+                .newUpdate(WeatherContract.WeatherEntry.BATCH_URI)
+                .withValue(WeatherContract.EXTRA_BATCH, batch.toBytes())
+                .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        OPERATION_LOCATION)
+                .build());
+        operations.add(OPERATION_PRUNE, ContentProviderOperation
+                .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(pruneBefore)})
+                .build());
+        return operations;
+    }
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+    /**
+     * Commits the 3-hour periods of one location and prunes the ones that are over, with the
+     * location row, in one transaction that notifies observers once.  Runs on the persist
+     * thread.
+     */
+    private void storeHourlyForecast(HourlyRowCollector collector) {
+        if (!collector.mHasLocation || collector.mRows.isEmpty()) {
+            return;
+        }
+        ContentValues locationValues = buildLocationValues(collector.mLocationSetting,
+                collector.mCityId, collector.mCityName, collector.mLat, collector.mLon);
+        long pruneBefore = System.currentTimeMillis() / 1000 - HOURLY_KEEP_SECONDS;
+        ContentProviderResult[] results;
+        try {
+            results = getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY,
+                    buildHourlyOperations(locationValues, collector.mRows, pruneBefore));
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, collector.mLocationSetting + ": hourly forecast not stored", e);
+            return;
+        }
+        int deleted = results[results.length - 1].count;
+        Log.d(LOG_TAG, collector.mLocationSetting + ": " + collector.mRows.size()
+                + " hourly rows, " + deleted + " pruned");
+    }
 
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+    /**
+     * @param locationValues the location row
+     * @param pruneBefore periods that started before this time, in seconds, are deleted, of
+     * every location
+     * @return the writes of one hourly forecast: the location upsert at OPERATION_LOCATION,
+     * an insert for each period from OPERATION_ROWS on, tied to the location by a back
+     * reference, and the pruning last
+     */
+    static ArrayList<ContentProviderOperation> buildHourlyOperations(
+            ContentValues locationValues, List<ContentValues> rows, long pruneBefore) {
+        if (locationValues == null) {
+            throw new IllegalArgumentException("A forecast needs its location row");
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(rows.size() + 2);
+        operations.add(OPERATION_LOCATION, ContentProviderOperation
+                .newInsert(WeatherContract.LocationEntry.UPSERT_URI)
+                .withValues(locationValues)
+                .build());
+        for (ContentValues row : rows) {
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.HourlyEntry.CONTENT_URI)
+                    .withValues(row)
+                    .withValueBackReference(WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                            OPERATION_LOCATION)
+                    .build());
+        }
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                .withSelection(WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                        new String[]{Long.toString(pruneBefore)})
+                .build());
+        return operations;
+    }
 
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+    /**
+     * @return the cached OWM city id of every given location that has one
+     */
+    private Map<String, Long> queryCityIds(Set<String> locationSettings) {
+        Map<String, Long> cityIds = new LinkedHashMap<>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                WeatherContract.LocationEntry.COLUMN_CITY_ID + " IS NOT NULL",
+                null,
+                null);
+        if (cursor == null) {
+            return cityIds;
+        }
+        while (cursor.moveToNext()) {
+            String setting = cursor.getString(0);
+            if (locationSettings.contains(setting)) {
+                cityIds.put(setting, cursor.getLong(1));
+            }
+        }
+        cursor.close();
+        return cityIds;
+    }
 
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+    /**
+     * @return the stored coordinates of every given location that has a location row, in
+     * the order of the given set
+     */
+    private Map<String, double[]> queryCoordinates(Set<String> locationSettings) {
+        Map<String, double[]> stored = new HashMap<>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                stored.put(cursor.getString(0),
+                        new double[]{cursor.getDouble(1), cursor.getDouble(2)});
+            }
+            cursor.close();
+        }
+        Map<String, double[]> coordinates = new LinkedHashMap<>();
+        for (String setting : locationSettings) {
+            if (stored.containsKey(setting)) {
+                coordinates.put(setting, stored.get(setting));
             }
         }
+        return coordinates;
+    }
+
+    /**
+     * @return true if the database holds forecast rows for the location from today onwards
+     */
+    private boolean hasForecastFor(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasRows = cursor.moveToFirst();
+        cursor.close();
+        return hasRows;
     }
 
     /**
      * Helper method to handle insertion of a new location in the weather database.
      *
      * @param locationSetting The location string used to request updates from the server.
+     * @param cityId The numeric id OWM resolved the location to, 0 if unknown
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
      * @return the row ID of the added location.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+    static long addLocation(Context context, String locationSetting, long cityId, String cityName,
+                            double lat, double lon) {
+        // The provider keeps the row the setting already has, refreshing its city id for rows
+        // created before we tracked city ids, or a setting OWM now resolves to another city.
+        Uri locationUri = context.getContentResolver().insert(
+                WeatherContract.LocationEntry.UPSERT_URI,
+                buildLocationValues(locationSetting, cityId, cityName, lat, lon));
+        return ContentUris.parseId(locationUri);
+    }
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    /**
+     * @return the location row for the location upsert; the city id is left out if unknown
+     */
+    static ContentValues buildLocationValues(String locationSetting, long cityId,
+                                             String cityName, double lat, double lon) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        if (cityId != 0) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
         }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        return locationValues;
     }
 
     /**
@@ -557,15 +1480,61 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  A manual sync already asked
+     * for, or one running for the same locations, serves the request instead of starting
+     * another.
      * @param context The context used to access the account service
+     * @return the sync that will serve the request, to wait on for its status
      */
-    public static void syncImmediately(Context context) {
-        Bundle bundle = new Bundle();
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        ContentResolver.requestSync(getSyncAccount(context),
-                context.getString(R.string.content_authority), bundle);
+    public static SingleFlightSync.Flight syncImmediately(final Context context) {
+        return sFlights.request(getRequestKey(RefreshPolicy.KINDS_SYNC, true),
+                getSyncKey(Utility.getSyncLocations(context)), new Runnable() {
+            @Override
+            public void run() {
+                Bundle bundle = new Bundle();
+                bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+                bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+                ContentResolver.requestSync(getSyncAccount(context),
+                        context.getString(R.string.content_authority), bundle);
+            }
+        });
+    }
+
+    /**
+     * Asks for a sync of the given kinds of refresh, which the refresh policy then holds to
+     * the current conditions.  Merged with a sync already asked for the same kinds, like
+     * syncImmediately.
+     *
+     * @param kinds RefreshPolicy.KIND_ bits
+     * @return the sync that will serve the request, to wait on for its status
+     */
+    public static SingleFlightSync.Flight requestRefresh(final Context context, final int kinds) {
+        return sFlights.request(getRequestKey(kinds, false),
+                getSyncKey(Utility.getSyncLocations(context)), new Runnable() {
+            @Override
+            public void run() {
+                Bundle bundle = new Bundle();
+                bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+                bundle.putInt(EXTRA_KINDS, kinds);
+                ContentResolver.requestSync(getSyncAccount(context),
+                        context.getString(R.string.content_authority), bundle);
+            }
+        });
+    }
+
+    /**
+     * @return a key identifying what a sync is asked for: the kinds of refresh, and whether
+     * the user asked, which lets it past the policy
+     */
+    static String getRequestKey(int kinds, boolean manual) {
+        return kinds + (manual ? "/manual" : "");
+    }
+
+    /**
+     * @return a key identifying the set of locations, whatever their order
+     */
+    static String getSyncKey(Set<String> locations) {
+        return TextUtils.join("\n", new TreeSet<>(locations));
     }
 
     /**
@@ -577,6 +1546,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return a fake account.
      */
     public static Account getSyncAccount(Context context) {
+        // Once we know the account exists, skip the round trip to the account manager
+        Account cached = sSyncAccount;
+        if (cached != null) {
+            return cached;
+        }
+
         // Get an instance of the Android account manager
         AccountManager accountManager =
                 (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
@@ -604,14 +1579,22 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             onAccountCreated(newAccount, context);
         }
+        sSyncAccount = newAccount;
         return newAccount;
     }
 
+    /**
+     * Drops the cached sync account, so the next {@link #getSyncAccount} checks for it again.
+     */
+    static void forgetSyncAccount() {
+        sSyncAccount = null;
+    }
+
     private static void onAccountCreated(Account newAccount, Context context) {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        new SyncScheduler(context).reschedule();
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -627,6 +1610,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
         //syncImmediately(context);
+
+        // A database recreated by an upgrade gets the last forecast back from the archive
+        // without waiting for the network
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new ForecastArchive(appContext).restoreIfPending();
+            }
+        }, "Forecast restore").start();
     }
 
     /**
@@ -641,9 +1634,4 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
         spe.commit();
     }
-
-    void notifyWear() {
-        new WearSync(getContext()).sync(false);
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stages of one sync: fetch, parse and persist.
+ *
+ * Fetch and parse run on the sync workers, streaming each response straight into rows.  The
+ * parsed batches are handed to a single persist thread through a bounded queue, so database
+ * writes never contend with each other and a slow disk holds the workers back instead of
+ * piling up parsed forecasts in memory.  Each commit that changes rows is posted to
+ * {@link DataChangeBus} by the provider, and the bus fans the changes out to its consumers
+ * off the sync thread.
+ *
+ * Every stage is timed and counted.
+ */
+public class SyncPipeline<T> {
+    public static final String LOG_TAG = SyncPipeline.class.getSimpleName();
+
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_PARSE = "parse";
+    public static final String STAGE_PERSIST = "persist";
+    // Timed by DataChangeBus, which runs the consumers once the writes are over
+    public static final String STAGE_FAN_OUT = "fan_out";
+
+    private static final Object END_OF_BATCHES = new Object();
+
+    public interface Persister<T> {
+        /**
+         * Commits one batch.  Called on the persist thread, one batch at a time, in the order
+         * they were submitted.
+         */
+        void persist(T batch);
+    }
+
+    private static class Stage {
+        final AtomicLong millis = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    private final Persister<T> mPersister;
+    private final BlockingQueue<Object> mQueue;
+    private final Map<String, Stage> mStages = new LinkedHashMap<>();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicInteger mFailedBatches = new AtomicInteger();
+    private final Thread mPersistThread;
+
+    public SyncPipeline(int queueCapacity, Persister<T> persister) {
+        mPersister = persister;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        for (String stage : new String[]{STAGE_FETCH, STAGE_PARSE, STAGE_PERSIST}) {
+            mStages.put(stage, new Stage());
+        }
+        mPersistThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                persistLoop();
+            }
+        }, "SyncPersist");
+    }
+
+    public void start() {
+        mPersistThread.start();
+    }
+
+    /**
+     * Hands a parsed batch to the persist stage, waiting while the queue is full.
+     */
+    public void submit(T batch) throws InterruptedException {
+        mQueue.put(batch);
+        int depth = mQueue.size();
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())
+                && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // another worker raised it first, try again
+        }
+    }
+
+    /**
+     * Waits until every submitted batch is committed and stops the persist thread.
+     *
+     * @return false if the batches were not all committed in time
+     */
+    public boolean finish(long timeoutMillis) throws InterruptedException {
+        if (!mQueue.offer(END_OF_BATCHES, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            mPersistThread.interrupt();
+            return false;
+        }
+        mPersistThread.join(timeoutMillis);
+        if (mPersistThread.isAlive()) {
+            mPersistThread.interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the persist thread, dropping whatever is still queued.
+     */
+    public void abort() {
+        mPersistThread.interrupt();
+    }
+
+    private void persistLoop() {
+        try {
+            while (true) {
+                Object next = mQueue.take();
+                if (next == END_OF_BATCHES) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    @SuppressWarnings("unchecked")
+                    T batch = (T) next;
+                    mPersister.persist(batch);
+                } catch (RuntimeException e) {
+                    // one bad batch must not lose the ones queued behind it
+                    Log.e(LOG_TAG, "Error persisting batch", e);
+                    mFailedBatches.incrementAndGet();
+                }
+                record(STAGE_PERSIST, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Persist stage interrupted with " + mQueue.size() + " batches queued");
+        }
+    }
+
+    /**
+     * Adds one timed unit of work to a stage.
+     */
+    public void record(String stage, long millis) {
+        Stage counters = mStages.get(stage);
+        counters.millis.addAndGet(millis);
+        counters.count.incrementAndGet();
+    }
+
+    /**
+     * @return time spent in the stage, summed over every unit of work.  Fetch and parse run
+     * on several workers at once, so theirs can exceed the wall time of the sync.
+     */
+    public long getStageMillis(String stage) {
+        return mStages.get(stage).millis.get();
+    }
+
+    public int getStageCount(String stage) {
+        return mStages.get(stage).count.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public int getFailedBatchCount() {
+        return mFailedBatches.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Stage> entry : mStages.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(entry.getKey()).append(' ')
+                    .append(entry.getValue().count.get()).append("x ")
+                    .append(entry.getValue().millis.get()).append("ms");
+        }
+        return builder.append(", max queue depth ").append(mMaxQueueDepth.get()).toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides how long to wait before the next periodic sync.  Policies are plain Java so they can
+ * be replayed offline against recorded forecasts.
+ */
+public interface SyncPolicy {
+
+    /**
+     * What the scheduler knows when it picks the next sync time.
+     */
+    class Signals {
+        // Wall clock time, and the offset of local time from UTC, in milliseconds
+        public long nowMillis;
+        public long utcOffsetMillis;
+
+        // Share of stored forecast rows the recent syncs changed, smoothed, from 0 to 1
+        public double changeRatio = 0.5;
+
+        // When the app or the watch face last asked for the forecast, 0 if never
+        public long lastUsedMillis;
+
+        // When a sync last brought the forecast up to date, 0 if never
+        public long lastSyncMillis;
+
+        // A home screen widget or a watch shows the forecast without being opened
+        public boolean hasPassiveViewer;
+
+        public int getLocalHour() {
+            long localMillis = nowMillis + utcOffsetMillis;
+            return (int) (((localMillis / HOUR_IN_MILLIS) % 24 + 24) % 24);
+        }
+    }
+
+    long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * @return seconds until the next sync should run, 0 if it should run right away
+     */
+    long getNextSyncDelaySeconds(Signals signals);
+
+    /**
+     * The original behaviour: the same interval whatever happens.
+     */
+    class Fixed implements SyncPolicy {
+        private final long mIntervalSeconds;
+
+        public Fixed(long intervalSeconds) {
+            mIntervalSeconds = intervalSeconds;
+        }
+
+        @Override
+        public long getNextSyncDelaySeconds(Signals signals) {
+            return mIntervalSeconds;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.android.sunshine.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+import java.util.TimeZone;
+
+/**
+ * Collects the signals the {@link SyncPolicy} needs and sets a one-shot wakeup for the sync
+ * it picks, an alarm of {@link SyncWakeupReceiver} or, from Lollipop on, a job of
+ * {@link RefreshJobService}.  The wakeup is only moved when the policy moves the sync, so it
+ * stays on the model run it was placed after.
+ *
+ * A periodic sync with a fixed period, {@link #FALLBACK_INTERVAL_SECONDS}, catches wakeups
+ * lost to a reboot.  From Lollipop on, the periodic refresh jobs take its place, so each kind
+ * of refresh also waits for the conditions {@link RefreshPolicy} sets.
+ */
+public class SyncScheduler {
+    public static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String KEY_CHANGE_RATIO = "change_ratio";
+    private static final String KEY_LAST_USED = "last_used";
+    private static final String KEY_LAST_SYNC = "last_sync";
+    private static final String KEY_FALLBACK_INTERVAL = "fallback_interval";
+    private static final String KEY_NEXT_SYNC = "next_sync";
+
+    // The policy never waits longer, so the fallback only runs when a wakeup went missing
+    public static final long FALLBACK_INTERVAL_SECONDS = AdaptiveSyncPolicy.MAX_INTERVAL_SECONDS;
+
+    // A sync the policy moves by less than this keeps its wakeup
+    static final long WAKEUP_SLACK_MILLIS = 5 * 60 * 1000;
+
+    // Weight of the latest sync in the smoothed change ratio
+    static final float CHANGE_RATIO_WEIGHT = 0.3f;
+
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final SyncPolicy mPolicy;
+
+    public SyncScheduler(Context context) {
+        this(context, new AdaptiveSyncPolicy());
+    }
+
+    public SyncScheduler(Context context, SyncPolicy policy) {
+        mContext = context.getApplicationContext();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPolicy = policy;
+    }
+
+    /**
+     * Folds the outcome of one sync into the smoothed change ratio.
+     *
+     * @param rowsStored forecast rows the sync received
+     * @param rowsChanged how many of them differed from what was stored
+     */
+    public void recordSync(int rowsStored, int rowsChanged) {
+        float ratio = rowsStored > 0 ? rowsChanged / (float) rowsStored : 0f;
+        synchronized (sLock) {
+            float smoothed = mPrefs.getFloat(KEY_CHANGE_RATIO, 0.5f);
+            smoothed += CHANGE_RATIO_WEIGHT * (ratio - smoothed);
+            mPrefs.edit()
+                    .putFloat(KEY_CHANGE_RATIO, smoothed)
+                    .putLong(KEY_LAST_SYNC, System.currentTimeMillis())
+                    .apply();
+        }
+    }
+
+    /**
+     * Notes that a pushed delta brought the forecast up to date, which makes a polling sync
+     * less urgent.  Pushes carry only what changed, so they say nothing of the change ratio.
+     */
+    public void recordPush() {
+        synchronized (sLock) {
+            mPrefs.edit().putLong(KEY_LAST_SYNC, System.currentTimeMillis()).apply();
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Notes that the forecast is being looked at.  Coming back after a while reschedules right
+     * away, since the pending sync was probably stretched while nobody was looking, and syncs
+     * at once if the policy says what is on screen is already out of date.  Not to be called
+     * from the UI thread, as it talks to the widget, job and sync services.
+     */
+    public void recordUsage() {
+        long now = System.currentTimeMillis();
+        long lastUsed;
+        synchronized (sLock) {
+            lastUsed = mPrefs.getLong(KEY_LAST_USED, 0);
+            mPrefs.edit().putLong(KEY_LAST_USED, now).apply();
+        }
+        if (now - lastUsed >= AdaptiveSyncPolicy.ACTIVE_WINDOW_MILLIS) {
+            if (mPolicy.getNextSyncDelaySeconds(getSignals()) == 0) {
+                Log.d(LOG_TAG, "Forecast out of date while in use, syncing now");
+                SunshineSyncAdapter.syncImmediately(mContext);
+            } else {
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * @return when a sync last brought the forecast up to date, 0 if never
+     */
+    public long getLastSyncMillis() {
+        return mPrefs.getLong(KEY_LAST_SYNC, 0);
+    }
+
+    public SyncPolicy.Signals getSignals() {
+        SyncPolicy.Signals signals = new SyncPolicy.Signals();
+        signals.nowMillis = System.currentTimeMillis();
+        signals.utcOffsetMillis = TimeZone.getDefault().getOffset(signals.nowMillis);
+        signals.changeRatio = mPrefs.getFloat(KEY_CHANGE_RATIO, 0.5f);
+        signals.lastUsedMillis = mPrefs.getLong(KEY_LAST_USED, 0);
+        signals.lastSyncMillis = getLastSyncMillis();
+        signals.hasPassiveViewer = hasWidgets();
+        return signals;
+    }
+
+    /**
+     * Asks the policy for the next sync and moves the wakeup if the sync moved.
+     *
+     * @return the delay to the next sync in seconds
+     */
+    public long scheduleNext() {
+        return schedule(false);
+    }
+
+    /**
+     * Like {@link #scheduleNext()}, but always sets the wakeup and the fallback, for a fresh
+     * account.
+     */
+    public long reschedule() {
+        return schedule(true);
+    }
+
+    private long schedule(boolean force) {
+        // A wakeup needs a delay; "right away" is handled by recordUsage
+        long delay = Math.max(AdaptiveSyncPolicy.MIN_INTERVAL_SECONDS,
+                mPolicy.getNextSyncDelaySeconds(getSignals()));
+        long nextSync = System.currentTimeMillis() + delay * 1000;
+        synchronized (sLock) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            if (force || mPrefs.getLong(KEY_FALLBACK_INTERVAL, 0) != FALLBACK_INTERVAL_SECONDS) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    RefreshJobService.schedule(mContext, FALLBACK_INTERVAL_SECONDS);
+                } else {
+                    SunshineSyncAdapter.configurePeriodicSync(mContext,
+                            (int) FALLBACK_INTERVAL_SECONDS, (int) FALLBACK_INTERVAL_SECONDS / 3);
+                }
+                editor.putLong(KEY_FALLBACK_INTERVAL, FALLBACK_INTERVAL_SECONDS);
+            }
+            if (force || Math.abs(nextSync - mPrefs.getLong(KEY_NEXT_SYNC, 0))
+                    >= WAKEUP_SLACK_MILLIS) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    RefreshJobService.scheduleWakeup(mContext, delay * 1000);
+                } else {
+                    SyncWakeupReceiver.schedule(mContext, nextSync);
+                }
+                editor.putLong(KEY_NEXT_SYNC, nextSync);
+                Log.d(LOG_TAG, "Next sync in " + delay / 60 + " min");
+            }
+            editor.apply();
+        }
+        return delay;
+    }
+
+    /**
+     * @return the state of the network, the battery and the screen, for the
+     * {@link RefreshPolicy}
+     */
+    @SuppressWarnings("deprecation")
+    public RefreshPolicy.Conditions getConditions() {
+        RefreshPolicy.Conditions conditions = new RefreshPolicy.Conditions();
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        conditions.connected = Utility.isNetworkAvailable(mContext);
+        conditions.metered = activeNetwork != null
+                && ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+
+        // sticky, so no receiver is actually registered
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        conditions.charging = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        // idle the way JobScheduler means it: nobody is using the device
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        conditions.idle = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH
+                ? !pm.isInteractive() : !pm.isScreenOn();
+        return conditions;
+    }
+
+    private boolean hasWidgets() {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
+        return appWidgetManager.getAppWidgetIds(
+                new ComponentName(mContext, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                new ComponentName(mContext, DetailWidgetProvider.class)).length > 0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent counters describing what the sync has been doing.  Kept in their own
+ * SharedPreferences file so they never trigger the settings change listeners.
+ */
+public class SyncStats {
+
+    private static final String PREFS_NAME = "sync_stats";
+
+    // Bytes read off the wire and after decompression, for the last sync and in total
+    public static final String LAST_WIRE_BYTES = "last_wire_bytes";
+    public static final String LAST_DECODED_BYTES = "last_decoded_bytes";
+    public static final String TOTAL_WIRE_BYTES = "total_wire_bytes";
+    public static final String TOTAL_DECODED_BYTES = "total_decoded_bytes";
+
+    // Committed locations whose forecast had been prefetched, committed locations that had
+    // not, and prefetched forecasts thrown away unused
+    public static final String PREFETCH_HITS = "prefetch_hits";
+    public static final String PREFETCH_MISSES = "prefetch_misses";
+    public static final String PREFETCH_DISCARDED = "prefetch_discarded";
+
+    // Location fetches saved by sharing the forecast of a grid cell
+    public static final String SHARED_FETCHES = "shared_fetches";
+
+    // Syncs that asked for the whole forecast, and syncs cut down for a metered network
+    public static final String PAYLOAD_FULL = "payload_full";
+    public static final String PAYLOAD_METERED = "payload_metered";
+
+    // Per kind of refresh, keyed by RefreshPolicy.getName: times it was asked for and ran or
+    // was deferred by the policy, and how the jobs that ran it ended
+    private static final String PREFIX_REFRESH = "refresh_";
+    public static final String REFRESH_RAN = "_ran";
+    public static final String REFRESH_DEFERRED = "_deferred";
+    public static final String REFRESH_OK = "_ok";
+    public static final String REFRESH_FAILED = "_failed";
+
+    // Per stage of the sync pipeline, keyed by SyncPipeline.STAGE_*: time spent in the stage
+    // during the last sync, and in total over every sync with the number of syncs timed
+    private static final String PREFIX_STAGE = "stage_";
+    private static final String SUFFIX_LAST_MILLIS = "_last_millis";
+    private static final String SUFFIX_TOTAL_MILLIS = "_total_millis";
+    private static final String SUFFIX_COUNT = "_count";
+
+    // Locations sync in parallel, so read-modify-write of the counters must be serialized
+    private static final Object sLock = new Object();
+
+    private final SharedPreferences mPrefs;
+
+    public SyncStats(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public long get(String key) {
+        return mPrefs.getLong(key, 0);
+    }
+
+    /**
+     * Records the transfer cost of one fetch.
+     */
+    public void recordTransfer(long wireBytes, long decodedBytes) {
+        synchronized (sLock) {
+            mPrefs.edit()
+                    .putLong(LAST_WIRE_BYTES, wireBytes)
+                    .putLong(LAST_DECODED_BYTES, decodedBytes)
+                    .putLong(TOTAL_WIRE_BYTES, get(TOTAL_WIRE_BYTES) + wireBytes)
+                    .putLong(TOTAL_DECODED_BYTES, get(TOTAL_DECODED_BYTES) + decodedBytes)
+                    .apply();
+        }
+    }
+
+    /**
+     * Records the time one sync spent in a pipeline stage.
+     */
+    public void recordStage(String stage, long millis) {
+        String prefix = PREFIX_STAGE + stage;
+        synchronized (sLock) {
+            mPrefs.edit()
+                    .putLong(prefix + SUFFIX_LAST_MILLIS, millis)
+                    .putLong(prefix + SUFFIX_TOTAL_MILLIS,
+                            get(prefix + SUFFIX_TOTAL_MILLIS) + millis)
+                    .putLong(prefix + SUFFIX_COUNT, get(prefix + SUFFIX_COUNT) + 1)
+                    .apply();
+        }
+    }
+
+    public long getLastStageMillis(String stage) {
+        return get(PREFIX_STAGE + stage + SUFFIX_LAST_MILLIS);
+    }
+
+    /**
+     * @return mean time per sync spent in the stage, in milliseconds
+     */
+    public long getMeanStageMillis(String stage) {
+        long count = get(PREFIX_STAGE + stage + SUFFIX_COUNT);
+        return count == 0 ? 0 : get(PREFIX_STAGE + stage + SUFFIX_TOTAL_MILLIS) / count;
+    }
+
+    /**
+     * Records whether a committed location had been prefetched.
+     */
+    public void recordPrefetch(boolean hit) {
+        String key = hit ? PREFETCH_HITS : PREFETCH_MISSES;
+        synchronized (sLock) {
+            mPrefs.edit().putLong(key, get(key) + 1).apply();
+        }
+    }
+
+    public void recordPrefetchDiscarded(int count) {
+        synchronized (sLock) {
+            mPrefs.edit().putLong(PREFETCH_DISCARDED, get(PREFETCH_DISCARDED) + count).apply();
+        }
+    }
+
+    /**
+     * @return the share of committed locations that had been prefetched, 0 if none
+     */
+    public double getPrefetchHitRate() {
+        long hits = get(PREFETCH_HITS);
+        long total = hits + get(PREFETCH_MISSES);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public void recordSharedFetches(int count) {
+        synchronized (sLock) {
+            mPrefs.edit().putLong(SHARED_FETCHES, get(SHARED_FETCHES) + count).apply();
+        }
+    }
+
+    /**
+     * Records what the refresh policy let a sync do.
+     *
+     * @param kinds the kinds asked for, as RefreshPolicy.KIND_ bits
+     * @param allowed the kinds that ran
+     */
+    public void recordRefreshDecision(int kinds, int allowed, RefreshPolicy.Payload payload) {
+        synchronized (sLock) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (int kind : RefreshPolicy.KINDS) {
+                if ((kinds & kind) != 0) {
+                    String key = PREFIX_REFRESH + RefreshPolicy.getName(kind)
+                            + ((allowed & kind) != 0 ? REFRESH_RAN : REFRESH_DEFERRED);
+                    editor.putLong(key, get(key) + 1);
+                }
+            }
+            if (allowed != 0) {
+                String key = payload.days < RefreshPolicy.FULL_DAYS ? PAYLOAD_METERED : PAYLOAD_FULL;
+                editor.putLong(key, get(key) + 1);
+            }
+            editor.apply();
+        }
+    }
+
+    /**
+     * Records how a refresh job ended, and how long it took.
+     */
+    public void recordRefreshJob(int kind, boolean ok, long millis) {
+        String prefix = PREFIX_REFRESH + RefreshPolicy.getName(kind);
+        String key = prefix + (ok ? REFRESH_OK : REFRESH_FAILED);
+        synchronized (sLock) {
+            mPrefs.edit()
+                    .putLong(key, get(key) + 1)
+                    .putLong(prefix + SUFFIX_LAST_MILLIS, millis)
+                    .apply();
+        }
+    }
+
+    /**
+     * @param outcome one of the REFRESH_ suffixes
+     */
+    public long getRefreshCount(int kind, String outcome) {
+        return get(PREFIX_REFRESH + RefreshPolicy.getName(kind) + outcome);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Before Lollipop, wakes the sync adapter up for the sync {@link SyncScheduler} placed after
+ * a model run lands.  The periodic sync stays in place as a fallback for alarms lost to a
+ * reboot.
+ */
+public class SyncWakeupReceiver extends BroadcastReceiver {
+    public static final String LOG_TAG = SyncWakeupReceiver.class.getSimpleName();
+
+    /**
+     * Sets the alarm for the next sync, replacing the one already set.
+     *
+     * @param atMillis wall clock time of the sync
+     */
+    public static void schedule(Context context, long atMillis) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // not a wakeup alarm; a sleeping device syncs when it next wakes up
+        alarmManager.set(AlarmManager.RTC, atMillis, getPendingIntent(context));
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        return PendingIntent.getBroadcast(context, 0,
+                new Intent(context, SyncWakeupReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(LOG_TAG, "Woken up for the next sync");
+        SunshineSyncAdapter.requestRefresh(context, RefreshPolicy.KINDS_SYNC);
+    }
+}
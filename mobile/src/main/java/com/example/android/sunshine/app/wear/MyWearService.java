@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.WearableListenerService;
 
@@ -23,6 +24,8 @@ public class MyWearService extends WearableListenerService {
         if(messageEvent.getPath().equals(PATH_SYNC_WEATHER)) {
             Log.i("PKT", "Received Update Request From Wear");
 
+            // the watch face only asks while it is on screen
+            new SyncScheduler(this).recordUsage();
             new WearSync(getApplicationContext()).sync(true);
         }
     }